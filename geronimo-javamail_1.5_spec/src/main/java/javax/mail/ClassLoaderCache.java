@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent cache of values indexed by ClassLoader, used by the Session
+ * for the provider and address map resources.  The class loaders are only
+ * weakly held, so entries disappear once a class loader is collected.
+ * <p/>
+ * Lookups of values already loaded do not lock.  A lookup returns a slot,
+ * and callers load a missing value while holding the slot's monitor, so
+ * each value is only loaded once no matter how many threads ask for it.
+ * Each slot is tagged with a generation number, and a lookup with a different
+ * generation replaces the slot, which allows all of the values to be
+ * invalidated at once.
+ *
+ * @version $Rev$ $Date$
+ */
+final class ClassLoaderCache<V> {
+
+    private final ConcurrentMap<Key, Slot<V>> slots = new ConcurrentHashMap<Key, Slot<V>>();
+    // collected class loaders are queued here so their slots can be removed
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    /**
+     * Retrieve the slot for a class loader, creating a new one if the loader
+     * has not been seen before or the generation has changed.
+     *
+     * @param cl         The class loader.
+     * @param generation The current cache generation.
+     *
+     * @return The slot holding the value for this class loader.  The value will
+     *         be null if it has not been loaded yet.
+     */
+    Slot<V> getSlot(final ClassLoader cl, final long generation) {
+        expungeStaleEntries();
+
+        final Key lookup = new Key(cl, null);
+        Slot<V> slot = slots.get(lookup);
+        while (slot == null || slot.generation != generation) {
+            final Slot<V> replacement = new Slot<V>(generation, slot == null ? null : slot.value);
+            if (slot == null) {
+                slot = slots.putIfAbsent(new Key(cl, queue), replacement);
+                if (slot == null) {
+                    return replacement;
+                }
+            }
+            else if (slots.replace(lookup, slot, replacement)) {
+                return replacement;
+            }
+            else {
+                // somebody else has replaced this, so go with the current one
+                slot = slots.get(lookup);
+            }
+        }
+        return slot;
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            slots.remove(ref);
+        }
+    }
+
+
+    /**
+     * The value holder for a single class loader.
+     */
+    static final class Slot<V> {
+        final long generation;
+        // the value from the slot this replaced, if any.  Cleared once the new value is set.
+        V previous;
+        volatile V value;
+
+        Slot(final long generation, final V previous) {
+            this.generation = generation;
+            this.previous = previous;
+        }
+
+        /**
+         * Set the loaded value for this slot.
+         *
+         * @param value  The new value.
+         */
+        void setValue(final V value) {
+            previous = null;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * A weak class loader key, matched by class loader identity.
+     */
+    private static final class Key extends WeakReference<ClassLoader> {
+        private final int hash;
+
+        Key(final ClassLoader cl, final ReferenceQueue<ClassLoader> queue) {
+            super(cl, queue);
+            hash = System.identityHashCode(cl);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final ClassLoader cl = get();
+            return cl != null && cl == ((Key)o).get();
+        }
+    }
+}
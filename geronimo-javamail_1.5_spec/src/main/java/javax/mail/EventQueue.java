@@ -24,89 +24,84 @@
 //
 package javax.mail;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.mail.event.MailEvent;
 
+import org.apache.geronimo.mail.util.MailExecutor;
+
 /**
  * This is an event queue to dispatch javamail events on separate threads
  * from the main thread.  EventQueues are created by javamail Services 
  * (Transport and Store instances), as well as Folders created from Store 
- * instances.  Each entity will have its own private EventQueue instance, but 
- * will delay creating it until it has an event to dispatch to a real listener.
+ * instances.  Each entity has its own private EventQueue instance, which 
+ * keeps the events for that entity in order. 
  * 
- * NOTE:  It would be nice to use the concurrency support in Java 5 to 
- * manage the queue, but this code needs to run on Java 1.4 still.  We also 
- * don't want to have dependencies on other packages with this, so no 
- * outside concurrency packages can be used either. 
+ * The queues do not have threads of their own.  When a queue has events 
+ * waiting, it is scheduled on the shared {@link MailExecutor} pool, and 
+ * dispatches all of the events that have built up each time it runs.  
+ * Only one thread works on a given queue at a time, so the events from a 
+ * single source are delivered in the order they were raised.  The 
+ * "mail.event.threads" system property still sets the pool size if 
+ * "mail.executor.threads" is not given. 
  * @version $Rev$ $Date$
  */
 class EventQueue implements Runnable {
     /**
-     * The dispatch thread that handles notification events. 
+     * The events waiting for dispatch. 
      */
-    protected Thread dispatchThread; 
+    protected List<PendingEvent> eventQueue = new ArrayList<PendingEvent>(); 
     
-    /**
-     * The dispatching queue for events. 
-     */
-    protected List eventQueue = new LinkedList(); 
+    // true if this queue is on the dispatcher pool (or is being dispatched) 
+    private boolean scheduled; 
+    // set once the queue has been stopped 
+    private boolean stopped; 
     
     /**
-     * Create a new EventQueue, including starting the new thread. 
+     * Create a new EventQueue.  No dispatching resources are used until 
+     * an event is queued. 
      */
     public EventQueue() {
-        dispatchThread = new Thread(this, "JavaMail-EventQueue"); 
-        dispatchThread.setDaemon(true);  // this is a background server thread. 
-        // start the thread up 
-        dispatchThread.start(); 
     }
     
     /**
-     * When an object implementing interface <code>Runnable</code> is used
-     * to create a thread, starting the thread causes the object's
-     * <code>run</code> method to be called in that separately executing
-     * thread.
-     * <p>
-     * The general contract of the method <code>run</code> is that it may
-     * take any action whatsoever.
-     *
-     * @see     java.lang.Thread#run()
+     * Dispatch the events that have been queued.  This is run by the 
+     * shared dispatcher pool.  If more events arrive while this batch 
+     * is being dispatched, the queue goes to the back of the pool's work 
+     * queue again so a busy source does not starve the others. 
      */
     public void run() {
-        try {
-            while (true) {
-                // get the next event 
-                final PendingEvent p = dequeueEvent(); 
-                // an empty event on the queue means time to shut things down. 
-                if (p.event == null) {
-                    return; 
-                }
-                
-                // and tap the listeners on the shoulder. 
-                dispatchEvent(p.event, p.listeners); 
+        final List<PendingEvent> batch; 
+        synchronized (this) {
+            batch = eventQueue; 
+            eventQueue = new ArrayList<PendingEvent>(); 
+        }
+        
+        for (int i = 0; i < batch.size(); i++) {
+            final PendingEvent p = batch.get(i); 
+            // and tap the listeners on the shoulder. 
+            dispatchEvent(p.event, p.listeners); 
+        }
+        
+        synchronized (this) {
+            if (eventQueue.isEmpty() || stopped) {
+                scheduled = false; 
+            }
+            else {
+                MailExecutor.execute(this); 
             }
-        } catch (final InterruptedException e) {
-            // been told to stop, so we stop 
         }
     }
     
     
    /**
-    * Stop the EventQueue.  This will terminate the dispatcher thread as soon 
-    * as it can, so there may be undispatched events in the queue that will 
+    * Stop the EventQueue.  Any events still in the queue will 
     * not get dispatched. 
     */
     public synchronized void stop() {
-        // if the thread has not been stopped yet, interrupt it 
-        // and clear the reference. 
-        if (dispatchThread != null) {
-            // push a dummy marker on to the event queue  
-            // to force the dispatch thread to wake up. 
-            queueEvent(null, null); 
-            dispatchThread = null; 
-        }
+        stopped = true; 
+        eventQueue.clear(); 
     }
     
     /**
@@ -118,29 +113,27 @@ class EventQueue implements Runnable {
      *                  the event is queued and the dispatcher thread makes the calls to the
      *                  handlers.
      */
-    public synchronized void queueEvent(final MailEvent event, final List listeners) {
-        // add an element to the list, then notify the processing thread. 
-        // Note that we make a copy of the listeners list.  This ensures 
-        // we're going to dispatch this to the snapshot of the listeners 
-        final PendingEvent p = new PendingEvent(event, listeners);
-        eventQueue.add(p);         
-        // wake up the dispatch thread 
-        notify(); 
+    public void queueEvent(final MailEvent event, final List listeners) {
+        queueEvent(event, listeners.toArray()); 
     }
     
     /**
-     * Remove the next event from the message queue. 
+     * Add a new event to the queue.  
      * 
-     * @return The PendingEvent item from the queue. 
+     * @param event     The event to dispatch.
+     * @param listeners The listeners to dispatch this to.  The array is a snapshot 
+     *                  that must not be modified after it is queued.  
      */
-    protected synchronized PendingEvent dequeueEvent() throws InterruptedException {
-        // a little spin loop to wait for an event 
-        while (eventQueue.isEmpty()) {
-            wait(); 
+    public synchronized void queueEvent(final MailEvent event, final Object[] listeners) {
+        if (stopped) {
+            return; 
+        }
+        eventQueue.add(new PendingEvent(event, listeners)); 
+        // get on the dispatcher's list if we're not there already 
+        if (!scheduled) {
+            scheduled = true; 
+            MailExecutor.execute(this); 
         }
-        
-        // just remove the first element of this 
-        return (PendingEvent)eventQueue.remove(0); 
     }
     
     
@@ -149,13 +142,13 @@ class EventQueue implements Runnable {
      * the listeners will be swallowed.
      * 
      * @param event     The event to dispatch.
-     * @param listeners The list of listeners this gets dispatched to.
+     * @param listeners The listeners this gets dispatched to.
      */
-    protected void dispatchEvent(final MailEvent event, final List listeners) {
+    protected void dispatchEvent(final MailEvent event, final Object[] listeners) {
         // iterate through the listeners list calling the handlers. 
-        for (int i = 0; i < listeners.size(); i++) {
+        for (int i = 0; i < listeners.length; i++) {
             try {
-                event.dispatch(listeners.get(i)); 
+                event.dispatch(listeners[i]); 
             } catch (final Throwable e) {
                 // just eat these 
             }
@@ -166,13 +159,13 @@ class EventQueue implements Runnable {
     /**
      * Small helper class to give a single reference handle for a pending event. 
      */
-    class PendingEvent {
+    static class PendingEvent {
         // the event we're broadcasting  
-        MailEvent event;  
-        // the list of listeners we send this to. 
-        List listeners; 
+        final MailEvent event;  
+        // the listeners we send this to. 
+        final Object[] listeners; 
             
-        PendingEvent(final MailEvent event, final List listeners) {    
+        PendingEvent(final MailEvent event, final Object[] listeners) {    
             this.event = event; 
             this.listeners = listeners; 
         }
@@ -81,13 +81,13 @@ public abstract class Folder {
      */
     protected int mode = -1;
 
-    private final ArrayList connectionListeners = new ArrayList(2);
-    private final ArrayList folderListeners = new ArrayList(2);
-    private final ArrayList messageChangedListeners = new ArrayList(2);
-    private final ArrayList messageCountListeners = new ArrayList(2);
-    // the EventQueue spins off a new thread, so we only create this 
-    // if we have actual listeners to dispatch an event to. 
-    private EventQueue queue = null;
+    private final ListenerList connectionListeners = new ListenerList();
+    private final ListenerList folderListeners = new ListenerList();
+    private final ListenerList messageChangedListeners = new ListenerList();
+    private final ListenerList messageCountListeners = new ListenerList();
+    // the queue that delivers our events.  This is cheap to create, since queues 
+    // share a common dispatcher pool rather than having a thread each. 
+    private final EventQueue queue = new EventQueue();
 
     /**
      * Constructor that initializes the Store.
@@ -623,6 +623,11 @@ public abstract class Folder {
      * The default implementation iterates through the messages, returning those
      * whose {@link Message#match(javax.mail.search.SearchTerm)} method returns true;
      * subclasses may provide a more efficient implementation.
+     * <p/>
+     * If the "mail.search.parallel" session property is true, the term is instead
+     * compiled into an optimized matcher that is applied to the messages in parallel.
+     * Messages whose class overrides match() are still tested with that method.
+     * This is only suitable if the messages can safely be examined from multiple threads.
      *
      * @param term the search criteria
      * @param messages the messages to search
@@ -630,6 +635,9 @@ public abstract class Folder {
      * @throws MessagingException if there was a problem accessing the store
      */
     public Message[] search(final SearchTerm term, final Message[] messages) throws MessagingException {
+        if (store != null && Boolean.valueOf(store.getSession().getProperty(SearchEngine.MAIL_SEARCH_PARALLEL)).booleanValue()) {
+            return SearchEngine.search(term, messages);
+        }
         final List result = new ArrayList(messages.length);
         for (int i = 0; i < messages.length; i++) {
             final Message message = messages[i];
@@ -677,11 +685,11 @@ public abstract class Folder {
     }
 
     protected void notifyMessageAddedListeners(final Message[] messages) {
-        queueEvent(new MessageCountEvent(this, MessageCountEvent.ADDED, false, messages), messageChangedListeners);
+        queueEvent(new MessageCountEvent(this, MessageCountEvent.ADDED, false, messages), messageCountListeners);
     }
 
     protected void notifyMessageRemovedListeners(final boolean removed, final Message[] messages) {
-        queueEvent(new MessageCountEvent(this, MessageCountEvent.REMOVED, removed, messages), messageChangedListeners);
+        queueEvent(new MessageCountEvent(this, MessageCountEvent.REMOVED, removed, messages), messageCountListeners);
     }
 
     public void addMessageChangedListener(final MessageChangedListener listener) {
@@ -701,11 +709,8 @@ public abstract class Folder {
      */
     @Override
     protected void finalize() throws Throwable {
-        // shut our queue down, if needed. 
-        if (queue != null) {
-            queue.stop();
-            queue = null; 
-        }
+        // shut our queue down. 
+        queue.stop();
         connectionListeners.clear();
         folderListeners.clear();
         messageChangedListeners.clear();
@@ -726,24 +731,19 @@ public abstract class Folder {
     
     
     /**
-     * Add an event on the event queue, creating the queue if this is the 
-     * first event with actual listeners. 
+     * Add an event on the event queue, if there are listeners 
+     * to deliver it to. 
      * 
      * @param event     The event to dispatch.
      * @param listeners The listener list.
      */
-    private synchronized void queueEvent(final MailEvent event, final ArrayList listeners) {
+    private void queueEvent(final MailEvent event, final ListenerList listeners) {
+        final Object[] snapshot = listeners.getListeners(); 
         // if there are no listeners to dispatch this to, don't put it on the queue. 
-        // This allows us to delay creating the queue (and its new thread) until 
-        // we 
-        if (listeners.isEmpty()) {
+        if (snapshot.length == 0) {
             return; 
         }
-        // first real event?  Time to get the queue kicked off. 
-        if (queue == null) {
-            queue = new EventQueue(); 
-        }
         // tee it up and let it rip. 
-        queue.queueEvent(event, (List)listeners.clone()); 
+        queue.queueEvent(event, snapshot); 
     }
 }
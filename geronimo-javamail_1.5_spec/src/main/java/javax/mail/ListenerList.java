@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+/**
+ * A copy-on-write list of event listeners.  Listeners are registered
+ * rarely but events are raised often, so each change creates a new
+ * array, and the current array can be handed to the EventQueue as a
+ * snapshot without copying it.
+ *
+ * @version $Rev$ $Date$
+ */
+final class ListenerList {
+    private static final Object[] EMPTY = new Object[0];
+
+    // the current listeners.  This array is never modified once published.
+    private volatile Object[] listeners = EMPTY;
+
+    /**
+     * Add a listener to the end of the list.
+     *
+     * @param listener The new listener.
+     */
+    synchronized void add(final Object listener) {
+        final Object[] current = listeners;
+        final Object[] updated = new Object[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Remove the first occurrence of a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    synchronized void remove(final Object listener) {
+        final Object[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == null ? listener == null : current[i].equals(listener)) {
+                final Object[] updated = new Object[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove all of the listeners.
+     */
+    synchronized void clear() {
+        listeners = EMPTY;
+    }
+
+    /**
+     * Return the current listeners.  The returned array must
+     * not be modified.
+     *
+     * @return A snapshot of the registered listeners.
+     */
+    Object[] getListeners() {
+        return listeners;
+    }
+}
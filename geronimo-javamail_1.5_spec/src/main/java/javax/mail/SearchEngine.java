@@ -0,0 +1,548 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.MessageIDTerm;
+import javax.mail.search.MessageNumberTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.StringTerm;
+import javax.mail.search.SubjectTerm;
+
+import org.apache.geronimo.mail.util.MailExecutor;
+
+/**
+ * The search engine used by {@link Folder#search(SearchTerm, Message[])} when
+ * the "mail.search.parallel" session property is set.  The SearchTerm tree
+ * is first compiled into a Matcher tree:
+ * <ul>
+ * <li>String terms on the subject, headers, Message-ID and address fields
+ *     get a case folded copy of the pattern and a skip table, so each
+ *     message string is scanned rather than compared at every offset.</li>
+ * <li>The children of And and Or terms are ordered so the cheapest tests
+ *     are tried first.  The terms have no side effects, so the result is
+ *     the same.</li>
+ * <li>Any other term is evaluated by calling its own match() method.</li>
+ * </ul>
+ * Messages whose class overrides {@link Message#match(SearchTerm)} are
+ * tested with that method instead, so they get the same result as the
+ * serial search.  The messages are split into batches that are shared
+ * between the calling thread and the {@link MailExecutor} pool, and the
+ * matches are gathered in their original order.  Since messages are
+ * examined concurrently, this is only suitable for folders whose Message
+ * objects can be read from multiple threads, which is why it is opt-in.
+ *
+ * @version $Rev$ $Date$
+ */
+final class SearchEngine {
+    static final String MAIL_SEARCH_PARALLEL = "mail.search.parallel";
+
+    // the number of messages examined as a single unit of work
+    private static final int BATCH_SIZE = 256;
+
+    // true for the Message classes that override Message.match(SearchTerm)
+    private static final ClassValue<Boolean> OVERRIDES_MATCH = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(final Class<?> type) {
+            try {
+                return Boolean.valueOf(type.getMethod("match", SearchTerm.class).getDeclaringClass() != Message.class);
+            } catch (final NoSuchMethodException e) {
+                return Boolean.TRUE;
+            } catch (final SecurityException e) {
+                return Boolean.TRUE;
+            }
+        }
+    };
+
+    // relative costs used to order the children of And and Or terms
+    private static final int COST_CHEAP = 1;
+    private static final int COST_HEADER = 2;
+    private static final int COST_UNKNOWN = 4;
+    private static final int COST_BODY = 16;
+
+    private SearchEngine() {
+    }
+
+    /**
+     * Search a set of messages, returning the matching messages in their
+     * original order.
+     *
+     * @param term     The search criteria.
+     * @param messages The messages to search.
+     *
+     * @return The matching messages.
+     * @exception MessagingException if an overridden match() method fails.
+     */
+    static Message[] search(final SearchTerm term, final Message[] messages) throws MessagingException {
+        final boolean[] matched = new boolean[messages.length];
+        final SearchTask task = new SearchTask(term, compile(term), messages, matched);
+
+        // the calling thread always works on the search, with pool helpers for the other batches
+        final int helperCount = Math.min(task.batches - 1, MailExecutor.getThreadCount());
+        final List<FutureTask<Object>> helpers = new ArrayList<FutureTask<Object>>(Math.max(helperCount, 0));
+        for (int i = 0; i < helperCount; i++) {
+            final FutureTask<Object> helper = new FutureTask<Object>(task, null);
+            helpers.add(helper);
+            MailExecutor.execute(helper);
+        }
+        try {
+            task.run();
+            for (int i = 0; i < helpers.size(); i++) {
+                MailExecutor.join(helpers.get(i));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while searching", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        } finally {
+            // helpers that have not started are no longer needed
+            for (int i = 0; i < helpers.size(); i++) {
+                helpers.get(i).cancel(false);
+            }
+        }
+        if (task.failure != null) {
+            throw task.failure;
+        }
+
+        int count = 0;
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                count++;
+            }
+        }
+        final Message[] result = new Message[count];
+        count = 0;
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                result[count++] = messages[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compile a search term into a reusable matcher.
+     *
+     * @param term   The search term.
+     *
+     * @return A Matcher with the same results as the term.
+     */
+    static Matcher compile(final SearchTerm term) {
+        if (term instanceof AndTerm) {
+            return new AndMatcher(compileAll(((AndTerm)term).getTerms()));
+        }
+        else if (term instanceof OrTerm) {
+            return new OrMatcher(compileAll(((OrTerm)term).getTerms()));
+        }
+        else if (term instanceof NotTerm) {
+            return new NotMatcher(compile(((NotTerm)term).getTerm()));
+        }
+        else if (term instanceof SubjectTerm) {
+            return new SubjectMatcher(new StringMatcher((StringTerm)term));
+        }
+        else if (term instanceof HeaderTerm) {
+            return new HeaderMatcher(((HeaderTerm)term).getHeaderName(), new StringMatcher((StringTerm)term));
+        }
+        else if (term instanceof MessageIDTerm) {
+            return new HeaderMatcher("Message-ID", new StringMatcher((StringTerm)term));
+        }
+        else if (term instanceof FromStringTerm) {
+            return new AddressMatcher(null, new StringMatcher((StringTerm)term));
+        }
+        else if (term instanceof RecipientStringTerm) {
+            return new AddressMatcher(((RecipientStringTerm)term).getRecipientType(), new StringMatcher((StringTerm)term));
+        }
+        else if (term instanceof BodyTerm) {
+            return new TermMatcher(term, COST_BODY);
+        }
+        else if (term instanceof FlagTerm || term instanceof SizeTerm || term instanceof MessageNumberTerm) {
+            return new TermMatcher(term, COST_CHEAP);
+        }
+        else if (term instanceof ComparisonTerm) {
+            return new TermMatcher(term, COST_HEADER);
+        }
+        return new TermMatcher(term, COST_UNKNOWN);
+    }
+
+    private static Matcher[] compileAll(final SearchTerm[] terms) {
+        final Matcher[] matchers = new Matcher[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            matchers[i] = compile(terms[i]);
+        }
+        // this is a stable sort, so terms of equal cost keep their order
+        Arrays.sort(matchers, new Comparator<Matcher>() {
+            public int compare(final Matcher a, final Matcher b) {
+                return a.cost() < b.cost() ? -1 : (a.cost() == b.cost() ? 0 : 1);
+            }
+        });
+        return matchers;
+    }
+
+
+    /**
+     * A compiled search term.
+     */
+    abstract static class Matcher {
+        /**
+         * Test a message.
+         *
+         * @param message The message to test.
+         *
+         * @return true if the message matches.
+         */
+        abstract boolean match(Message message);
+
+        /**
+         * Return the relative cost of testing a message.
+         *
+         * @return The cost estimate.
+         */
+        abstract int cost();
+    }
+
+
+    private static final class AndMatcher extends Matcher {
+        private final Matcher[] matchers;
+        private final int cost;
+
+        AndMatcher(final Matcher[] matchers) {
+            this.matchers = matchers;
+            int total = 0;
+            for (int i = 0; i < matchers.length; i++) {
+                total += matchers[i].cost();
+            }
+            cost = total;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            for (int i = 0; i < matchers.length; i++) {
+                if (!matchers[i].match(message)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+    }
+
+
+    private static final class OrMatcher extends Matcher {
+        private final Matcher[] matchers;
+        private final int cost;
+
+        OrMatcher(final Matcher[] matchers) {
+            this.matchers = matchers;
+            int total = 0;
+            for (int i = 0; i < matchers.length; i++) {
+                total += matchers[i].cost();
+            }
+            cost = total;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            for (int i = 0; i < matchers.length; i++) {
+                if (matchers[i].match(message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+    }
+
+
+    private static final class NotMatcher extends Matcher {
+        private final Matcher matcher;
+
+        NotMatcher(final Matcher matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            return !matcher.match(message);
+        }
+
+        @Override
+        int cost() {
+            return matcher.cost();
+        }
+    }
+
+
+    /**
+     * Any term we don't have a compiled form for.
+     */
+    private static final class TermMatcher extends Matcher {
+        private final SearchTerm term;
+        private final int cost;
+
+        TermMatcher(final SearchTerm term, final int cost) {
+            this.term = term;
+            this.cost = cost;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            return term.match(message);
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+    }
+
+
+    private static final class SubjectMatcher extends Matcher {
+        private final StringMatcher pattern;
+
+        SubjectMatcher(final StringMatcher pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            try {
+                final String subject = message.getSubject();
+                return subject != null && pattern.matches(subject);
+            } catch (final MessagingException e) {
+                return false;
+            }
+        }
+
+        @Override
+        int cost() {
+            return COST_HEADER;
+        }
+    }
+
+
+    private static final class HeaderMatcher extends Matcher {
+        private final String name;
+        private final StringMatcher pattern;
+
+        HeaderMatcher(final String name, final StringMatcher pattern) {
+            this.name = name;
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            try {
+                final String[] values = message.getHeader(name);
+                if (values != null) {
+                    for (int i = 0; i < values.length; i++) {
+                        if (pattern.matches(values[i])) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            } catch (final MessagingException e) {
+                return false;
+            }
+        }
+
+        @Override
+        int cost() {
+            return COST_HEADER;
+        }
+    }
+
+
+    private static final class AddressMatcher extends Matcher {
+        // the recipient type, or null for the from addresses
+        private final Message.RecipientType type;
+        private final StringMatcher pattern;
+
+        AddressMatcher(final Message.RecipientType type, final StringMatcher pattern) {
+            this.type = type;
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean match(final Message message) {
+            try {
+                final Address[] addresses = type == null ? message.getFrom() : message.getRecipients(type);
+                if (addresses != null) {
+                    for (int i = 0; i < addresses.length; i++) {
+                        if (pattern.matches(addresses[i].toString())) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            } catch (final MessagingException e) {
+                return false;
+            }
+        }
+
+        @Override
+        int cost() {
+            return COST_HEADER;
+        }
+    }
+
+
+    /**
+     * A substring search for a StringTerm pattern, using a Horspool skip
+     * table.  Case insensitive matches compare characters with the same
+     * folding as String.regionMatches(), so the results are identical to
+     * StringTerm.match().
+     */
+    static final class StringMatcher {
+        // the pattern, case folded if this is a case insensitive match
+        private final char[] pattern;
+        private final boolean ignoreCase;
+        // the distance to shift for each text character, indexed by the low byte of the character
+        private final int[] skip = new int[256];
+
+        StringMatcher(final StringTerm term) {
+            this(term.getPattern(), term.getIgnoreCase());
+        }
+
+        StringMatcher(final String pattern, final boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+            this.pattern = new char[pattern.length()];
+            for (int i = 0; i < this.pattern.length; i++) {
+                this.pattern[i] = fold(pattern.charAt(i));
+            }
+            Arrays.fill(skip, this.pattern.length);
+            // characters sharing a low byte share an entry, and keep the smallest shift
+            for (int i = 0; i < this.pattern.length - 1; i++) {
+                skip[this.pattern[i] & 0xff] = this.pattern.length - 1 - i;
+            }
+        }
+
+        /**
+         * Test if the pattern occurs anywhere in a string.
+         *
+         * @param text   The string to search.
+         *
+         * @return true if the pattern was found.
+         */
+        boolean matches(final String text) {
+            final int length = pattern.length;
+            if (length == 0) {
+                return true;
+            }
+            final int last = length - 1;
+            final int end = text.length() - length;
+            int offset = 0;
+            while (offset <= end) {
+                final char tail = fold(text.charAt(offset + last));
+                if (tail == pattern[last]) {
+                    int i = last - 1;
+                    while (i >= 0 && fold(text.charAt(offset + i)) == pattern[i]) {
+                        i--;
+                    }
+                    if (i < 0) {
+                        return true;
+                    }
+                }
+                offset += skip[tail & 0xff];
+            }
+            return false;
+        }
+
+        private char fold(final char ch) {
+            if (!ignoreCase) {
+                return ch;
+            }
+            // the same two step comparison String.regionMatches() uses
+            return Character.toLowerCase(Character.toUpperCase(ch));
+        }
+    }
+
+
+    /**
+     * Match the messages one batch at a time.  The same task is run by
+     * the calling thread and each of the pool helpers, and they take the
+     * batches in turn until there are none left.
+     */
+    private static final class SearchTask implements Runnable {
+        private final SearchTerm term;
+        private final Matcher matcher;
+        private final Message[] messages;
+        private final boolean[] matched;
+        final int batches;
+        // the next batch to be examined
+        private final AtomicInteger next = new AtomicInteger();
+        // the first failure from an overridden match() method
+        volatile MessagingException failure;
+
+        SearchTask(final SearchTerm term, final Matcher matcher, final Message[] messages, final boolean[] matched) {
+            this.term = term;
+            this.matcher = matcher;
+            this.messages = messages;
+            this.matched = matched;
+            batches = (messages.length + BATCH_SIZE - 1) / BATCH_SIZE;
+        }
+
+        public void run() {
+            int batch;
+            while (failure == null && (batch = next.getAndIncrement()) < batches) {
+                final int end = Math.min(messages.length, (batch + 1) * BATCH_SIZE);
+                for (int i = batch * BATCH_SIZE; i < end; i++) {
+                    final Message message = messages[i];
+                    try {
+                        matched[i] = OVERRIDES_MATCH.get(message.getClass()).booleanValue() ? message.match(term) : matcher.match(message);
+                    } catch (final MessagingException e) {
+                        failure = e;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ package javax.mail;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.List;
 import java.util.Vector;
 
 import javax.mail.event.ConnectionEvent;
@@ -46,10 +45,10 @@ public abstract class Service {
     protected boolean debug;
 
     private boolean connected;
-    private final Vector connectionListeners = new Vector(2);
-    // the EventQueue spins off a new thread, so we only create this
-    // if we have actual listeners to dispatch an event to.
-    private EventQueue queue = null;
+    private final ListenerList connectionListeners = new ListenerList();
+    // the queue that delivers our events.  This is cheap to create, since queues
+    // share a common dispatcher pool rather than having a thread each.
+    private final EventQueue queue = new EventQueue();
     // when returning the URL, we need to ensure that the password and file information is
     // stripped out.
     private URLName exposedUrl;
@@ -403,25 +402,33 @@ public abstract class Service {
 
     protected void queueEvent(final MailEvent event, final Vector listeners) {
         // if there are no listeners to dispatch this to, don't put it on the queue.
-        // This allows us to delay creating the queue (and its new thread) until
-        // we
         if (listeners.isEmpty()) {
             return;
         }
-        // first real event?  Time to get the queue kicked off.
-        if (queue == null) {
-            queue = new EventQueue();
-        }
         // tee it up and let it rip.
-        queue.queueEvent(event, (List)listeners.clone());
+        queue.queueEvent(event, listeners.toArray());
+    }
+
+    /**
+     * Queue an event for the listeners in a ListenerList.  The list
+     * contents are already a snapshot, so no copy is required.
+     *
+     * @param event     The event to dispatch.
+     * @param listeners The listener list.
+     */
+    void queueEvent(final MailEvent event, final ListenerList listeners) {
+        final Object[] snapshot = listeners.getListeners();
+        // if there are no listeners to dispatch this to, don't put it on the queue.
+        if (snapshot.length == 0) {
+            return;
+        }
+        queue.queueEvent(event, snapshot);
     }
 
     @Override
     protected void finalize() throws Throwable {
-        // stop our event queue if we had to create one
-        if (queue != null) {
-            queue.stop();
-        }
+        // stop our event queue
+        queue.stop();
         connectionListeners.clear();
         super.finalize();
     }
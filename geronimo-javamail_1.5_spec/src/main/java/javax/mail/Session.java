@@ -34,11 +34,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.geronimo.mail.MailProviderRegistry;
 import org.apache.geronimo.osgi.locator.ProviderLocator;
@@ -58,7 +60,7 @@ import org.apache.geronimo.osgi.locator.ProviderLocator;
  */
 public final class Session {
     private static final Class[] PARAM_TYPES = {Session.class, URLName.class};
-    private static final WeakHashMap addressMapsByClassLoader = new WeakHashMap();
+    private static final ClassLoaderCache<Map> addressMapsByClassLoader = new ClassLoaderCache<Map>();
     private static Session DEFAULT_SESSION;
 
     private final Map passwordAuthentications = new HashMap();
@@ -67,8 +69,10 @@ public final class Session {
     private final Authenticator authenticator;
     private boolean debug;
     private PrintStream debugOut = System.out;
+    // connections kept for reuse by Transport.send(), created on first use
+    private TransportPool transportPool;
 
-    private static final WeakHashMap providersByClassLoader = new WeakHashMap();
+    private static final ClassLoaderCache<ProviderInfo> providersByClassLoader = new ClassLoaderCache<ProviderInfo>();
 
     /**
      * No public constrcutor allowed.
@@ -250,7 +254,7 @@ public final class Session {
      */
     public void setProvider(final Provider provider) throws NoSuchProviderException {
         final ProviderInfo info = getProviderInfo();
-        info.byProtocol.put(provider.getProtocol(), provider);
+        info.setProvider(provider);
     }
 
     /**
@@ -455,7 +459,7 @@ public final class Session {
      */
     public synchronized void addProvider(final Provider provider) {
         final ProviderInfo info = getProviderInfo();
-        info.addProvider(provider);
+        info.addApplicationProvider(provider);
     }
 
 
@@ -481,6 +485,20 @@ public final class Session {
     }
 
 
+    /**
+     * Return the pool of reusable transport connections for this session,
+     * or null if pooling is not enabled by the "mail.transport.pool" property.
+     *
+     * @return The session transport pool, or null.
+     */
+    synchronized TransportPool getTransportPool() {
+        if (transportPool == null && Boolean.valueOf(properties.getProperty(TransportPool.MAIL_TRANSPORT_POOL)).booleanValue()) {
+            transportPool = new TransportPool(this);
+        }
+        return transportPool;
+    }
+
+
     private Service getService(final Provider provider, URLName name) throws NoSuchProviderException {
         try {
             if (name == null) {
@@ -508,20 +526,37 @@ public final class Session {
 
     private ProviderInfo getProviderInfo() {
         final ClassLoader cl = getClassLoader();
-        synchronized (providersByClassLoader) {
-            ProviderInfo info = (ProviderInfo) providersByClassLoader.get(cl);
-            if (info == null) {
-                info = loadProviders(cl);
+        // the provider information is reloaded whenever the OSGi provider registry changes
+        final ClassLoaderCache.Slot<ProviderInfo> slot = providersByClassLoader.getSlot(cl, MailProviderRegistry.getGeneration());
+        ProviderInfo info = slot.value;
+        if (info == null) {
+            synchronized (slot) {
+                info = slot.value;
+                if (info == null) {
+                    info = loadProviders(cl);
+                    // keep any changes made through addProvider() or setProvider() before the reload
+                    if (slot.previous != null) {
+                        info.inherit(slot.previous);
+                    }
+                    slot.setValue(info);
+                }
             }
-            return info;
         }
+        return info;
     }
 
     private Map getAddressMap() {
         final ClassLoader cl = getClassLoader();
-        Map addressMap = (Map)addressMapsByClassLoader.get(cl);
+        final ClassLoaderCache.Slot<Map> slot = addressMapsByClassLoader.getSlot(cl, 0);
+        Map addressMap = slot.value;
         if (addressMap == null) {
-            addressMap = loadAddressMap(cl);
+            synchronized (slot) {
+                addressMap = slot.value;
+                if (addressMap == null) {
+                    addressMap = loadAddressMap(cl);
+                    slot.setValue(addressMap);
+                }
+            }
         }
         return addressMap;
     }
@@ -545,6 +580,10 @@ public final class Session {
             else {
                 cl = this.getClass().getClassLoader();
             }
+            // loaded by the bootstrap loader, so fall back to the system loader
+            if (cl == null) {
+                cl = ClassLoader.getSystemClassLoader();
+            }
         }
         return cl;
     }
@@ -661,9 +700,6 @@ public final class Session {
             // ignore
         }
 
-        // make sure this is added to the global map.
-        providersByClassLoader.put(cl, info);
-
         return info;
     }
 
@@ -742,9 +778,6 @@ public final class Session {
         // just use Properties.load() to read in the files.
         final Properties addressMap = new Properties();
 
-        // add this to the tracking map.
-        addressMapsByClassLoader.put(cl, addressMap);
-
         // NOTE:  We are reading these resources in reverse order of what's cited above.  This allows
         // user defined entries to overwrite default entries if there are similarly named items.
 
@@ -825,7 +858,9 @@ public final class Session {
             addressMap.put("rfc822", "smtp");
         }
 
-        return addressMap;
+        // the map is shared by all sessions using this class loader, so it needs to be safe
+        // for concurrent use without a global lock.
+        return new ConcurrentHashMap(addressMap);
     }
 
     /**
@@ -839,22 +874,38 @@ public final class Session {
 
 
     private static class ProviderInfo {
-        private final Map byClassName = new HashMap();
-        private final Map byProtocol = new HashMap();
-        private final List all = new ArrayList();
+        private final ConcurrentHashMap byClassName = new ConcurrentHashMap();
+        private final ConcurrentHashMap byProtocol = new ConcurrentHashMap();
+        private final List all = new CopyOnWriteArrayList();
+        // the changes made by the application, which survive a reload of the provider resources
+        private final List added = new ArrayList();
+        private final Map defaults = new HashMap();
 
         public void addProvider(final Provider provider) {
-            final String className = provider.getClassName();
+            byClassName.putIfAbsent(provider.getClassName(), provider);
+            byProtocol.putIfAbsent(provider.getProtocol(), provider);
+            all.add(provider);
+        }
 
-            if (!byClassName.containsKey(className)) {
-                byClassName.put(className, provider);
-            }
+        public synchronized void addApplicationProvider(final Provider provider) {
+            addProvider(provider);
+            added.add(provider);
+        }
+
+        public synchronized void setProvider(final Provider provider) {
+            byProtocol.put(provider.getProtocol(), provider);
+            defaults.put(provider.getProtocol(), provider);
+        }
 
-            final String protocol = provider.getProtocol();
-            if (!byProtocol.containsKey(protocol)) {
-                byProtocol.put(protocol, provider);
+        public synchronized void inherit(final ProviderInfo other) {
+            synchronized (other) {
+                for (int i = 0; i < other.added.size(); i++) {
+                    addApplicationProvider((Provider)other.added.get(i));
+                }
+                for (final Iterator i = other.defaults.values().iterator(); i.hasNext();) {
+                    setProvider((Provider)i.next());
+                }
             }
-            all.add(provider);
         }
     }
 }
@@ -19,7 +19,6 @@
 
 package javax.mail;
 
-import java.util.Vector;
 
 import javax.mail.event.FolderEvent;
 import javax.mail.event.FolderListener;
@@ -33,8 +32,8 @@ import javax.mail.event.StoreListener;
  */
 public abstract class Store extends Service {
     private static final Folder[] FOLDER_ARRAY = new Folder[0];
-    private final Vector folderListeners = new Vector(2);
-    private final Vector storeListeners = new Vector(2);
+    private final ListenerList folderListeners = new ListenerList();
+    private final ListenerList storeListeners = new ListenerList();
 
     /**
      * Constructor specifying session and url of this store.
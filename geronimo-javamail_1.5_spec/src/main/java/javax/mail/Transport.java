@@ -20,22 +20,32 @@
 package javax.mail;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.event.TransportEvent;
 import javax.mail.event.TransportListener;
 
+import org.apache.geronimo.mail.util.MailExecutor;
+import org.apache.geronimo.mail.util.SessionUtil;
+
 /**
  * Abstract class modeling a message transport.
  *
  * @version $Rev$ $Date$
  */
 public abstract class Transport extends Service {
+    // session properties controlling concurrent dispatch for the static send methods
+    private static final String MAIL_TRANSPORT_PARALLEL = "mail.transport.parallel";
+    private static final String MAIL_TRANSPORT_PARALLEL_THREADS = "mail.transport.parallel.threads";
+    private static final int DEFAULT_PARALLEL_THREADS = 4;
+
     /**
      * Send a message to all recipient addresses the message contains (as returned by {@link Message#getAllRecipients()})
      * using message transports appropriate for each address. Message addresses are checked during submission,
@@ -73,7 +83,7 @@ public abstract class Transport extends Service {
         }
         
         final Session session = message.session;
-        final Map<Transport, List<Address>> msgsByTransport = new HashMap<Transport, List<Address>>();
+        final Map<Transport, List<Address>> msgsByTransport = new LinkedHashMap<Transport, List<Address>>();
         for (int i = 0; i < addresses.length; i++) {
             final Address address = addresses[i];
             final Transport transport = session.getTransport(address);
@@ -87,6 +97,25 @@ public abstract class Transport extends Service {
 
         message.saveChanges();
 
+        // send to each of the transports, either one after the other or concurrently.  The
+        // results are held in transport order, so the failure information is merged in the
+        // same order either way.
+        final TransportPool pool = session.getTransportPool();
+        final List<SendTask> tasks = new ArrayList<SendTask>(msgsByTransport.size());
+        for (final Iterator<Entry<Transport, List<Address>>> i = msgsByTransport.entrySet().iterator(); i.hasNext();) {
+            final Entry<Transport, List<Address>> entry = i.next();
+            tasks.add(new SendTask(entry.getKey(), message, entry.getValue(), user, password, pool));
+        }
+
+        if (tasks.size() > 1 && SessionUtil.getBooleanProperty(session, MAIL_TRANSPORT_PARALLEL, false)) {
+            sendParallel(session, tasks);
+        }
+        else {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).run();
+            }
+        }
+
         // Since we might be sending to multiple protocols, we need to catch and process each exception
         // when we send and then throw a new SendFailedException when everything is done.  Unfortunately, this
         // also means unwrapping the information in any SendFailedExceptions we receive and building
@@ -96,68 +125,51 @@ public abstract class Transport extends Service {
         final List<Address> unsentAddresses = new ArrayList<Address>();
         final List<Address> invalidAddresses = new ArrayList<Address>();
 
-
-        for (final Iterator<Entry<Transport, List<Address>>> i = msgsByTransport.entrySet().iterator(); i.hasNext();) {
-            final Entry<Transport, List<Address>> entry = i.next();
-            final Transport transport = entry.getKey();
-            final List<Address> addrs = entry.getValue();
-            try {
-                // we MUST connect to the transport before attempting to send.
-                if(user != null) {
-                    transport.connect(user, password);
-                } else {
-                    transport.connect();
-                }
-                transport.sendMessage(message, addrs.toArray(new Address[addrs.size()]));
+        for (int i = 0; i < tasks.size(); i++) {
+            final SendTask task = tasks.get(i);
+            final MessagingException e = task.failure;
+            if (e == null) {
                 // if we have to throw an exception because of another failure, these addresses need to
                 // be in the valid list.  Since we succeeded here, we can add these now.
-                sentAddresses.addAll(addrs);
-            } catch (final SendFailedException e) {
+                sentAddresses.addAll(task.addresses);
+                continue;
+            }
+
+            // add this to our exception chain
+            if (chainedException == null) {
+                chainedException = e;
+            }
+            else {
+                chainedException.setNextException(e);
+            }
+
+            if (e instanceof SendFailedException) {
                 // a true send failure.  The exception contains a wealth of information about
                 // the failures, including a potential chain of exceptions explaining what went wrong.  We're
                 // going to send a new one of these, so we need to merge the information.
-
-                // add this to our exception chain
-                if (chainedException == null) {
-                    chainedException = e;
-                }
-                else {
-                    chainedException.setNextException(e);
-                }
+                final SendFailedException sendFailure = (SendFailedException)e;
 
                 // now extract each of the address categories from
-                Address[] exAddrs = e.getValidSentAddresses();
+                Address[] exAddrs = sendFailure.getValidSentAddresses();
                 if (exAddrs != null) {
                     for (int j = 0; j < exAddrs.length; j++) {
                         sentAddresses.add(exAddrs[j]);
                     }
                 }
 
-                exAddrs = e.getValidUnsentAddresses();
+                exAddrs = sendFailure.getValidUnsentAddresses();
                 if (exAddrs != null) {
                     for (int j = 0; j < exAddrs.length; j++) {
                         unsentAddresses.add(exAddrs[j]);
                     }
                 }
 
-                exAddrs = e.getInvalidAddresses();
+                exAddrs = sendFailure.getInvalidAddresses();
                 if (exAddrs != null) {
                     for (int j = 0; j < exAddrs.length; j++) {
                         invalidAddresses.add(exAddrs[j]);
                     }
                 }
-
-            } catch (final MessagingException e) {
-                // add this to our exception chain
-                if (chainedException == null) {
-                    chainedException = e;
-                }
-                else {
-                    chainedException.setNextException(e);
-                }
-            }
-            finally {
-                transport.close();
             }
         }
 
@@ -180,6 +192,198 @@ public abstract class Transport extends Service {
         }
     }
 
+
+    /**
+     * Run a set of send tasks concurrently.  The tasks are handed out in
+     * order to the calling thread and to helpers on the shared
+     * {@link MailExecutor} pool, with at most
+     * "mail.transport.parallel.threads" of them sending at once.  This
+     * returns once all of the tasks have completed.
+     * <p/>
+     * The TransportEvents raised while the messages are being sent are
+     * held back until every send has finished.  They are then dispatched
+     * on the calling thread, one recipient group after another in the
+     * order the groups were formed, so listeners see the same order on
+     * every send however the sends themselves overlapped.
+     *
+     * @param session The session used for the send.
+     * @param tasks   The tasks to run.
+     *
+     * @exception MessagingException
+     */
+    private static void sendParallel(final Session session, final List<SendTask> tasks) throws MessagingException {
+        final int threads = Math.max(1, Math.min(tasks.size(),
+                SessionUtil.getIntProperty(session, MAIL_TRANSPORT_PARALLEL_THREADS, DEFAULT_PARALLEL_THREADS)));
+
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable sender = new Runnable() {
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < tasks.size()) {
+                    final SendTask task = tasks.get(index);
+                    task.deferEvents = true;
+                    task.run();
+                }
+            }
+        };
+
+        final List<FutureTask<Object>> helpers = new ArrayList<FutureTask<Object>>(threads - 1);
+        for (int i = 1; i < threads; i++) {
+            final FutureTask<Object> helper = new FutureTask<Object>(sender, null);
+            helpers.add(helper);
+            MailExecutor.execute(helper);
+        }
+        try {
+            sender.run();
+
+            // wait for the sends the helpers picked up.  A helper that has not started yet is
+            // run here, and just finds there is nothing left to send.
+            for (int i = 0; i < helpers.size(); i++) {
+                try {
+                    MailExecutor.join(helpers.get(i));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("Interrupted while sending message", e);
+                } catch (final ExecutionException e) {
+                    // the tasks capture their own exceptions, so this is an unchecked failure
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException)cause;
+                    }
+                    throw (Error)cause;
+                }
+            }
+
+            // everything is sent, so the events can go out in group order
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).dispatchEvents();
+            }
+        } finally {
+            // if we're leaving early, stop any helpers that have not started.  The sends already
+            // in progress are left to finish, since interrupting them could break the message source.
+            for (int i = 0; i < helpers.size(); i++) {
+                helpers.get(i).cancel(false);
+            }
+        }
+    }
+
+
+    /**
+     * A message send over a single transport, capturing the
+     * outcome of the send for later processing.
+     */
+    private static final class SendTask implements Runnable {
+        final Transport transport;
+        final Message message;
+        final List<Address> addresses;
+        final String user;
+        final String password;
+        // the session connection pool, if pooling is enabled
+        final TransportPool pool;
+        // the exception raised by the send attempt, if any
+        MessagingException failure;
+        // if true, the transport events raised by the send are held for dispatchEvents()
+        boolean deferEvents;
+        // the events held back from the send
+        List<DeferredEvent> events;
+
+        SendTask(final Transport transport, final Message message, final List<Address> addresses, final String user, final String password, final TransportPool pool) {
+            this.transport = transport;
+            this.message = message;
+            this.addresses = addresses;
+            this.user = user;
+            this.password = password;
+            this.pool = pool;
+        }
+
+        public void run() {
+            try {
+                if (pool == null) {
+                    try {
+                        connect(transport);
+                        sendMessage(transport);
+                    } finally {
+                        transport.close();
+                    }
+                }
+                else {
+                    sendPooled();
+                }
+            } catch (final MessagingException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Send using a pooled connection if one is available.  The connection is
+         * returned to the pool for reuse if the send completed normally, or if it
+         * only failed because of the recipients.  Any other failure might have
+         * left the connection unusable, so it is discarded.
+         */
+        private void sendPooled() throws MessagingException {
+            final TransportPool.Key key = TransportPool.createKey(transport, user, password);
+            Transport connection = pool.borrow(key);
+            boolean reuse = false;
+            try {
+                if (connection == null) {
+                    connection = transport;
+                    connect(connection);
+                }
+                try {
+                    sendMessage(connection);
+                } catch (final SendFailedException e) {
+                    // the server rejected some of the addresses, but the connection is still good
+                    reuse = true;
+                    throw e;
+                }
+                reuse = true;
+            } finally {
+                pool.release(key, connection == null ? transport : connection, reuse);
+            }
+        }
+
+        /**
+         * Send the message over a connected transport, holding back its
+         * transport events if they are to be dispatched later.
+         */
+        private void sendMessage(final Transport connection) throws MessagingException {
+            if (!deferEvents) {
+                connection.sendMessage(message, addresses.toArray(new Address[addresses.size()]));
+                return;
+            }
+            final List<DeferredEvent> deferred = new ArrayList<DeferredEvent>();
+            connection.deferredEvents = deferred;
+            try {
+                connection.sendMessage(message, addresses.toArray(new Address[addresses.size()]));
+            } finally {
+                connection.deferredEvents = null;
+                events = deferred;
+            }
+        }
+
+        /**
+         * Dispatch the events held back from the send on the calling thread.
+         */
+        void dispatchEvents() {
+            if (events == null) {
+                return;
+            }
+            for (int i = 0; i < events.size(); i++) {
+                events.get(i).dispatch();
+            }
+            events = null;
+        }
+
+        private void connect(final Transport connection) throws MessagingException {
+            // we MUST connect to the transport before attempting to send.
+            if (user != null) {
+                connection.connect(user, password);
+            } else {
+                connection.connect();
+            }
+        }
+    }
+
     
     /**
      * Send a message.  The message will be sent to all recipient
@@ -263,7 +467,9 @@ public abstract class Transport extends Service {
      */
     public abstract void sendMessage(Message message, Address[] addresses) throws MessagingException;
 
-    private final Vector<TransportListener> transportListeners = new Vector<TransportListener>();
+    private final ListenerList transportListeners = new ListenerList();
+    // set while a parallel send holds back this transport's events, so they can be dispatched in order
+    private volatile List<DeferredEvent> deferredEvents;
 
     public void addTransportListener(final TransportListener listener) {
         transportListeners.add(listener);
@@ -274,6 +480,38 @@ public abstract class Transport extends Service {
     }
 
     protected void notifyTransportListeners(final int type, final Address[] validSent, final Address[] validUnsent, final Address[] invalid, final Message message) {
-        queueEvent(new TransportEvent(this, type, validSent, validUnsent, invalid, message), transportListeners);
+        final TransportEvent event = new TransportEvent(this, type, validSent, validUnsent, invalid, message);
+        final List<DeferredEvent> deferred = deferredEvents;
+        if (deferred != null) {
+            // the listeners are the ones registered now, not when the event is dispatched
+            deferred.add(new DeferredEvent(event, transportListeners.getListeners()));
+            return;
+        }
+        queueEvent(event, transportListeners);
+    }
+
+
+    /**
+     * A transport event held back from a parallel send, with
+     * the listeners it is to be dispatched to.
+     */
+    private static final class DeferredEvent {
+        final TransportEvent event;
+        final Object[] listeners;
+
+        DeferredEvent(final TransportEvent event, final Object[] listeners) {
+            this.event = event;
+            this.listeners = listeners;
+        }
+
+        void dispatch() {
+            for (int i = 0; i < listeners.length; i++) {
+                try {
+                    event.dispatch(listeners[i]);
+                } catch (final Throwable e) {
+                    // just eat these, as the event queue does
+                }
+            }
+        }
     }
 }                                                                                            
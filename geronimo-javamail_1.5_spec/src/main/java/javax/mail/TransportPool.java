@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.geronimo.mail.util.MailExecutor;
+import org.apache.geronimo.mail.util.SessionUtil;
+
+/**
+ * A pool of connected Transport instances owned by a Session, used by the
+ * static Transport.send() methods to avoid a new connection handshake for
+ * every message.  Connections are pooled by transport class, URLName and
+ * credentials.  The pool is enabled with the "mail.transport.pool" session
+ * property, and tuned with:
+ * <ul>
+ * <li>mail.transport.pool.maxidle - the idle connections kept per key (default 4)</li>
+ * <li>mail.transport.pool.maxperkey - the connections that may be in use per key
+ *     at one time (default 8, 0 for no limit)</li>
+ * <li>mail.transport.pool.idletimeout - the milliseconds an idle connection is
+ *     kept before it is closed (default 60000)</li>
+ * <li>mail.transport.pool.timeout - the milliseconds a sender waits for a
+ *     connection when the key is at its limit (default 60000, 0 to wait forever)</li>
+ * </ul>
+ * Idle connections are evicted as the pool is used, and by a sweep
+ * scheduled on the shared {@link MailExecutor} while the pool holds idle
+ * connections, so a pool that is no longer used does not keep its
+ * connections open.
+ *
+ * @version $Rev$ $Date$
+ */
+final class TransportPool {
+    static final String MAIL_TRANSPORT_POOL = "mail.transport.pool";
+    static final String MAIL_TRANSPORT_POOL_MAXIDLE = "mail.transport.pool.maxidle";
+    static final String MAIL_TRANSPORT_POOL_MAXPERKEY = "mail.transport.pool.maxperkey";
+    static final String MAIL_TRANSPORT_POOL_IDLETIMEOUT = "mail.transport.pool.idletimeout";
+    static final String MAIL_TRANSPORT_POOL_TIMEOUT = "mail.transport.pool.timeout";
+
+    private final int maxIdle;
+    private final int maxPerKey;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+    // true while an idle connection sweep is scheduled
+    private boolean sweepScheduled;
+
+    // the pooled connections for each key
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+    TransportPool(final Session session) {
+        maxIdle = SessionUtil.getIntProperty(session, MAIL_TRANSPORT_POOL_MAXIDLE, 4);
+        maxPerKey = SessionUtil.getIntProperty(session, MAIL_TRANSPORT_POOL_MAXPERKEY, 8);
+        idleTimeout = SessionUtil.getIntProperty(session, MAIL_TRANSPORT_POOL_IDLETIMEOUT, 60000);
+        borrowTimeout = SessionUtil.getIntProperty(session, MAIL_TRANSPORT_POOL_TIMEOUT, 60000);
+    }
+
+    /**
+     * Create the key a transport is pooled under.
+     *
+     * @param transport The unconnected transport obtained from the session.
+     * @param user      The user name used to connect (may be null).
+     * @param password  The password used to connect (may be null).
+     *
+     * @return The pool key.
+     */
+    static Key createKey(final Transport transport, final String user, final String password) {
+        final URLName url = transport.getURLName();
+        return new Key(transport.getClass().getName(), url == null ? null : url.toString(), user, password);
+    }
+
+    /**
+     * Obtain a connected transport for the given key.  This blocks if the
+     * key already has the maximum number of connections in use, until
+     * one is released or the pool timeout expires.
+     *
+     * @param key    The pool key.
+     *
+     * @return A connected transport, or null if there is no idle connection
+     *         and the caller should connect one of its own.
+     * @exception MessagingException if no connection became available in time.
+     */
+    Transport borrow(final Key key) throws MessagingException {
+        final List<Transport> stale = new ArrayList<Transport>();
+        Transport transport = null;
+        try {
+            synchronized (this) {
+                final Entry entry = getEntry(key);
+                final long deadline = System.currentTimeMillis() + borrowTimeout;
+                while (maxPerKey > 0 && entry.active >= maxPerKey) {
+                    try {
+                        if (borrowTimeout <= 0) {
+                            wait();
+                        }
+                        else {
+                            final long remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                throw new MessagingException("Timed out waiting for a pooled connection");
+                            }
+                            wait(remaining);
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException("Interrupted waiting for a pooled connection", e);
+                    }
+                }
+                evictIdle(entry, stale);
+                // take the most recently used connection, which is the least likely to have been dropped
+                while (!entry.idle.isEmpty()) {
+                    final IdleTransport candidate = entry.idle.removeLast();
+                    if (candidate.transport.isConnected()) {
+                        transport = candidate.transport;
+                        break;
+                    }
+                    stale.add(candidate.transport);
+                }
+                entry.active++;
+            }
+        } finally {
+            closeAll(stale);
+        }
+        return transport;
+    }
+
+    /**
+     * Return a transport to the pool once the caller is finished with it.
+     *
+     * @param key       The key the transport was borrowed with.
+     * @param transport The transport.  This will be closed rather than pooled
+     *                  if it is no longer connected, or if reuse is false.
+     * @param reuse     Indicates whether the connection is in a state that can be reused.
+     */
+    void release(final Key key, final Transport transport, final boolean reuse) {
+        final List<Transport> stale = new ArrayList<Transport>();
+        synchronized (this) {
+            final Entry entry = getEntry(key);
+            entry.active--;
+            evictIdle(entry, stale);
+            if (reuse && transport.isConnected() && entry.idle.size() < maxIdle) {
+                entry.idle.addLast(new IdleTransport(transport, System.currentTimeMillis()));
+                scheduleSweep();
+            }
+            else {
+                stale.add(transport);
+            }
+            if (entry.active == 0 && entry.idle.isEmpty()) {
+                entries.remove(key);
+            }
+            notifyAll();
+        }
+        closeAll(stale);
+    }
+
+    private Entry getEntry(final Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Remove the connections that have been idle too long.  The idle list
+     * is in return order, so the oldest connections are at the front.
+     */
+    private void evictIdle(final Entry entry, final List<Transport> stale) {
+        final long expired = System.currentTimeMillis() - idleTimeout;
+        for (final Iterator<IdleTransport> i = entry.idle.iterator(); i.hasNext();) {
+            final IdleTransport idle = i.next();
+            if (idle.returned > expired) {
+                break;
+            }
+            i.remove();
+            stale.add(idle.transport);
+        }
+    }
+
+    /**
+     * Make sure a sweep is pending while there are idle connections.
+     */
+    private void scheduleSweep() {
+        if (!sweepScheduled) {
+            sweepScheduled = true;
+            MailExecutor.schedule(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            }, Math.max(idleTimeout, 1));
+        }
+    }
+
+    /**
+     * Close all of the connections that have been idle too long.  This
+     * is scheduled again for as long as any idle connections remain.
+     */
+    void sweep() {
+        final List<Transport> stale = new ArrayList<Transport>();
+        synchronized (this) {
+            sweepScheduled = false;
+            boolean idleRemaining = false;
+            for (final Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+                final Entry entry = i.next().getValue();
+                evictIdle(entry, stale);
+                if (entry.active == 0 && entry.idle.isEmpty()) {
+                    i.remove();
+                }
+                idleRemaining |= !entry.idle.isEmpty();
+            }
+            if (idleRemaining) {
+                scheduleSweep();
+            }
+        }
+        closeAll(stale);
+    }
+
+    /**
+     * Close discarded connections.  This is done outside of the pool lock,
+     * since closing a connection can involve network traffic.
+     */
+    private static void closeAll(final List<Transport> stale) {
+        for (int i = 0; i < stale.size(); i++) {
+            try {
+                stale.get(i).close();
+            } catch (final MessagingException e) {
+                // we're done with this one anyway
+            }
+        }
+    }
+
+
+    /**
+     * The identity of a pooled connection.
+     */
+    static final class Key {
+        private final String className;
+        private final String url;
+        private final String user;
+        private final String password;
+
+        Key(final String className, final String url, final String user, final String password) {
+            this.className = className;
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key)o;
+            return className.equals(other.className) && equals(url, other.url)
+                && equals(user, other.user) && equals(password, other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = className.hashCode();
+            hash = hash * 31 + (url == null ? 0 : url.hashCode());
+            hash = hash * 31 + (user == null ? 0 : user.hashCode());
+            return hash;
+        }
+
+        private static boolean equals(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+
+    /**
+     * The pool state for a single key.
+     */
+    private static final class Entry {
+        // the number of connections currently borrowed
+        int active;
+        // the idle connections, oldest first
+        final LinkedList<IdleTransport> idle = new LinkedList<IdleTransport>();
+    }
+
+
+    private static final class IdleTransport {
+        final Transport transport;
+        final long returned;
+
+        IdleTransport(final Transport transport, final long returned) {
+            this.transport = transport;
+            this.returned = returned;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.geronimo.mail.util.Base64Encoder;
+
+/**
+ * Decodes RFC 2047 encoded-words.  The encoded text is decoded straight
+ * from the source string into a byte buffer, then converted with a
+ * CharsetDecoder into a char buffer.  Each thread keeps its own buffers
+ * and the decoder for the charset it used last, so decoding a word
+ * allocates nothing beyond the resulting String in the common case.
+ *
+ * @version $Rev$ $Date$
+ */
+final class EncodedWordDecoder {
+    // the Base64 decoder keeps no state, so it can be shared.
+    private static final Base64Encoder base64 = new Base64Encoder();
+
+    // buffers larger than this are not kept between words
+    private static final int MAX_RETAINED_SIZE = 8192;
+
+    private static final ThreadLocal<EncodedWordDecoder> decoders = new ThreadLocal<EncodedWordDecoder>() {
+        @Override
+        protected EncodedWordDecoder initialValue() {
+            return new EncodedWordDecoder();
+        }
+    };
+
+    // the encoded characters, for Base64 decoding
+    private byte[] encoded = new byte[128];
+    // the decoded bytes, and a buffer wrapping them
+    private byte[] decoded = new byte[128];
+    private ByteBuffer decodedBuffer = ByteBuffer.wrap(decoded);
+    // the characters produced by the charset decoder
+    private CharBuffer chars = CharBuffer.allocate(128);
+
+    // the charset used for the last word, and a decoder for it
+    private String charsetName;
+    private CharsetDecoder charsetDecoder;
+
+    private EncodedWordDecoder() {
+    }
+
+    /**
+     * Decode an encoded-word contained in a section of a string.
+     * This has the syntax:
+     *
+     * encoded-word = "=?" charset "?" encoding "?" encoded-text "?="
+     *
+     * @param text   The string containing the word.
+     * @param start  The start of the word.
+     * @param end    The end of the word.
+     *
+     * @return The decoded word.
+     * @exception ParseException if this is not an encoded word.
+     * @exception UnsupportedEncodingException if the charset or encoding is not supported, or
+     *                   the encoded text is not valid.
+     */
+    static String decode(final String text, final int start, final int end) throws ParseException, UnsupportedEncodingException {
+        final EncodedWordDecoder decoder = decoders.get();
+        try {
+            return decoder.decodeWord(text, start, end);
+        } finally {
+            decoder.trim();
+        }
+    }
+
+    private String decodeWord(final String text, final int start, final int end) throws ParseException, UnsupportedEncodingException {
+        // encoded words start with the characters "=?".  If this not an encoded word, we throw a
+        // ParseException for the caller.
+        if (!text.startsWith("=?", start) || end - start < 2) {
+            throw new ParseException("Invalid RFC 2047 encoded-word: " + text.substring(start, end));
+        }
+
+        final int charsetPos = indexOf(text, '?', start + 2, end);
+        if (charsetPos == -1) {
+            throw new ParseException("Missing charset in RFC 2047 encoded-word: " + text.substring(start, end));
+        }
+
+        // now pull out the encoding token the same way.
+        final int encodingPos = indexOf(text, '?', charsetPos + 1, end);
+        if (encodingPos == -1) {
+            throw new ParseException("Missing encoding in RFC 2047 encoded-word: " + text.substring(start, end));
+        }
+
+        // and finally the encoded text.
+        int encodedTextPos = text.indexOf("?=", encodingPos + 1);
+        if (encodedTextPos + 2 > end) {
+            encodedTextPos = -1;
+        }
+        if (encodedTextPos == -1) {
+            throw new ParseException("Missing encoded text in RFC 2047 encoded-word: " + text.substring(start, end));
+        }
+
+        // seems a bit silly to encode a null string, but easy to deal with.
+        if (encodedTextPos == encodingPos + 1) {
+            return "";
+        }
+
+        // the encoding name is a single character, in either case.
+        final char encoding = encodingPos == charsetPos + 2 ? Character.toUpperCase(text.charAt(charsetPos + 1)) : 0;
+        final int length;
+        if (encoding == 'B') {
+            length = decodeBase64(text, encodingPos + 1, encodedTextPos);
+        }
+        else if (encoding == 'Q') {
+            length = decodeQuotedPrintable(text, encodingPos + 1, encodedTextPos);
+        }
+        else {
+            throw new UnsupportedEncodingException("Unknown RFC 2047 encoding: " + text.substring(charsetPos + 1, encodingPos));
+        }
+
+        return decodeCharacters(text, start + 2, charsetPos, length);
+    }
+
+    /**
+     * Decode Base64 encoded text into the decoded byte buffer.
+     *
+     * @return The number of bytes decoded.
+     */
+    private int decodeBase64(final String text, final int start, final int end) {
+        final int length = end - start;
+        if (encoded.length < length) {
+            encoded = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            final char ch = text.charAt(start + i);
+            // characters outside of the byte range can't be part of the encoding, so they get skipped
+            encoded[i] = ch < 256 ? (byte)ch : (byte)' ';
+        }
+        ensureDecodedCapacity((length / 4) * 3 + 3);
+        return base64.decode(encoded, 0, length, decoded, 0);
+    }
+
+    /**
+     * Decode "Q" encoded text into the decoded byte buffer.
+     *
+     * @return The number of bytes decoded.
+     * @exception UnsupportedEncodingException if an encoded character is truncated.
+     */
+    private int decodeQuotedPrintable(final String text, final int start, final int end) throws UnsupportedEncodingException {
+        ensureDecodedCapacity(end - start);
+        int count = 0;
+        int i = start;
+        while (i < end) {
+            final char ch = text.charAt(i++);
+            // space characters were translated to '_' on encode, so we need to translate them back.
+            if (ch == '_') {
+                decoded[count++] = ' ';
+            }
+            else if (ch == '=') {
+                // we found an encoded character.  Reduce the 3 char sequence to one.
+                // but first, make sure we have two characters to work with.
+                if (i + 1 >= end) {
+                    throw new UnsupportedEncodingException("Invalid RFC 2047 encoding");
+                }
+                final int high = Character.digit(text.charAt(i++), 16);
+                final int low = Character.digit(text.charAt(i++), 16);
+                // invalid digits are treated as zero rather than rejecting the entire word
+                decoded[count++] = (byte)((Math.max(high, 0) << 4) | Math.max(low, 0));
+            }
+            else {
+                // simple character, just copy it.  Anything outside of ascii is invalid here.
+                decoded[count++] = ch < 128 ? (byte)ch : (byte)'?';
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert the decoded bytes into a String using the word's charset.
+     *
+     * @param text         The source text.
+     * @param charsetStart The start of the charset name.
+     * @param charsetEnd   The end of the charset name.
+     * @param length       The number of decoded bytes.
+     *
+     * @return The decoded String.
+     * @exception UnsupportedEncodingException
+     */
+    private String decodeCharacters(final String text, final int charsetStart, final int charsetEnd, final int length) throws UnsupportedEncodingException {
+        final int nameLength = charsetEnd - charsetStart;
+        // most headers use the same charset for every word, so we only look it up when it changes.
+        if (charsetName == null || charsetName.length() != nameLength
+                || !text.regionMatches(true, charsetStart, charsetName, 0, nameLength)) {
+            final Charset charset = MimeUtility.getCharset(text.substring(charsetStart, charsetEnd));
+            charsetDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            charsetName = text.substring(charsetStart, charsetEnd);
+        }
+
+        final int required = (int)(length * (double)charsetDecoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < required) {
+            chars = CharBuffer.allocate(required);
+        }
+
+        decodedBuffer.clear();
+        decodedBuffer.limit(length);
+        chars.clear();
+        charsetDecoder.reset();
+        CoderResult result = charsetDecoder.decode(decodedBuffer, chars, true);
+        if (!result.isOverflow()) {
+            result = charsetDecoder.flush(chars);
+        }
+        if (result.isOverflow()) {
+            // the size estimate should prevent this, but fall back on the simple conversion.
+            return new String(decoded, 0, length, charsetDecoder.charset());
+        }
+        return new String(chars.array(), 0, chars.position());
+    }
+
+    private void ensureDecodedCapacity(final int size) {
+        if (decoded.length < size) {
+            decoded = new byte[size];
+            decodedBuffer = ByteBuffer.wrap(decoded);
+        }
+    }
+
+    /**
+     * Release any unusually large buffers, so a single huge header
+     * doesn't pin memory to the thread.
+     */
+    private void trim() {
+        if (encoded.length > MAX_RETAINED_SIZE) {
+            encoded = new byte[128];
+        }
+        if (decoded.length > MAX_RETAINED_SIZE) {
+            decoded = new byte[128];
+            decodedBuffer = ByteBuffer.wrap(decoded);
+        }
+        if (chars.capacity() > MAX_RETAINED_SIZE) {
+            chars = CharBuffer.allocate(128);
+        }
+    }
+
+    private static int indexOf(final String text, final char ch, final int from, final int end) {
+        final int index = text.indexOf(ch, from);
+        return index < end ? index : -1;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer used to serialize a block of header lines, so the whole block
+ * can be written to the target with a single call.  Each thread keeps one
+ * buffer for reuse.  Header text is converted to bytes as ISO8859-1, with
+ * characters outside that range replaced by '?'.
+ *
+ * @version $Rev$ $Date$
+ */
+final class HeaderBlock {
+    private static final int INITIAL_SIZE = 1024;
+    // larger buffers are not kept for reuse
+    private static final int MAX_RETAINED_SIZE = 16384;
+
+    private static final ThreadLocal<HeaderBlock> CACHE = new ThreadLocal<HeaderBlock>() {
+        @Override
+        protected HeaderBlock initialValue() {
+            return new HeaderBlock();
+        }
+    };
+
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int length;
+    // true while the cached buffer is handed out
+    private boolean inUse;
+
+    private HeaderBlock() {
+    }
+
+    /**
+     * Get an empty buffer.  This must be handed back by
+     * calling {@link #release()} once the data has been written.
+     *
+     * @return A buffer for the current thread.
+     */
+    static HeaderBlock get() {
+        final HeaderBlock block = CACHE.get();
+        // a nested request gets a buffer of its own
+        if (block.inUse) {
+            return new HeaderBlock();
+        }
+        block.inUse = true;
+        return block;
+    }
+
+    /**
+     * Release the buffer for reuse.
+     */
+    void release() {
+        length = 0;
+        if (data.length > MAX_RETAINED_SIZE) {
+            data = new byte[INITIAL_SIZE];
+        }
+        inUse = false;
+    }
+
+    /**
+     * Append a string to the buffer.
+     *
+     * @param text   The text to add.
+     */
+    void append(final String text) {
+        final int size = text.length();
+        ensureCapacity(size);
+        final byte[] target = data;
+        int out = length;
+        for (int i = 0; i < size; i++) {
+            final char ch = text.charAt(i);
+            if (ch <= 0xff) {
+                target[out++] = (byte)ch;
+            }
+            else {
+                // a surrogate pair is a single unmappable character
+                if (Character.isHighSurrogate(ch) && i + 1 < size && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    i++;
+                }
+                target[out++] = (byte)'?';
+            }
+        }
+        length = out;
+    }
+
+    /**
+     * Append a CRLF line terminator.
+     */
+    void appendLineEnd() {
+        ensureCapacity(2);
+        data[length++] = '\r';
+        data[length++] = '\n';
+    }
+
+    /**
+     * Write the buffered data to a stream.
+     *
+     * @param out    The target stream.
+     *
+     * @exception IOException
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Get a view of the buffered data.  This is only valid
+     * until the buffer is released.
+     *
+     * @return A ByteBuffer wrapping the data.
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    private void ensureCapacity(final int required) {
+        if (length + required > data.length) {
+            final byte[] expanded = new byte[Math.max(data.length * 2, length + required)];
+            System.arraycopy(data, 0, expanded, 0, length);
+            data = expanded;
+        }
+    }
+}
@@ -20,12 +20,14 @@
 package javax.mail.internet;
 
 import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.mail.Address;
 import javax.mail.Session;
 
+import org.apache.geronimo.mail.util.SessionUtil;
+
 /**
  * A representation of an Internet email address as specified by RFC822 in
  * conjunction with a human-readable personal name that can be encoded as
@@ -37,6 +39,9 @@ import javax.mail.Session;
 public class InternetAddress extends Address implements Cloneable {
 	
 	private static final long serialVersionUID = -7507595530758302903L;
+
+    // the maximum number of parsed address lists kept for each validation level.  Zero disables the cache.
+    private static final String MIME_ADDRESS_CACHESIZE = "mail.mime.address.cachesize";
 	
     /**
      * The address in RFC822 format.
@@ -69,10 +74,13 @@ public class InternetAddress extends Address implements Cloneable {
     public InternetAddress(final String address, final boolean strict) throws AddressException {
         // use the parse method to process the address.  This has the wierd side effect of creating a new
         // InternetAddress instance to create an InternetAddress, but these are lightweight objects and
-        // we need access to multiple pieces of data from the parsing process.
-        final AddressParser parser = new AddressParser(address, strict ? AddressParser.STRICT : AddressParser.NONSTRICT);
-
-        final InternetAddress parsedAddress = parser.parseAddress();
+        // we need access to multiple pieces of data from the parsing process.  The common simple forms
+        // parse the same way at every level, so try those first.
+        InternetAddress parsedAddress = SimpleAddressParser.parseAddress(address);
+        if (parsedAddress == null) {
+            final AddressParser parser = new AddressParser(address, strict ? AddressParser.STRICT : AddressParser.NONSTRICT);
+            parsedAddress = parser.parseAddress();
+        }
         // copy the important information, which right now is just the address and
         // personal info.
         this.address = parsedAddress.address;
@@ -384,58 +392,17 @@ public class InternetAddress extends Address implements Cloneable {
      * <P/>
      * Finally, an attempt is made to convert the value obtained above to
      * an InternetAddress. If this fails, then null is returned.
+     * <P/>
+     * The result is cached for each session, and the host name is only
+     * looked up once.
      *
      * @param session used to obtain mail properties
      * @return an InternetAddress for the current user, or null if it cannot be determined
      */
     public static InternetAddress getLocalAddress(final Session session) {
-        String host = null;
-        String user = null;
-
-        // ok, we have several steps for resolving this.  To start with, we could have a from address
-        // configured already, which will be a full InternetAddress string.  If we don't have that, then
-        // we need to resolve a user and host to compose an address from.
-        if (session != null) {
-            final String address = session.getProperty("mail.from");
-            // if we got this, we can skip out now
-            if (address != null) {
-                try {
-                    return new InternetAddress(address);
-                } catch (final AddressException e) {
-                    // invalid address on the from...treat this as an error and return null.
-                    return null;
-                }
-            }
-
-            // now try for user and host information.  We have both session and system properties to check here.
-            // we'll just handle the session ones here, and check the system ones below if we're missing information.
-            user = session.getProperty("mail.user");
-            host = session.getProperty("mail.host");
-        }
-
-        try {
-
-            // if either user or host is null, then we check non-session sources for the information.
-            if (user == null) {
-                user = System.getProperty("user.name");
-            }
-
-            if (host == null) {
-                host = InetAddress.getLocalHost().getHostName();
-            }
-
-            if (user != null && host != null) {
-                // if we have both a user and host, we can create a local address
-                return new InternetAddress(user + '@' + host);
-            }
-        } catch (final AddressException e) {
-            // ignore
-        } catch (final UnknownHostException e) {
-            // ignore
-        } catch (final SecurityException e) {
-            // ignore
-        }
-        return null;
+        // the address is resolved once for each set of session settings, and the local host name
+        // is only looked up once.
+        return LocalIdentity.getInstance(session).getAddress();
     }
 
     /**
@@ -555,6 +522,46 @@ public class InternetAddress extends Address implements Cloneable {
      *                if address checking fails
      */
     private static InternetAddress[] parse(final String addresses, final int level) throws AddressException {
+        final int cacheSize = SessionUtil.getIntProperty(MIME_ADDRESS_CACHESIZE, 0);
+        if (cacheSize <= 0) {
+            return parseAddressList(addresses, level);
+        }
+
+        final ConcurrentMap<String, InternetAddress[]> cache = ParseCache.caches[level];
+        InternetAddress[] parsed = cache.get(addresses);
+        if (parsed == null) {
+            parsed = parseAddressList(addresses, level);
+            // keep this bounded.  Values that really are repeated will quickly be added back.
+            if (cache.size() >= cacheSize) {
+                cache.clear();
+            }
+            cache.put(addresses, parsed);
+        }
+
+        // the cached addresses are shared, so the caller gets copies it can modify
+        final InternetAddress[] result = new InternetAddress[parsed.length];
+        for (int i = 0; i < parsed.length; i++) {
+            result[i] = (InternetAddress)parsed[i].clone();
+        }
+        return result;
+    }
+
+    /**
+     * Parse an address list, using the single pass parser for the
+     * simple address forms and the full parser for anything else.
+     *
+     * @param addresses the string to parse
+     * @param level     The required strictness level.
+     *
+     * @return an array of InternetAddresses parsed from the string
+     * @throws AddressException
+     *                if address checking fails
+     */
+    private static InternetAddress[] parseAddressList(final String addresses, final int level) throws AddressException {
+        final InternetAddress[] parsed = SimpleAddressParser.parseAddressList(addresses);
+        if (parsed != null) {
+            return parsed;
+        }
         // create a parser and have it extract the list using the requested strictness leve.
         final AddressParser parser = new AddressParser(addresses, level);
         return parser.parseAddressList();
@@ -573,4 +580,17 @@ public class InternetAddress extends Address implements Cloneable {
         final AddressParser parser = new AddressParser(formatAddress(address), AddressParser.STRICT);
         parser.validateAddress();
     }
+
+    /**
+     * Holder for the parsed address list caches, one for each
+     * validation level, created on first use.
+     */
+    private static final class ParseCache {
+        @SuppressWarnings("unchecked")
+        static final ConcurrentMap<String, InternetAddress[]>[] caches = new ConcurrentMap[] {
+            new ConcurrentHashMap<String, InternetAddress[]>(),
+            new ConcurrentHashMap<String, InternetAddress[]>(),
+            new ConcurrentHashMap<String, InternetAddress[]>(),
+        };
+    }
 }
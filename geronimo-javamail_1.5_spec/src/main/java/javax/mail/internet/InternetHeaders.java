@@ -22,10 +22,16 @@ package javax.mail.internet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
 
 import javax.mail.Address;
 import javax.mail.Header;
@@ -38,7 +44,16 @@ import javax.mail.MessagingException;
  */
 public class InternetHeaders {
     // the list of headers (to preserve order);
-    protected List headers = new ArrayList();
+    protected List headers = new HeaderList(32);
+
+    // case-insensitive index over the headers list.  This maps the lower case
+    // header name to the matching headers, in the same order they appear in the list.
+    private Map<String, List<InternetHeader>> index;
+    // the headers list and its version when the index was last synchronized.  A subclass
+    // may change the list directly or replace it, and either one forces a rebuild.  A list
+    // that is not a HeaderList can't tell us when it changes, so it is reindexed on every use.
+    private List indexedList;
+    private int indexedVersion;
 
     /**
      * Create an empty InternetHeaders
@@ -91,6 +106,21 @@ public class InternetHeaders {
         load(in);
     }
 
+    /**
+     * Create a copy of another set of headers.  Each header entry
+     * is copied, so updates to either set do not affect the other.
+     *
+     * @param source The headers to copy.
+     */
+    InternetHeaders(final InternetHeaders source) {
+        final List sourceHeaders = source.headers;
+        headers = new HeaderList(sourceHeaders.size());
+        for (int i = 0; i < sourceHeaders.size(); i++) {
+            final Header header = (Header)sourceHeaders.get(i);
+            headers.add(new InternetHeader(header.getName(), header.getValue()));
+        }
+    }
+
     /**
      * Read and parse the supplied stream and add all headers to the current
      * set.
@@ -102,34 +132,41 @@ public class InternetHeaders {
      */
     public void load(final InputStream in) throws MessagingException {
         try {
-            final StringBuffer buffer = new StringBuffer(128);
-            String line;
-            // loop until we hit the end or a null line
-            while ((line = readLine(in)) != null) {
-                // lines beginning with white space get special handling
-                if (line.startsWith(" ") || line.startsWith("\t")) {
-                    // this gets handled using the logic defined by
-                    // the addHeaderLine method.  If this line is a continuation, but
-                    // there's nothing before it, just call addHeaderLine to add it
-                    // to the last header in the headers list
-                    if (buffer.length() == 0) {
-                        addHeaderLine(line);
+            final HeaderLineReader reader = new HeaderLineReader(in);
+            // the accumulated header, including any folded continuation lines
+            final StringBuilder buffer = new StringBuilder(128);
+            try {
+                // loop until we hit the end or a null line
+                while (reader.readLine()) {
+                    // lines beginning with white space get special handling
+                    final char first = reader.line[0];
+                    if (first == ' ' || first == '\t') {
+                        // this gets handled using the logic defined by
+                        // the addHeaderLine method.  If this line is a continuation, but
+                        // there's nothing before it, just call addHeaderLine to add it
+                        // to the last header in the headers list
+                        if (buffer.length() == 0) {
+                            addHeaderLine(new String(reader.line, 0, reader.length));
+                        }
+                        else {
+                            // preserve the line break and append the continuation
+                            buffer.append("\r\n");
+                            buffer.append(reader.line, 0, reader.length);
+                        }
                     }
                     else {
-                        // preserve the line break and append the continuation
-                        buffer.append("\r\n");
-                        buffer.append(line);
+                        // if we have a line pending in the buffer, flush it
+                        if (buffer.length() > 0) {
+                            addHeaderLine(buffer.toString());
+                            buffer.setLength(0);
+                        }
+                        // add this to the accumulator
+                        buffer.append(reader.line, 0, reader.length);
                     }
                 }
-                else {
-                    // if we have a line pending in the buffer, flush it
-                    if (buffer.length() > 0) {
-                        addHeaderLine(buffer.toString());
-                        buffer.setLength(0);
-                    }
-                    // add this to the accumulator
-                    buffer.append(line);
-                }
+            } finally {
+                // give back anything we read past the end of the header block
+                reader.release();
             }
 
             // if we have a line pending in the buffer, flush it
@@ -142,43 +179,6 @@ public class InternetHeaders {
     }
 
 
-    /**
-     * Read a single line from the input stream
-     *
-     * @param in     The source stream for the line
-     *
-     * @return The string value of the line (without line separators)
-     */
-    private String readLine(final InputStream in) throws IOException {
-        final StringBuffer buffer = new StringBuffer(128);
-
-        int c;
-
-        while ((c = in.read()) != -1) {
-            // a linefeed is a terminator, always.
-            if (c == '\n') {
-                break;
-            }
-            // just ignore the CR.  The next character SHOULD be an NL.  If not, we're
-            // just going to discard this
-            else if (c == '\r') {
-                continue;
-            }
-            else {
-                // just add to the buffer
-                buffer.append((char)c);
-            }
-        }
-
-        // no characters found...this was either an eof or a null line.
-        if (buffer.length() == 0) {
-            return null;
-        }
-
-        return buffer.toString();
-    }
-
-
     /**
      * Return all the values for the specified header.
      *
@@ -187,11 +187,15 @@ public class InternetHeaders {
      * @return the values for that header, or null if the header is not present
      */
     public String[] getHeader(final String name) {
-        final List accumulator = new ArrayList();
+        final List<InternetHeader> matches = indexedHeaders(name);
+        if (matches == null) {
+            return null;
+        }
 
-        for (int i = 0; i < headers.size(); i++) {
-            final InternetHeader header = (InternetHeader)headers.get(i);
-            if (header.getName().equalsIgnoreCase(name) && header.getValue() != null) {
+        final List<String> accumulator = new ArrayList<String>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            final InternetHeader header = matches.get(i);
+            if (header.getValue() != null) {
                 accumulator.add(header.getValue());
             }
         }
@@ -202,7 +206,7 @@ public class InternetHeaders {
         }
 
         // convert this to an array.
-        return (String[])accumulator.toArray(new String[accumulator.size()]);
+        return accumulator.toArray(new String[accumulator.size()]);
     }
 
     /**
@@ -253,18 +257,16 @@ public class InternetHeaders {
      */
     public void setHeader(final String name, final String value) {
         // look for a header match
-        for (int i = 0; i < headers.size(); i++) {
-            final InternetHeader header = (InternetHeader)headers.get(i);
-            // found a matching header
-            if (name.equalsIgnoreCase(header.getName())) {
-                // we update both the name and the value for a set so that
-                // the header ends up with the same case as what is getting set
-                header.setValue(value);
-                header.setName(name);
-                // remove all of the headers from this point
-                removeHeaders(name, i + 1);
-                return;
-            }
+        final List<InternetHeader> matches = indexedHeaders(name);
+        if (matches != null) {
+            final InternetHeader header = matches.get(0);
+            // we update both the name and the value for a set so that
+            // the header ends up with the same case as what is getting set
+            header.setValue(value);
+            header.setName(name);
+            // remove all of the other headers with this name
+            removeDuplicates(matches);
+            return;
         }
 
         // doesn't exist, so process as an add.
@@ -273,60 +275,23 @@ public class InternetHeaders {
 
 
     /**
-     * Remove all headers with the given name, starting with the
-     * specified start position.
+     * Remove all but the first of the given headers (which must
+     * all have the same name) from the header list.
      *
-     * @param name   The target header name.
-     * @param pos    The position of the first header to examine.
+     * @param matches The index entries for the target header name.
      */
-    private void removeHeaders(final String name, final int pos) {
-        // now go remove all other instances of this header
-        for (int i = pos; i < headers.size(); i++) {
-            final InternetHeader header = (InternetHeader)headers.get(i);
-            // found a matching header
-            if (name.equalsIgnoreCase(header.getName())) {
-                // remove this item, and back up
-                headers.remove(i);
-                i--;
-            }
+    private void removeDuplicates(final List<InternetHeader> matches) {
+        if (matches.size() == 1) {
+            return;
         }
+        final List<InternetHeader> duplicates = matches.subList(1, matches.size());
+        // headers use identity equality, so this removes exactly these instances
+        headers.removeAll(duplicates);
+        duplicates.clear();
+        markIndexed();
     }
 
 
-    /**
-     * Find a header in the current list by name, returning the index.
-     *
-     * @param name   The target name.
-     *
-     * @return The index of the header in the list.  Returns -1 for a not found
-     *         condition.
-     */
-    private int findHeader(final String name) {
-        return findHeader(name, 0);
-    }
-
-
-    /**
-     * Find a header in the current list, beginning with the specified
-     * start index.
-     *
-     * @param name   The target header name.
-     * @param start  The search start index.
-     *
-     * @return The index of the first matching header.  Returns -1 if the
-     *         header is not located.
-     */
-    private int findHeader(final String name, final int start) {
-        for (int i = start; i < headers.size(); i++) {
-            final InternetHeader header = (InternetHeader)headers.get(i);
-            // found a matching header
-            if (name.equalsIgnoreCase(header.getName())) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
     /**
      * Add a new value to the header with the supplied name.
      *
@@ -337,38 +302,37 @@ public class InternetHeaders {
      */
     public void addHeader(final String name, final String value) {
         final InternetHeader newHeader = new InternetHeader(name, value);
+        final List<InternetHeader> matches = indexedHeaders(name);
 
         // The javamail spec states that "Recieved" headers need to be added in reverse order.
         // Return-Path is permitted before Received, so handle it the same way.
         if (name.equalsIgnoreCase("Received") || name.equalsIgnoreCase("Return-Path")) {
-            // see if we have one of these already
-            final int pos = findHeader(name);
-
             // either insert before an existing header, or insert at the very beginning
-            if (pos != -1) {
+            if (matches != null) {
                 // this could be a placeholder header with a null value.  If it is, just update
                 // the value.  Otherwise, insert in front of the existing header.
-                final InternetHeader oldHeader = (InternetHeader)headers.get(pos);
+                final InternetHeader oldHeader = matches.get(0);
                 if (oldHeader.getValue() == null) {
                     oldHeader.setValue(value);
                 }
                 else {
-                    headers.add(pos, newHeader);
+                    headers.add(headers.indexOf(oldHeader), newHeader);
+                    matches.add(0, newHeader);
+                    markIndexed();
                 }
             }
             else {
                 // doesn't exist, so insert at the beginning
                 headers.add(0, newHeader);
+                indexHeader(newHeader);
+                markIndexed();
             }
         }
         // normal insertion
         else {
-            // see if we have one of these already
-            int pos = findHeader(name);
-
             // either insert before an existing header, or insert at the very beginning
-            if (pos != -1) {
-                final InternetHeader oldHeader = (InternetHeader)headers.get(pos);
+            if (matches != null) {
+                final InternetHeader oldHeader = matches.get(0);
                 // if the existing header is a place holder, we can just update the value
                 if (oldHeader.getValue() == null) {
                     oldHeader.setValue(value);
@@ -376,25 +340,25 @@ public class InternetHeaders {
                 else {
                     // we have at least one existing header with this name.  We need to find the last occurrance,
                     // and insert after that spot.
-
-                    int lastPos = findHeader(name, pos + 1);
-
-                    while (lastPos != -1) {
-                        pos = lastPos;
-                        lastPos = findHeader(name, pos + 1);
-                    }
-
-                    // ok, we have the insertion position
-                    headers.add(pos + 1, newHeader);
+                    final InternetHeader lastHeader = matches.get(matches.size() - 1);
+                    headers.add(headers.lastIndexOf(lastHeader) + 1, newHeader);
+                    matches.add(newHeader);
+                    markIndexed();
                 }
             }
             else {
                 // find the insertion marker.  If that is missing somehow, insert at the end.
-                pos = findHeader(":");
+                final List<InternetHeader> marker = indexedHeaders(":");
+                int pos = -1;
+                if (marker != null) {
+                    pos = headers.indexOf(marker.get(0));
+                }
                 if (pos == -1) {
                     pos = headers.size();
                 }
                 headers.add(pos, newHeader);
+                indexHeader(newHeader);
+                markIndexed();
             }
         }
     }
@@ -408,18 +372,103 @@ public class InternetHeaders {
      */
     public void removeHeader(final String name) {
         // the first occurrance of a header is just zeroed out.
-        final int pos = findHeader(name);
+        final List<InternetHeader> matches = indexedHeaders(name);
 
-        if (pos != -1) {
-            final InternetHeader oldHeader = (InternetHeader)headers.get(pos);
+        if (matches != null) {
+            final InternetHeader oldHeader = matches.get(0);
             // keep the header in the list, but with a null value
             oldHeader.setValue(null);
             // now remove all other headers with this name
-            removeHeaders(name, pos + 1);
+            removeDuplicates(matches);
         }
     }
 
 
+    /**
+     * Append a header to the end of the header list.
+     *
+     * @param header The new header.
+     */
+    private void appendHeader(final InternetHeader header) {
+        // make sure the index is current before we add to it
+        ensureIndex();
+        headers.add(header);
+        indexHeader(header);
+        markIndexed();
+    }
+
+
+    /**
+     * Retrieve the index entries for a given header name.
+     *
+     * @param name   The target header name (case insensitive).
+     *
+     * @return The list of headers with this name, in header list order.
+     *         Returns null if there are no headers with this name.
+     */
+    private List<InternetHeader> indexedHeaders(final String name) {
+        ensureIndex();
+        return index.get(indexKey(name));
+    }
+
+
+    /**
+     * Add a header to the end of the index entries for its name.
+     *
+     * @param header The header to index.
+     */
+    private void indexHeader(final InternetHeader header) {
+        final String key = indexKey(header.getName());
+        List<InternetHeader> matches = index.get(key);
+        if (matches == null) {
+            matches = new ArrayList<InternetHeader>(2);
+            index.put(key, matches);
+        }
+        matches.add(header);
+    }
+
+
+    /**
+     * Make sure the name index reflects the current header list,
+     * rebuilding it if necessary.
+     */
+    private void ensureIndex() {
+        if (index != null && indexedList == headers && headers instanceof HeaderList
+                && ((HeaderList)headers).version == indexedVersion) {
+            return;
+        }
+        index = new HashMap<String, List<InternetHeader>>();
+        for (int i = 0; i < headers.size(); i++) {
+            indexHeader((InternetHeader)headers.get(i));
+        }
+        markIndexed();
+    }
+
+
+    /**
+     * Record that the index matches the current state
+     * of the header list.
+     */
+    private void markIndexed() {
+        indexedList = headers;
+        if (headers instanceof HeaderList) {
+            indexedVersion = ((HeaderList)headers).version;
+        }
+    }
+
+
+    /**
+     * Normalize a header name into an index key.
+     *
+     * @param name   The header name.
+     *
+     * @return The lower case version of the name.
+     */
+    private static String indexKey(final String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+
     /**
      * Return all headers.
      *
@@ -536,7 +585,7 @@ public class InternetHeaders {
         }
         else {
             // this just gets appended to the end, preserving the addition order.
-            headers.add(new InternetHeader(line));
+            appendHeader(new InternetHeader(line));
         }
     }
 
@@ -598,25 +647,31 @@ public class InternetHeaders {
      * @exception IOException
      */
     void writeTo(final OutputStream out, final String[] ignore) throws IOException {
-        if (ignore == null) {
-            // write out all header lines with non-null values
-            for (int i = 0; i < headers.size(); i++) {
-                final InternetHeader header = (InternetHeader)headers.get(i);
-                // we only include headers with real values, no placeholders
-                if (header.getValue() != null) {
-                    header.writeTo(out);
-                }
-            }
+        final HeaderBlock block = HeaderBlock.get();
+        try {
+            writeTo(block, ignore);
+            block.writeTo(out);
+        } finally {
+            block.release();
         }
-        else {
-            // write out all matching header lines with non-null values
-            for (int i = 0; i < headers.size(); i++) {
-                final InternetHeader header = (InternetHeader)headers.get(i);
-                // we only include headers with real values, no placeholders
-                if (header.getValue() != null) {
-                    if (!matchHeader(header.getName(), ignore)) {
-                        header.writeTo(out);
-                    }
+    }
+
+
+    /**
+     * Serialize the set of headers into a header block, except
+     * for any headers specified in the optional ignore list.
+     *
+     * @param block  The target header block.
+     * @param ignore The optional ignore list.
+     */
+    void writeTo(final HeaderBlock block, final String[] ignore) {
+        // write out all header lines with non-null values, skipping any on the ignore list
+        for (int i = 0; i < headers.size(); i++) {
+            final InternetHeader header = (InternetHeader)headers.get(i);
+            // we only include headers with real values, no placeholders
+            if (header.getValue() != null) {
+                if (ignore == null || !matchHeader(header.getName(), ignore)) {
+                    header.writeTo(block);
                 }
             }
         }
@@ -687,13 +742,170 @@ public class InternetHeaders {
             }
         }
 
-        void writeTo(final OutputStream out) throws IOException {
-            out.write(name.getBytes("ISO8859-1"));
-            out.write(':');
-            out.write(' ');
-            out.write(value.getBytes("ISO8859-1"));
-            out.write('\r');
-            out.write('\n');
+        void writeTo(final HeaderBlock block) {
+            block.append(name);
+            block.append(": ");
+            block.append(value);
+            block.appendLineEnd();
+        }
+    }
+
+    /**
+     * Reader for the lines of a header block.  If the source stream
+     * supports mark/reset, the data is read in chunks and scanned for
+     * line terminators in bulk.  Once the header block has been read,
+     * the stream is repositioned just past the last consumed line, so
+     * the body data can be read from the same stream.  Streams without
+     * mark support are read one byte at a time, exactly as far as the
+     * header block terminator.
+     */
+    private static final class HeaderLineReader {
+        // the size of the chunks read from mark capable streams
+        private static final int CHUNK_SIZE = 4096;
+
+        private final InputStream in;
+        // true if we are able to read ahead of the current line
+        private final boolean bulk;
+        // the chunk buffer, with the current scan position and fill count
+        private byte[] chunk;
+        private int pos;
+        private int count;
+
+        // the current line data (without line separators)
+        char[] line = new char[128];
+        int length;
+
+        HeaderLineReader(final InputStream in) {
+            this.in = in;
+            this.bulk = in.markSupported();
+            if (bulk) {
+                chunk = new byte[CHUNK_SIZE];
+            }
+        }
+
+        /**
+         * Read the next line of the header block.
+         *
+         * @return true if a line was read, false if we've hit either
+         *         the end of the stream or the blank line terminating
+         *         the header block.
+         * @exception IOException
+         */
+        boolean readLine() throws IOException {
+            length = 0;
+            if (!bulk) {
+                int c;
+                while ((c = in.read()) != -1) {
+                    // a linefeed is a terminator, always.
+                    if (c == '\n') {
+                        break;
+                    }
+                    // just ignore the CR.  The next character SHOULD be an NL.  If not, we're
+                    // just going to discard this
+                    if (c != '\r') {
+                        append((char)c);
+                    }
+                }
+                // no characters found...this was either an eof or a null line.
+                return length > 0;
+            }
+
+            while (true) {
+                if (pos == count && !fill()) {
+                    // end of the stream, return anything pending
+                    return length > 0;
+                }
+                final byte[] data = chunk;
+                final int limit = count;
+                int start = pos;
+                for (int i = start; i < limit; i++) {
+                    final byte b = data[i];
+                    if (b == '\n' || b == '\r') {
+                        // copy the run of data up to the line end character
+                        append(data, start, i);
+                        start = i + 1;
+                        if (b == '\n') {
+                            pos = start;
+                            // no characters found...this was a null line.
+                            return length > 0;
+                        }
+                    }
+                }
+                append(data, start, limit);
+                pos = limit;
+            }
+        }
+
+        /**
+         * Read the next chunk of data from the stream, marking the
+         * current position so we can return any unused data.
+         *
+         * @return false if the end of the stream has been reached.
+         * @exception IOException
+         */
+        private boolean fill() throws IOException {
+            pos = 0;
+            count = 0;
+            in.mark(CHUNK_SIZE);
+            final int read = in.read(chunk, 0, CHUNK_SIZE);
+            if (read <= 0) {
+                return false;
+            }
+            count = read;
+            return true;
+        }
+
+        /**
+         * Reposition the source stream immediately after the last
+         * line consumed by this reader.
+         *
+         * @exception IOException
+         */
+        void release() throws IOException {
+            if (!bulk || pos == count) {
+                return;
+            }
+            // back up to the chunk start and move forward over the consumed data
+            in.reset();
+            long remaining = pos;
+            while (remaining > 0) {
+                final long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    // some streams refuse to skip, so read past the data instead
+                    if (in.read() == -1) {
+                        break;
+                    }
+                    remaining--;
+                }
+                else {
+                    remaining -= skipped;
+                }
+            }
+            pos = count;
+        }
+
+        private void append(final char ch) {
+            if (length == line.length) {
+                grow(length + 1);
+            }
+            line[length++] = ch;
+        }
+
+        private void append(final byte[] data, final int start, final int end) {
+            final int needed = length + (end - start);
+            if (needed > line.length) {
+                grow(needed);
+            }
+            // headers are US-ASCII, so this is a straight ISO-8859-1 widening
+            for (int i = start; i < end; i++) {
+                line[length++] = (char)(data[i] & 0xff);
+            }
+        }
+
+        private void grow(final int needed) {
+            final char[] newLine = new char[Math.max(needed, line.length * 2)];
+            System.arraycopy(line, 0, newLine, 0, length);
+            line = newLine;
         }
     }
 
@@ -713,4 +925,65 @@ public class InternetHeaders {
             return h.getName() + ": " + h.getValue();
         }
     }
+
+    /**
+     * The list used to hold the headers.  This counts every change made
+     * to it, including those made through iterators and sublists, so the
+     * name index can tell when a subclass has modified the list directly.
+     */
+    private static final class HeaderList extends AbstractList implements RandomAccess {
+        private final ArrayList list;
+        // incremented on every change to the list contents
+        int version;
+
+        HeaderList(final int capacity) {
+            list = new ArrayList(capacity);
+        }
+
+        @Override
+        public Object get(final int index) {
+            return list.get(index);
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+
+        @Override
+        public Object set(final int index, final Object element) {
+            version++;
+            return list.set(index, element);
+        }
+
+        @Override
+        public void add(final int index, final Object element) {
+            version++;
+            list.add(index, element);
+        }
+
+        @Override
+        public Object remove(final int index) {
+            version++;
+            return list.remove(index);
+        }
+
+        @Override
+        public boolean removeAll(final Collection c) {
+            version++;
+            return list.removeAll(c);
+        }
+
+        @Override
+        public void clear() {
+            version++;
+            list.clear();
+        }
+
+        @Override
+        protected void removeRange(final int fromIndex, final int toIndex) {
+            version++;
+            list.subList(fromIndex, toIndex).clear();
+        }
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.mail.Session;
+
+/**
+ * The local address of the current user, as resolved for a Session,
+ * together with the Message-ID suffix derived from it.  These are
+ * cached for each Session so saving a message does not need a name
+ * service lookup.  Each entry remembers the properties it was resolved
+ * from and is resolved again if any of them change.
+ * <p/>
+ * The local host name is looked up once and shared by all Sessions.
+ * An identity that needed the host name while it could not be looked
+ * up is not cached, so the lookup is tried again on the next call.
+ *
+ * @version $Rev$ $Date$
+ */
+final class LocalIdentity {
+    // the identities resolved for each Session.  The Sessions are only weakly held.
+    private static final Map<Session, LocalIdentity> identities = Collections.synchronizedMap(new WeakHashMap<Session, LocalIdentity>());
+    // the identity used when there is no Session
+    private static volatile LocalIdentity defaultIdentity;
+    // the result of InetAddress.getLocalHost().getHostName(), once it has succeeded
+    private static volatile String localHostName;
+    // the host name lookup
+    private static volatile HostNameLookup hostNameLookup = new HostNameLookup() {
+        public String getHostName() throws UnknownHostException {
+            return InetAddress.getLocalHost().getHostName();
+        }
+    };
+
+    // the settings this was resolved from
+    private final String from;
+    private final String user;
+    private final String host;
+    private final String systemUser;
+
+    // the resolved address.  This is shared, so only copies are handed out.
+    private final InternetAddress address;
+    private final String messageIDSuffix;
+    // false if the local host name was needed but could not be looked up
+    private final boolean complete;
+
+    private LocalIdentity(final String from, final String user, final String host, final String systemUser) {
+        this.from = from;
+        this.user = user;
+        this.host = host;
+        this.systemUser = systemUser;
+
+        address = resolve(from, user, host, systemUser);
+        complete = from != null || host != null || localHostName != null;
+        messageIDSuffix = ".JavaMail." + (address != null ? address.getAddress() : "javamailuser@localhost") + '>';
+    }
+
+    /**
+     * Get the local identity for a Session.
+     *
+     * @param session The Session supplying the mail properties.  This may be null.
+     *
+     * @return The identity for the Session's current settings.
+     */
+    static LocalIdentity getInstance(final Session session) {
+        String from = null;
+        String user = null;
+        String host = null;
+        if (session != null) {
+            from = session.getProperty("mail.from");
+            user = session.getProperty("mail.user");
+            host = session.getProperty("mail.host");
+        }
+        final String systemUser = getSystemUser();
+
+        LocalIdentity identity = session == null ? defaultIdentity : identities.get(session);
+        if (identity == null || !identity.matches(from, user, host, systemUser)) {
+            identity = new LocalIdentity(from, user, host, systemUser);
+            // an incomplete identity is only used for this call
+            final LocalIdentity cached = identity.complete ? identity : null;
+            if (session == null) {
+                defaultIdentity = cached;
+            }
+            else if (cached != null) {
+                identities.put(session, cached);
+            }
+            else {
+                identities.remove(session);
+            }
+        }
+        return identity;
+    }
+
+    /**
+     * Get the local address of the current user.
+     *
+     * @return A new InternetAddress for the user, or null if it cannot be determined.
+     */
+    InternetAddress getAddress() {
+        return address == null ? null : (InternetAddress)address.clone();
+    }
+
+    /**
+     * Get the part of a Message-ID that follows the uniqueness
+     * values, including the closing '>'.
+     *
+     * @return The Message-ID suffix.
+     */
+    String getMessageIDSuffix() {
+        return messageIDSuffix;
+    }
+
+    private boolean matches(final String from, final String user, final String host, final String systemUser) {
+        return equals(this.from, from) && equals(this.user, user) && equals(this.host, host) && equals(this.systemUser, systemUser);
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static InternetAddress resolve(final String from, String user, String host, final String systemUser) {
+        // a configured from address is used as is
+        if (from != null) {
+            try {
+                return new InternetAddress(from);
+            } catch (final AddressException e) {
+                // invalid address on the from...treat this as an error and return null.
+                return null;
+            }
+        }
+
+        // otherwise fill in anything missing from the session with the system values.
+        if (user == null) {
+            user = systemUser;
+        }
+        if (host == null) {
+            host = getLocalHostName();
+        }
+
+        if (user != null && host != null) {
+            try {
+                return new InternetAddress(user + '@' + host);
+            } catch (final AddressException e) {
+                // ignore
+            }
+        }
+        return null;
+    }
+
+    private static String getSystemUser() {
+        try {
+            return System.getProperty("user.name");
+        } catch (final SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replace the local host name lookup, forgetting any name already
+     * found.  This allows a failing name service to be simulated.
+     *
+     * @param lookup The new lookup.
+     *
+     * @return The lookup that was replaced.
+     */
+    static HostNameLookup setHostNameLookup(final HostNameLookup lookup) {
+        final HostNameLookup previous = hostNameLookup;
+        hostNameLookup = lookup;
+        localHostName = null;
+        return previous;
+    }
+
+    private static String getLocalHostName() {
+        String name = localHostName;
+        if (name == null) {
+            try {
+                name = hostNameLookup.getHostName();
+                localHostName = name;
+            } catch (final UnknownHostException e) {
+                // ignore, the identity is not cached so this is retried on the next call
+            } catch (final SecurityException e) {
+                // ignore
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Looks up the name of the local host.
+     */
+    interface HostNameLookup {
+        String getHostName() throws UnknownHostException;
+    }
+}
@@ -26,9 +26,7 @@ import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Formats ths date as specified by
@@ -38,6 +36,9 @@ import java.util.TimeZone;
  * <p/>
  * The format used is <code>EEE, d MMM yyyy HH:mm:ss Z</code> and
  * locale is always US-ASCII.
+ * <p/>
+ * This class is a facade over a shared, thread safe formatter.  The
+ * SimpleDateFormat state is only used for the time zone setting.
  *
  * @version $Rev$ $Date$
  */
@@ -51,7 +52,9 @@ public class MailDateFormat extends SimpleDateFormat {
 
     @Override
     public StringBuffer format(final Date date, final StringBuffer buffer, final FieldPosition position) {
-        return super.format(date, buffer, position);
+        final StringBuilder formatted = new StringBuilder(48);
+        MailDateFormatter.INSTANCE.format(date.getTime(), getTimeZone(), formatted);
+        return buffer.append(formatted);
     }
 
     /**
@@ -98,10 +101,38 @@ public class MailDateFormat extends SimpleDateFormat {
     
     
     // utility class for handling date parsing issues 
-    class MailDateParser {
+    static class MailDateParser {
         // our list of defined whitespace characters 
         static final String whitespace = " \t\r\n"; 
         
+        // the month names, folded into lower case keys ("jan" is 'j' << 16 | 'a' << 8 | 'n') 
+        static final int[] MONTH_KEYS = new int[12]; 
+        // the day of a March-based year each month starts on 
+        static final int[] MONTH_START = new int[12]; 
+        static final int[] MONTH_LENGTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 }; 
+        
+        // the obsolete named zones and their offsets in minutes.  NOTE:  This is "UT", NOT "UTC"
+        static final String[] ZONE_NAMES = { "UT", "GMT", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT" }; 
+        static final int[] ZONE_OFFSETS = { 0, 0, -300, -240, -360, -300, -420, -360, -480, -420 }; 
+        
+        // the military zone offsets in minutes, indexed by letter.  There is no "J" zone. 
+        static final int INVALID_ZONE = Integer.MIN_VALUE; 
+        static final int[] MILITARY_ZONE_OFFSETS = {
+            60, 120, 180, 240, 300, 360, 420, 480, 540, INVALID_ZONE, 600, 660, 720, 
+            -60, -120, -180, -240, -300, -360, -420, -480, -540, -600, -660, -720, 0 
+        }; 
+        
+        static {
+            final String names = "janfebmaraprmayjunjulaugsepoctnovdec"; 
+            int start = 0; 
+            for (int i = 0; i < 12; i++) {
+                MONTH_KEYS[i] = (names.charAt(i * 3) << 16) | (names.charAt(i * 3 + 1) << 8) | names.charAt(i * 3 + 2); 
+                // March is the first month of the year for this 
+                MONTH_START[(i + 2) % 12] = start; 
+                start += MONTH_LENGTH[(i + 2) % 12]; 
+            }
+        }
+        
         // current parsing position 
         int current; 
         // our end parsing position 
@@ -130,6 +161,23 @@ public class MailDateFormat extends SimpleDateFormat {
          * @exception ParseException
          */
         public Date parse(final boolean lenient) throws ParseException {
+            return new Date(parseMillis(lenient)); 
+        }
+        
+        
+        /**
+         * Parse the timestamp, returning the time in milliseconds since 
+         * the epoch.  The time is calculated directly from the parsed fields, 
+         * so no Date or Calendar objects are created. 
+         * 
+         * @param lenient If true, out of range field values roll over into the 
+         *                next field (e.g., Feb 30 is Mar 2).  If false, these 
+         *                are rejected. 
+         * 
+         * @return The parsed time value. 
+         * @exception ParseException
+         */
+        public long parseMillis(final boolean lenient) throws ParseException {
             // we just skip over any next date format, which means scanning ahead until we
             // find the first numeric character 
             locateNumeric(); 
@@ -162,22 +210,51 @@ public class MailDateFormat extends SimpleDateFormat {
             // and finally the timezone information 
             final int offset = parseTimeZone(); 
             
+            if (!lenient) {
+                // 60 seconds is allowed for a leap second 
+                if (day < 1 || day > daysInMonth(year, month) || hour > 23 || minutes > 59 || seconds > 60) {
+                    parseError("Date field out of range"); 
+                }
+            }
+            
             // set the index of how far we've parsed this 
             pos.setIndex(current);
             
-            // create a calendar for creating the date 
-            final Calendar greg = new GregorianCalendar(TimeZone.getTimeZone("GMT")); 
-            // we inherit the leniency rules 
-            greg.setLenient(lenient);
-            greg.set(year, month, day, hour, minutes, seconds); 
-            // now adjust by the offset.  This seems a little strange, but we  
-            // need to negate the offset because this is a UTC calendar, so we need to 
-            // apply the reverse adjustment.  for example, for the EST timezone, the offset 
-            // value will be -300 (5 hours).  If the time was 15:00:00, the UTC adjusted time 
+            // the fields are for local time, so we need to subtract the zone offset to 
+            // get UTC.  For example, for the EST timezone, the offset value will be 
+            // -300 (5 hours).  If the time was 15:00:00, the UTC adjusted time 
             // needs to be 20:00:00, so we subract -300 minutes. 
-            greg.add(Calendar.MINUTE, -offset); 
-            // now return this timestamp. 
-            return greg.getTime(); 
+            final long days = daysFromEpoch(year, month) + day - 1; 
+            return ((((days * 24 + hour) * 60 + minutes - offset) * 60) + seconds) * 1000L; 
+        }
+        
+        
+        /**
+         * Calculate the number of days between the epoch and the first 
+         * day of a month, using the proleptic Gregorian calendar. 
+         * 
+         * @param year   The year.
+         * @param month  The month (0-11).
+         * 
+         * @return The day offset (negative for dates before 1970). 
+         */
+        private static long daysFromEpoch(final int year, final int month) {
+            // years are counted from March so that the leap day comes at the end of 
+            // the year, in eras of 400 years (146097 days). 
+            final long y = month < 2 ? year - 1 : year; 
+            final long era = (y >= 0 ? y : y - 399) / 400; 
+            final int yearOfEra = (int)(y - era * 400); 
+            final int dayOfYear = MONTH_START[month]; 
+            final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear; 
+            return era * 146097 + dayOfEra - 719468; 
+        }
+        
+        
+        private static int daysInMonth(final int year, final int month) {
+            if (month == 1) {
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28; 
+            }
+            return MONTH_LENGTH[month]; 
         }
         
         
@@ -368,7 +445,7 @@ public class MailDateFormat extends SimpleDateFormat {
          * Parse a character month name into the date month 
          * offset.
          * 
-         * @return 
+         * @return The month offset (0-11). 
          * @exception ParseException
          */
         private int parseMonth() throws ParseException {
@@ -376,52 +453,17 @@ public class MailDateFormat extends SimpleDateFormat {
                 parseError("Invalid month"); 
             }
             
-            int monthOffset = 0; 
-            final String month = source.substring(current, current + 3).toLowerCase();
-            
-            if (month.equals("jan")) {
-                monthOffset = 0; 
-            }
-            else if (month.equals("feb")) {
-                monthOffset = 1; 
-            }
-            else if (month.equals("mar")) {
-                monthOffset = 2; 
-            }
-            else if (month.equals("apr")) {
-                monthOffset = 3; 
-            }
-            else if (month.equals("may")) {
-                monthOffset = 4; 
-            }
-            else if (month.equals("jun")) {
-                monthOffset = 5; 
-            }
-            else if (month.equals("jul")) {
-                monthOffset = 6; 
-            }
-            else if (month.equals("aug")) {
-                monthOffset = 7; 
-            }
-            else if (month.equals("sep")) {
-                monthOffset = 8; 
-            }
-            else if (month.equals("oct")) {
-                monthOffset = 9; 
-            }
-            else if (month.equals("nov")) {
-                monthOffset = 10; 
-            }
-            else if (month.equals("dec")) {
-                monthOffset = 11; 
-            }
-            else {
-                parseError("Invalid month"); 
+            // fold the three characters into a single lower case key for the table lookup 
+            final int key = ((source.charAt(current) | 0x20) << 16) | ((source.charAt(current + 1) | 0x20) << 8) | (source.charAt(current + 2) | 0x20); 
+            for (int i = 0; i < MONTH_KEYS.length; i++) {
+                if (MONTH_KEYS[i] == key) {
+                    // ok, this is valid.  Update the position and return it 
+                    current += 3;
+                    return i; 
+                }
             }
-            
-            // ok, this is valid.  Update the position and return it 
-            current += 3;
-            return monthOffset; 
+            parseError("Invalid month"); 
+            return 0; 
         }
         
         /**
@@ -440,7 +482,7 @@ public class MailDateFormat extends SimpleDateFormat {
                 year += 2000; 
             }
             else if (year < 100) {
-                year += 1990; 
+                year += 1900; 
             }
             return year; 
         }
@@ -483,13 +525,13 @@ public class MailDateFormat extends SimpleDateFormat {
                 // zone designation. 
                 final int start = current; 
                 skipNonWhiteSpace(); 
-                final String name = source.substring(start, current).toUpperCase(); 
+                final int length = current - start; 
                 
-                if (name.length() == 1) {
-                    return militaryZoneOffset(name); 
+                if (length == 1) {
+                    return militaryZoneOffset(source.charAt(start)); 
                 }
-                else if (name.length() <= 3) {
-                    return namedZoneOffset(name); 
+                else if (length <= 3) {
+                    return namedZoneOffset(start, length); 
                 }
                 else {
                     parseError("Invalid time zone"); 
@@ -505,48 +547,20 @@ public class MailDateFormat extends SimpleDateFormat {
          * That's the spec.  The preferred timezone form is 
          * the +/-mmss form. 
          * 
-         * @param name   The input name.
+         * @param start  The start of the name in the source string.
+         * @param length The length of the name.
          * 
          * @return The standard timezone offset for the specifier.
          * @exception ParseException
          */
-        private int namedZoneOffset(final String name) throws ParseException {
-            
-            // NOTE:  This is "UT", NOT "UTC"
-            if (name.equals("UT")) {
-                return 0; 
-            }
-            else if (name.equals("GMT")) {
-                return 0; 
-            }
-            else if (name.equals("EST")) {
-                return -300; 
-            }
-            else if (name.equals("EDT")) {
-                return -240; 
-            }
-            else if (name.equals("CST")) {
-                return -360; 
-            }
-            else if (name.equals("CDT")) {
-                return -300; 
-            }
-            else if (name.equals("MST")) {
-                return -420; 
-            }
-            else if (name.equals("MDT")) {
-                return -360; 
-            }
-            else if (name.equals("PST")) {
-                return -480; 
-            }
-            else if (name.equals("PDT")) {
-                return -420; 
-            }
-            else {
-                parseError("Invalid time zone"); 
-                return 0; 
+        private int namedZoneOffset(final int start, final int length) throws ParseException {
+            for (int i = 0; i < ZONE_NAMES.length; i++) {
+                if (ZONE_NAMES[i].length() == length && source.regionMatches(true, start, ZONE_NAMES[i], 0, length)) {
+                    return ZONE_OFFSETS[i]; 
+                }
             }
+            parseError("Invalid time zone"); 
+            return 0; 
         }
         
         
@@ -557,62 +571,12 @@ public class MailDateFormat extends SimpleDateFormat {
          * 
          * @return The offset corresponding to the military designation.
          */
-        private int militaryZoneOffset(final String name) throws ParseException {
-            switch (Character.toUpperCase(name.charAt(0))) {
-                case 'A':
-                    return 60; 
-                case 'B':
-                    return 120; 
-                case 'C':
-                    return 180;
-                case 'D':
-                    return 240;
-                case 'E':
-                    return 300;
-                case 'F':
-                    return 360;
-                case 'G':
-                    return 420;
-                case 'H':
-                    return 480;
-                case 'I':
-                    return 540;
-                case 'K':
-                    return 600;
-                case 'L':
-                    return 660;
-                case 'M':
-                    return 720;
-                case 'N':
-                    return -60;
-                case 'O':
-                    return -120;
-                case 'P':
-                    return -180;
-                case 'Q':
-                    return -240;
-                case 'R':
-                    return -300;
-                case 'S':
-                    return -360;
-                case 'T':
-                    return -420;
-                case 'U':
-                    return -480;
-                case 'V':
-                    return -540;
-                case 'W':
-                    return -600;
-                case 'X':
-                    return -660;
-                case 'Y':
-                    return -720;
-                case 'Z':
-                    return 0;    
-                default:
-                    parseError("Invalid time zone");
-                    return 0; 
+        private int militaryZoneOffset(final char name) throws ParseException {
+            final int index = (name | 0x20) - 'a'; 
+            if (index < 0 || index >= MILITARY_ZONE_OFFSETS.length || MILITARY_ZONE_OFFSETS[index] == INVALID_ZONE) {
+                parseError("Invalid time zone"); 
             }
+            return MILITARY_ZONE_OFFSETS[index]; 
         }
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * An immutable formatter for RFC 822/2822 mail dates.  This produces
+ * the same <code>EEE, d MMM yyyy HH:mm:ss Z (z)</code> form as
+ * {@link MailDateFormat}, but works directly from the epoch time
+ * rather than going through a Calendar, so a single instance can be
+ * shared by all threads.  Dates are calculated using the proleptic
+ * Gregorian calendar.
+ *
+ * @version $Rev$ $Date$
+ */
+final class MailDateFormatter {
+    /**
+     * The shared formatter instance.
+     */
+    static final MailDateFormatter INSTANCE = new MailDateFormatter();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final String[] DAYS = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    private MailDateFormatter() {
+    }
+
+    /**
+     * Format a date using the default time zone.
+     *
+     * @param date   The date to format.
+     *
+     * @return The formatted date string.
+     */
+    String format(final Date date) {
+        return format(date.getTime(), TimeZone.getDefault());
+    }
+
+    /**
+     * Format a date in a given time zone.
+     *
+     * @param millis The date, as milliseconds since the epoch.
+     * @param zone   The time zone used for the local time.
+     *
+     * @return The formatted date string.
+     */
+    String format(final long millis, final TimeZone zone) {
+        final StringBuilder buffer = new StringBuilder(48);
+        format(millis, zone, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Format a date in a given time zone, appending the
+     * result to a buffer.
+     *
+     * @param millis The date, as milliseconds since the epoch.
+     * @param zone   The time zone used for the local time.
+     * @param buffer The target buffer.
+     */
+    void format(final long millis, final TimeZone zone, final StringBuilder buffer) {
+        final int offset = zone.getOffset(millis);
+        final long local = millis + offset;
+
+        final long days = floorDiv(local, MILLIS_PER_DAY);
+        final int timeOfDay = (int)(local - days * MILLIS_PER_DAY);
+
+        // convert the day number into year/month/day.  This counts from 0000-03-01 so that
+        // the leap day falls at the end of each year, with 400 year eras of 146097 days.
+        final long z = days + 719468;
+        final long era = floorDiv(z, 146097);
+        final int dayOfEra = (int)(z - era * 146097);
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        final int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        final int month = shiftedMonth < 10 ? shiftedMonth + 2 : shiftedMonth - 10;
+        final long year = yearOfEra + era * 400 + (month <= 1 ? 1 : 0);
+
+        // 1970-01-01 was a Thursday
+        buffer.append(DAYS[(int)(days + 4 - floorDiv(days + 4, 7) * 7)]).append(", ");
+        buffer.append(day).append(' ');
+        buffer.append(MONTHS[month]).append(' ');
+        if (year < 1000) {
+            appendTwoDigits(buffer, (int)(year / 100));
+            appendTwoDigits(buffer, (int)(year % 100));
+        }
+        else {
+            buffer.append(year);
+        }
+        buffer.append(' ');
+
+        final int seconds = timeOfDay / 1000;
+        appendTwoDigits(buffer, seconds / 3600);
+        buffer.append(':');
+        appendTwoDigits(buffer, seconds / 60 % 60);
+        buffer.append(':');
+        appendTwoDigits(buffer, seconds % 60);
+        buffer.append(' ');
+
+        int offsetMinutes = offset / 60000;
+        if (offsetMinutes < 0) {
+            buffer.append('-');
+            offsetMinutes = -offsetMinutes;
+        }
+        else {
+            buffer.append('+');
+        }
+        appendTwoDigits(buffer, offsetMinutes / 60);
+        appendTwoDigits(buffer, offsetMinutes % 60);
+
+        buffer.append(" (");
+        buffer.append(zone.getDisplayName(zone.inDaylightTime(new Date(millis)), TimeZone.SHORT, Locale.US));
+        buffer.append(')');
+    }
+
+    /**
+     * Parse a mail date string.  This accepts the same
+     * (lenient) forms as {@link MailDateFormat}.
+     *
+     * @param string The date string.
+     *
+     * @return The parsed Date, or null if the string could not be parsed.
+     */
+    Date parse(final String string) {
+        try {
+            return new Date(parseMillis(string));
+        } catch (final ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a mail date string into a time value, without
+     * creating any Date or Calendar objects.
+     *
+     * @param string The date string.
+     *
+     * @return The time, in milliseconds since the epoch.
+     * @exception ParseException if the string is not a valid date.
+     */
+    long parseMillis(final String string) throws ParseException {
+        return new MailDateFormat.MailDateParser(string, new ParsePosition(0)).parseMillis(true);
+    }
+
+    private static void appendTwoDigits(final StringBuilder buffer, final int value) {
+        if (value < 10) {
+            buffer.append('0');
+        }
+        buffer.append(value);
+    }
+
+    private static long floorDiv(final long x, final long y) {
+        final long q = x / y;
+        // round towards negative infinity for negative values
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            return q - 1;
+        }
+        return q;
+    }
+}
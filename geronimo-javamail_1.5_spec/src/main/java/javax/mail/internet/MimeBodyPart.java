@@ -20,7 +20,6 @@
 package javax.mail.internet;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -39,6 +38,7 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.internet.HeaderTokenizer.Token;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.geronimo.mail.util.ASCIIUtil;
 import org.apache.geronimo.mail.util.SessionUtil;
@@ -79,6 +79,9 @@ public class MimeBodyPart extends BodyPart implements MimePart {
      * @since   JavaMail 1.5
      */
     protected Object cachedContent;
+
+    // the parsed Content-Type and Content-Disposition headers, so type checks don't reparse them
+    private final ParsedHeaderCache parsedHeaders = new ParsedHeaderCache();
     
     
     protected byte content[];
@@ -99,6 +102,12 @@ public class MimeBodyPart extends BodyPart implements MimePart {
 
     public MimeBodyPart(final InputStream in) throws MessagingException {
         headers = new InternetHeaders(in);
+        // a shared stream lets us reference the content in place rather than copying it
+        if (in instanceof SharedInputStream) {
+            final SharedInputStream sin = (SharedInputStream)in;
+            contentStream = sin.newStream(sin.getPosition(), -1);
+            return;
+        }
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         final byte[] buffer = new byte[1024];
         int count;
@@ -164,7 +173,7 @@ public class MimeBodyPart extends BodyPart implements MimePart {
      * @exception MessagingException
      */
     public boolean isMimeType(final String type) throws MessagingException {
-        return new ContentType(getContentType()).match(type);
+        return parsedHeaders.getContentType(getContentType()).match(type);
     }
 
     /**
@@ -178,7 +187,7 @@ public class MimeBodyPart extends BodyPart implements MimePart {
     public String getDisposition() throws MessagingException {
         final String disp = getSingleHeader("Content-Disposition");
         if (disp != null) {
-            return new ContentDisposition(disp).getDisposition();
+            return parsedHeaders.getDisposition(disp).getDisposition();
         }
         return null;
     }
@@ -321,7 +330,7 @@ public class MimeBodyPart extends BodyPart implements MimePart {
         String filename = null;
 
         if (disposition != null) {
-            filename = new ContentDisposition(disposition).getParameter("filename");
+            filename = parsedHeaders.getDisposition(disposition).getParameter("filename");
         }
 
         // if there's no filename on the disposition, there might be a name parameter on a
@@ -330,7 +339,7 @@ public class MimeBodyPart extends BodyPart implements MimePart {
             final String type = getSingleHeader("Content-Type");
             if (type != null) {
                 try {
-                    filename = new ContentType(type).getParameter("name");
+                    filename = parsedHeaders.getContentType(type).getParameter("name");
                 } catch (final ParseException e) {
                 }
             }
@@ -388,11 +397,16 @@ public class MimeBodyPart extends BodyPart implements MimePart {
 
     protected InputStream getContentStream() throws MessagingException {
         if (contentStream != null) {
+            // shared content gets a new stream each time, so it can be read more than once
+            if (contentStream instanceof SharedInputStream) {
+                return ((SharedInputStream)contentStream).newStream(0, -1);
+            }
             return contentStream;
         }
 
         if (content != null) {
-            return new ByteArrayInputStream(content);
+            // a shared stream allows parsed multipart content to reference this data in place
+            return new SharedByteArrayInputStream(content);
         } else {
             throw new MessagingException("No content");
         }
@@ -480,10 +494,15 @@ public class MimeBodyPart extends BodyPart implements MimePart {
     }
 
     public void writeTo(final OutputStream out) throws IOException, MessagingException {
-        headers.writeTo(out, null);
-        // add the separater between the headers and the data portion.
-        out.write('\r');
-        out.write('\n');
+        // write the headers and the separater between the headers and the data portion as one block
+        final HeaderBlock block = HeaderBlock.get();
+        try {
+            headers.writeTo(block, null);
+            block.appendLineEnd();
+            block.writeTo(out);
+        } finally {
+            block.release();
+        }
         // we need to process this using the transfer encoding type
         final OutputStream encodingStream = MimeUtility.encode(out, getEncoding());
         getDataHandler().writeTo(encodingStream);
@@ -563,11 +582,12 @@ public class MimeBodyPart extends BodyPart implements MimePart {
         try {
             // figure out the content type.  If not set, we'll need to figure this out.
             String type = dh.getContentType();
-            // parse this content type out so we can do matches/compares.
-            final ContentType contentType = new ContentType(type);
-            
             // we might need to reconcile the content type and our explicitly set type
             final String explicitType = getSingleHeader("Content-Type"); 
+            // parse this content type out so we can do matches/compares.  This is only modified
+            // when there's no explicit header, so we can share the cached parse of that header.
+            final ContentType contentType = explicitType != null && explicitType.equals(type)
+                ? parsedHeaders.getContentType(type) : new ContentType(type);
             // is this a multipart content?
             if (contentType.match("multipart/*")) {
                 // the content is suppose to be a MimeMultipart.  Ping it to update it's headers as well.
@@ -27,6 +27,8 @@ import java.io.InputStream;
 import java.io.ObjectStreamException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -34,8 +36,10 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.Flags;
 import javax.mail.Folder;
@@ -46,8 +50,10 @@ import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
 import javax.mail.internet.HeaderTokenizer.Token;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.geronimo.mail.util.ASCIIUtil;
+import org.apache.geronimo.mail.util.ChannelWriter;
 import org.apache.geronimo.mail.util.SessionUtil;
 
 /**
@@ -62,7 +68,60 @@ public class MimeMessage extends Message implements MimePart {
 	private static final String MAIL_REPLYALLCC = "mail.replyallcc";
 
     // static used to ensure message ID uniqueness
-    private static int messageID = 0;
+    private static final AtomicLong messageID = new AtomicLong();
+
+    // the methods a subclass can override to change how a message is read or written, or
+    // what its headers and content look like to the code copying or writing it.
+    private static final Object[][] FORMAT_METHODS = {
+        { "parse", new Class[] { InputStream.class } },
+        { "createInternetHeaders", new Class[] { InputStream.class } },
+        { "getContentStream", new Class[0] },
+        { "writeTo", new Class[] { OutputStream.class } },
+        { "writeTo", new Class[] { OutputStream.class, String[].class } },
+        { "getHeader", new Class[] { String.class } },
+        { "getHeader", new Class[] { String.class, String.class } },
+        { "getAllHeaders", new Class[0] },
+        { "getNonMatchingHeaderLines", new Class[] { String[].class } },
+        { "getDataHandler", new Class[0] },
+        { "getContent", new Class[0] },
+        { "getInputStream", new Class[0] },
+        { "getRawInputStream", new Class[0] },
+    };
+
+    // records, per message class, whether any of the FORMAT_METHODS have been overridden.
+    private static final ClassValue<Boolean> STANDARD_FORMAT = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(final Class<?> type) {
+            try {
+                for (Class<?> c = type; c != MimeMessage.class; c = c.getSuperclass()) {
+                    for (int i = 0; i < FORMAT_METHODS.length; i++) {
+                        try {
+                            c.getDeclaredMethod((String)FORMAT_METHODS[i][0], (Class[])FORMAT_METHODS[i][1]);
+                            return Boolean.FALSE;
+                        } catch (final NoSuchMethodException e) {
+                            // not overridden at this level
+                        }
+                    }
+                }
+                return Boolean.TRUE;
+            } catch (final SecurityException e) {
+                return Boolean.FALSE;
+            }
+        }
+    };
+
+    // give the channel writer access to the raw message data
+    static {
+        ChannelWriter.setMessageAccess(new ChannelWriter.MessageAccess() {
+            public Object getRawContent(final MimeMessage message) throws MessagingException {
+                return message.getRawContent();
+            }
+
+            public void writeHeaders(final MimeMessage message, final String[] ignoreHeaders, final WritableByteChannel channel, final ByteBuffer content) throws IOException {
+                message.writeHeaders(ignoreHeaders, channel, content);
+            }
+        });
+    }
 
 
     /**
@@ -114,6 +173,9 @@ public class MimeMessage extends Message implements MimePart {
      * @since   JavaMail 1.5
      */
     protected Object cachedContent;
+
+    // the parsed Content-Type and Content-Disposition headers, so type checks don't reparse them
+    private final ParsedHeaderCache parsedHeaders = new ParsedHeaderCache();
     
     
     
@@ -124,6 +186,13 @@ public class MimeMessage extends Message implements MimePart {
      * if this field is non-null, then {@link #content} will be null.
      */
     protected InputStream contentStream;
+
+    // the transfer encoding of the raw content when it was loaded.  As long as the content has
+    // not been replaced and the encoding is unchanged, a saved message can write the raw content
+    // out directly rather than decoding and encoding it again.
+    private String rawEncoding;
+    private boolean rawContentValid;
+
     /**
      * This message's headers.
      */
@@ -142,8 +211,6 @@ public class MimeMessage extends Message implements MimePart {
      */
     protected boolean saved;
 
-    private final MailDateFormat dateFormat = new MailDateFormat();
-
     /**
      * Create a new MimeMessage.
      * An empty message is created, with empty {@link #headers} and empty {@link #flags}.
@@ -186,6 +253,24 @@ public class MimeMessage extends Message implements MimePart {
         super(message.session);
         // get a copy of the source message flags 
         flags = message.getFlags(); 
+        // if the source holds its content as raw bytes, we can copy the headers and share the
+        // content directly.  The content is never modified in place, so it can safely be shared
+        // until one of the messages gets new content.
+        if (canShareContent(message)) {
+            headers = new InternetHeaders(message.headers);
+            if (message.content != null) {
+                content = message.content;
+            }
+            else {
+                contentStream = ((SharedInputStream)message.contentStream).newStream(0, -1);
+            }
+            rawEncoding = message.rawEncoding;
+            rawContentValid = message.rawContentValid;
+            saved = true;
+            modified = false;
+            return;
+        }
+
         // this is somewhat difficult to do.  There's a lot of data in both the superclass and this
         // class that needs to undergo a "deep cloning" operation.  These operations don't really exist
         // on the objects in question, so the only solution I can come up with is to serialize the
@@ -218,6 +303,27 @@ public class MimeMessage extends Message implements MimePart {
         }
     }
 
+    /**
+     * Test whether the copy constructor can take the headers and content
+     * of a message directly, rather than writing the message out and
+     * parsing it again.  This requires an unmodified, saved message with
+     * its content loaded, and neither message class may change the way
+     * messages are read or written.
+     *
+     * @param message The source message.
+     *
+     * @return true if the content can be shared with the source message.
+     */
+    private boolean canShareContent(final MimeMessage message) {
+        if (message.modified || !message.saved || message.headers == null) {
+            return false;
+        }
+        if (message.content == null && !(message.contentStream instanceof SharedInputStream)) {
+            return false;
+        }
+        return STANDARD_FORMAT.get(message.getClass()).booleanValue() && STANDARD_FORMAT.get(getClass()).booleanValue();
+    }
+
     /**
      * Create an new MimeMessage in the supplied {@link Folder} and message number.
      *
@@ -266,6 +372,7 @@ public class MimeMessage extends Message implements MimePart {
         this(folder, number);
         this.headers = headers;
         this.content = content;
+        recordRawEncoding();
         // this message is complete, so marked as unmodified.
         modified = false;
     }
@@ -277,6 +384,15 @@ public class MimeMessage extends Message implements MimePart {
      * @throws MessagingException if there was a problem parsing the stream
      */
     protected void parse(InputStream in) throws MessagingException {
+        // a shared stream lets us reference the content in place rather than copying it
+        if (in instanceof SharedInputStream) {
+            headers = createInternetHeaders(in);
+            final SharedInputStream sin = (SharedInputStream)in;
+            contentStream = sin.newStream(sin.getPosition(), -1);
+            recordRawEncoding();
+            return;
+        }
+
         in = new BufferedInputStream(in);
         // create the headers first from the stream.  Note:  We need to do this 
         // by calling createInternetHeaders because subclasses might wish to add 
@@ -297,6 +413,19 @@ public class MimeMessage extends Message implements MimePart {
         }
         // and finally extract the content as a byte array.
         content = baos.toByteArray();
+        recordRawEncoding();
+    }
+
+    /**
+     * Remember the transfer encoding of newly loaded content, so
+     * {@link #writeTo(OutputStream, String[])} can tell whether the raw
+     * content still matches the headers.
+     *
+     * @exception MessagingException
+     */
+    private void recordRawEncoding() throws MessagingException {
+        rawEncoding = getEncoding();
+        rawContentValid = true;
     }
 
     /**
@@ -639,11 +768,7 @@ public class MimeMessage extends Message implements MimePart {
         if (value == null) {
             return null;
         }
-        try {
-            return dateFormat.parse(value);
-        } catch (final java.text.ParseException e) {
-            return null;
-        }
+        return MailDateFormatter.INSTANCE.parse(value);
     }
 
     /**
@@ -656,7 +781,7 @@ public class MimeMessage extends Message implements MimePart {
      */
     @Override
     public void setSentDate(final Date sent) throws MessagingException {
-        setOrRemoveHeader("Date", dateFormat.format(sent));
+        setOrRemoveHeader("Date", sent == null ? null : MailDateFormatter.INSTANCE.format(sent));
     }
 
     /**
@@ -737,7 +862,7 @@ public class MimeMessage extends Message implements MimePart {
      * @exception MessagingException
      */
     public boolean isMimeType(final String type) throws MessagingException {
-        return new ContentType(getContentType()).match(type);
+        return parsedHeaders.getContentType(getContentType()).match(type);
     }
 
     /**
@@ -751,7 +876,7 @@ public class MimeMessage extends Message implements MimePart {
     public String getDisposition() throws MessagingException {
         final String disp = getSingleHeader("Content-Disposition");
         if (disp != null) {
-            return new ContentDisposition(disp).getDisposition();
+            return parsedHeaders.getDisposition(disp).getDisposition();
         }
         return null;
     }
@@ -895,11 +1020,11 @@ public class MimeMessage extends Message implements MimePart {
 
     public String getFileName() throws MessagingException {
         // see if there is a disposition.  If there is, parse off the filename parameter.
-        final String disposition = getDisposition();
+        final String disposition = getSingleHeader("Content-Disposition");
         String filename = null;
 
         if (disposition != null) {
-            filename = new ContentDisposition(disposition).getParameter("filename");
+            filename = parsedHeaders.getDisposition(disposition).getParameter("filename");
         }
 
         // if there's no filename on the disposition, there might be a name parameter on a
@@ -908,7 +1033,7 @@ public class MimeMessage extends Message implements MimePart {
             final String type = getContentType();
             if (type != null) {
                 try {
-                    filename = new ContentType(type).getParameter("name");
+                    filename = parsedHeaders.getContentType(type).getParameter("name");
                 } catch (final ParseException e) {
                 }
             }
@@ -957,11 +1082,16 @@ public class MimeMessage extends Message implements MimePart {
 
     protected InputStream getContentStream() throws MessagingException {
         if (contentStream != null) {
+            // shared content gets a new stream each time, so it can be read more than once
+            if (contentStream instanceof SharedInputStream) {
+                return ((SharedInputStream)contentStream).newStream(0, -1);
+            }
             return contentStream;
         }
 
         if (content != null) {
-            return new ByteArrayInputStream(content);
+            // a shared stream allows parsed multipart content to reference this data in place
+            return new SharedByteArrayInputStream(content);
         } else {
             throw new MessagingException("No content");
         }
@@ -1006,6 +1136,7 @@ public class MimeMessage extends Message implements MimePart {
         removeHeader("Content-Type");
         removeHeader("Content-Transfer-Encoding");
         cachedContent = null;
+        rawContentValid = false;
     }
 
     public void setContent(final Object content, final String type) throws MessagingException {
@@ -1278,15 +1409,19 @@ public class MimeMessage extends Message implements MimePart {
             saveChanges();
         }
 
-        // write out the headers first
-        headers.writeTo(out, ignoreHeaders);
-        // add the separater between the headers and the data portion.
-        out.write('\r');
-        out.write('\n');
+        // write out the headers first, with the separater between the headers and the data portion
+        final HeaderBlock block = HeaderBlock.get();
+        try {
+            headers.writeTo(block, ignoreHeaders);
+            block.appendLineEnd();
+            block.writeTo(out);
+        } finally {
+            block.release();
+        }
 
         // if the modfied flag, we don't have current content, so the data handler needs to
         // take care of writing this data out.
-        if (modified) {
+        if (modified && !isRawContentCurrent()) {
             final OutputStream encoderStream = MimeUtility.encode(out, getEncoding());
             dh.writeTo(encoderStream);
             encoderStream.flush();
@@ -1316,6 +1451,99 @@ public class MimeMessage extends Message implements MimePart {
     }
 
 
+    /**
+     * Test whether the raw content of a modified message can be written
+     * out as it is.  This is true if only the headers have been changed:
+     * the content has not been replaced, and still has the transfer
+     * encoding it was loaded with.  Writing the data handler in that case
+     * would only decode the content and encode it again.
+     *
+     * @return true if the raw content matches the current headers.
+     * @exception MessagingException
+     */
+    private boolean isRawContentCurrent() throws MessagingException {
+        if (!rawContentValid || cachedContent != null || (content == null && contentStream == null)) {
+            return false;
+        }
+        // the data handler must still be reading from our own content
+        if (dh != null) {
+            final DataSource source = dh.getDataSource();
+            if (!(source instanceof MimePartDataSource) || ((MimePartDataSource)source).part != this) {
+                return false;
+            }
+        }
+        return isSameEncoding(rawEncoding, getEncoding());
+    }
+
+
+    /**
+     * Compare two transfer encodings.  The identity encodings (no encoding,
+     * 7bit, 8bit and binary) leave the data unchanged, so they all match.
+     *
+     * @param first  The first encoding.
+     * @param second The second encoding.
+     *
+     * @return true if data encoded one way is also correctly encoded the other.
+     */
+    private static boolean isSameEncoding(final String first, final String second) {
+        if (isIdentityEncoding(first)) {
+            return isIdentityEncoding(second);
+        }
+        return first.equalsIgnoreCase(second);
+    }
+
+    private static boolean isIdentityEncoding(final String encoding) {
+        return encoding == null || encoding.equalsIgnoreCase("7bit") || encoding.equalsIgnoreCase("8bit")
+            || encoding.equalsIgnoreCase("binary");
+    }
+
+
+    /**
+     * Return the raw content of this message, if it can be written
+     * as it is.  Any changes are saved first.  This is used by
+     * {@link ChannelWriter}.
+     *
+     * @return The content byte array, a stream of the content data, or null
+     *         if the content needs encoding or this class has its own
+     *         format, so the message must go through writeTo().
+     * @exception MessagingException
+     */
+    Object getRawContent() throws MessagingException {
+        // make sure everything is saved before we write
+        if (!saved) {
+            saveChanges();
+        }
+        if ((modified && !isRawContentCurrent()) || !STANDARD_FORMAT.get(getClass()).booleanValue()) {
+            return null;
+        }
+        return content != null ? content : getContentStream();
+    }
+
+    /**
+     * Write the header block of this message to a channel, including
+     * the blank line that separates it from the content.  Any content
+     * given goes out in the same write.  This is used by {@link ChannelWriter}.
+     *
+     * @param ignoreHeaders
+     *               An array of header types to ignore.  This can be null, which means
+     *               write out all headers.
+     * @param channel The target channel.
+     * @param content Content to write after the headers (can be null).
+     *
+     * @exception IOException
+     */
+    void writeHeaders(final String[] ignoreHeaders, final WritableByteChannel channel, final ByteBuffer content) throws IOException {
+        final HeaderBlock block = HeaderBlock.get();
+        try {
+            headers.writeTo(block, ignoreHeaders);
+            block.appendLineEnd();
+            ChannelWriter.write(channel, block.toByteBuffer(), content);
+        } finally {
+            block.release();
+        }
+    }
+
+
     /**
      * Retrieve all headers that match a given name.
      *
@@ -1511,8 +1739,10 @@ public class MimeMessage extends Message implements MimePart {
             String type = dh.getContentType();
             // we might need to reconcile the content type and our explicitly set type
             final String explicitType = getSingleHeader("Content-Type"); 
-            // parse this content type out so we can do matches/compares.
-            final ContentType contentType = new ContentType(type);
+            // parse this content type out so we can do matches/compares.  This is only modified
+            // when there's no explicit header, so we can share the cached parse of that header.
+            final ContentType contentType = explicitType != null && explicitType.equals(type)
+                ? parsedHeaders.getContentType(type) : new ContentType(type);
 
             // is this a multipart content?
             if (contentType.match("multipart/*")) {
@@ -1589,6 +1819,7 @@ public class MimeMessage extends Message implements MimePart {
             if (cachedContent != null) {
                 dh = new DataHandler(cachedContent, getContentType());
                 cachedContent = null;
+                rawContentValid = false;
                 content = null;
                 if (contentStream != null) {
                     try {
@@ -1745,26 +1976,16 @@ public class MimeMessage extends Message implements MimePart {
      * @exception MessagingException
      */
     protected void updateMessageID() throws MessagingException {
-        final StringBuffer id = new StringBuffer();
+        final StringBuilder id = new StringBuilder(80);
 
         id.append('<');
         id.append(new Object().hashCode());
         id.append('.');
-        id.append(messageID++);
-        id.append(System.currentTimeMillis());
+        id.append(messageID.getAndIncrement());
         id.append('.');
-        id.append("JavaMail.");
-
-        // get the local address and apply a suitable default.
-
-        final InternetAddress localAddress = InternetAddress.getLocalAddress(session);
-        if (localAddress != null) {
-            id.append(localAddress.getAddress());
-        }
-        else {
-            id.append("javamailuser@localhost");
-        }
-        id.append('>');
+        id.append(System.currentTimeMillis());
+        // the local address part (with a suitable default) is resolved once for each session.
+        id.append(LocalIdentity.getInstance(session).getMessageIDSuffix());
 
         setHeader("Message-ID", id.toString());
     }
@@ -20,18 +20,30 @@
 package javax.mail.internet;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.activation.DataSource;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.MultipartDataSource;
+import javax.mail.util.SharedFileInputStream;
 
+import org.apache.geronimo.mail.util.MailExecutor;
 import org.apache.geronimo.mail.util.SessionUtil;
 
 /**
@@ -42,6 +54,8 @@ public class MimeMultipart extends Multipart {
 	private static final String MIME_IGNORE_MISSING_BOUNDARY_PARAMETER = "mail.mime.multipart.ignoremissingboundaryparameter";
 	private static final String MIME_IGNORE_EXISTING_BOUNDARY_PARAMETER = "mail.mime.multipart.ignoreexistingboundaryparameter";
 	private static final String MIME_ALLOWEMPTY = "mail.mime.multipart.allowempty";
+	private static final String MIME_SPILL_THRESHOLD = "mail.mime.multipart.spillthreshold";
+	private static final String MIME_PARALLEL_WRITE = "mail.mime.multipart.parallelwrite";
 	
     /**
      * DataSource that provides our InputStream.
@@ -109,6 +123,22 @@ public class MimeMultipart extends Multipart {
      */
     protected boolean allowEmpty = false;
 
+    /**
+     * Value of the "mail.mime.multipart.spillthreshold" property.  Parsed
+     * parts with more content bytes than this are stored in a temporary file
+     * rather than in memory, as are parts encoded in parallel with more
+     * encoded bytes than this.  A negative value disables this.
+     */
+    private int spillThreshold = -1;
+
+    /**
+     * Value of the "mail.mime.multipart.parallelwrite" property.  If true,
+     * {@link #writeTo(OutputStream)} encodes the body parts concurrently on the
+     * shared mail executor, and then writes them out in order.  The body
+     * parts must be safe to write from other threads.
+     */
+    private boolean parallelWrite = false;
+
     /**
      * Initialize flags that control parsing behavior,
      * based on System properties described above in
@@ -122,6 +152,8 @@ public class MimeMultipart extends Multipart {
         ignoreMissingBoundaryParameter = SessionUtil.getBooleanProperty(MIME_IGNORE_MISSING_BOUNDARY_PARAMETER, true);
         ignoreExistingBoundaryParameter = SessionUtil.getBooleanProperty(MIME_IGNORE_EXISTING_BOUNDARY_PARAMETER, false);
         allowEmpty = SessionUtil.getBooleanProperty(MIME_ALLOWEMPTY, false);
+        spillThreshold = SessionUtil.getIntProperty(MIME_SPILL_THRESHOLD, -1);
+        parallelWrite = SessionUtil.getBooleanProperty(MIME_PARALLEL_WRITE, false);
          
     }
 
@@ -246,13 +278,18 @@ public class MimeMultipart extends Multipart {
             out.write(crlf);
         }
 
-        for (int i = 0; i < parts.size(); i++) {
-            final BodyPart bodyPart = (BodyPart) parts.get(i);
-            out.write(dash);
-            out.write(bytes);
-            out.write(crlf);
-            bodyPart.writeTo(out);
-            out.write(crlf);
+        if (parallelWrite && parts.size() > 1) {
+            writePartsConcurrently(out, bytes);
+        }
+        else {
+            for (int i = 0; i < parts.size(); i++) {
+                final BodyPart bodyPart = (BodyPart) parts.get(i);
+                out.write(dash);
+                out.write(bytes);
+                out.write(crlf);
+                bodyPart.writeTo(out);
+                out.write(crlf);
+            }
         }
         out.write(dash);
         out.write(bytes);
@@ -276,20 +313,28 @@ public class MimeMultipart extends Multipart {
                 throw new MessagingException("Missing boundary parameter in content-type");
             }           
                         
-            final InputStream is = new BufferedInputStream(ds.getInputStream());
-            BufferedInputStream pushbackInStream = null;
+            final InputStream source = ds.getInputStream();
+            // if the source data is shared, the parts can reference their data in place
+            // rather than copying it.  We need to work directly from the shared stream
+            // so that we can track positions.
+            SharedInputStream sin = null;
+            if (source instanceof SharedInputStream && source.markSupported()) {
+                sin = (SharedInputStream)source;
+            }
+            final InputStream is = sin != null ? source : new BufferedInputStream(source);
+            InputStream pushbackInStream = null;
             boolean boundaryFound = false;
             
             byte[] boundary = null;
             if (boundaryString == null || ignoreExistingBoundaryParameter) {
-                pushbackInStream = new BufferedInputStream(is, 1200);
+                pushbackInStream = sin != null ? is : new BufferedInputStream(is, 1200);
                 // read until we find something that looks like a boundary string
                 boundary = readTillFirstBoundary(pushbackInStream);
                 boundaryFound = boundary != null;
             }
             else {
                 boundary = ("--" + boundaryString).getBytes("ISO8859-1");
-                pushbackInStream = new BufferedInputStream(is, boundary.length + 1000);
+                pushbackInStream = sin != null ? is : new BufferedInputStream(is, boundary.length + 1000);
                 boundaryFound = readTillFirstBoundary(pushbackInStream, boundary);
             }
             
@@ -305,10 +350,24 @@ public class MimeMultipart extends Multipart {
             }
             
 
+            // the boundary search tables are shared by all of the parts
+            final BoundaryMatcher matcher = new BoundaryMatcher(boundary);
+
             while (true) {
                 MimeBodyPartInputStream partStream;
-                partStream = new MimeBodyPartInputStream(pushbackInStream, boundary);
-                addBodyPart(new MimeBodyPart(partStream));
+                partStream = new MimeBodyPartInputStream(pushbackInStream, boundary, matcher);
+                if (sin != null) {
+                    // just locate the end of the part, then create the part from a substream
+                    final long start = sin.getPosition();
+                    partStream.skipToBoundary();
+                    addBodyPart(createMimeBodyPart(sin.newStream(start, partStream.dataEnd)));
+                }
+                else if (spillThreshold >= 0) {
+                    addBodyPart(readBodyPart(partStream));
+                }
+                else {
+                    addBodyPart(new MimeBodyPart(partStream));
+                }
 
                 // terminated by an EOF rather than a proper boundary?
                 if (!partStream.boundaryFound) {
@@ -342,7 +401,7 @@ public class MimeMultipart extends Multipart {
      * @param boundary
      * @throws MessagingException
      */
-    private byte[] readTillFirstBoundary(final BufferedInputStream pushbackInStream) throws MessagingException {
+    private byte[] readTillFirstBoundary(final InputStream pushbackInStream) throws MessagingException {
         final ByteArrayOutputStream preambleStream = new ByteArrayOutputStream();
 
         try {
@@ -413,7 +472,7 @@ public class MimeMultipart extends Multipart {
      * @param boundary
      * @throws MessagingException
      */
-    private boolean readTillFirstBoundary(final BufferedInputStream pushbackInStream, final byte[] boundary) throws MessagingException {
+    private boolean readTillFirstBoundary(final InputStream pushbackInStream, final byte[] boundary) throws MessagingException {
         final ByteArrayOutputStream preambleStream = new ByteArrayOutputStream();
 
         try {
@@ -494,7 +553,7 @@ public class MimeMultipart extends Multipart {
      *         null if there's nothing left in the stream.
      * @exception MessagingException
      */
-    private byte[] readLine(final BufferedInputStream in) throws IOException
+    private byte[] readLine(final InputStream in) throws IOException
     {
         final ByteArrayOutputStream line = new ByteArrayOutputStream();
 
@@ -531,6 +590,179 @@ public class MimeMultipart extends Multipart {
     }
 
 
+    /**
+     * Read a body part from the part stream, keeping the content
+     * in memory unless it exceeds the spill threshold.  Larger
+     * content is written to a temporary file, which is then used
+     * as the part's shared content stream.
+     *
+     * @param in     The part data stream.
+     *
+     * @return The new body part.
+     * @exception MessagingException
+     */
+    private MimeBodyPart readBodyPart(final InputStream in) throws MessagingException {
+        final InternetHeaders partHeaders = createInternetHeaders(in);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+                // too large to keep in memory?  Move this to a file
+                if (content.size() > spillThreshold) {
+                    final MimeBodyPart part = createMimeBodyPart(partHeaders, null);
+                    part.contentStream = spillContent(content, buffer, in);
+                    return part;
+                }
+            }
+        } catch (final IOException e) {
+            throw new MessagingException(e.toString(), e);
+        }
+        return createMimeBodyPart(partHeaders, content.toByteArray());
+    }
+
+    /**
+     * Write the body parts, with their boundary lines.  Each part is
+     * encoded into its own buffer on the shared mail executor, and the
+     * buffers are copied to the target in order as they complete, so the
+     * output is the same as writing the parts one at a time.  Only a few
+     * more parts than there are executor threads are encoded ahead of the
+     * one being written, so the memory held does not grow with the size
+     * of the message.
+     *
+     * @param out      The target stream.
+     * @param boundary The boundary marker bytes.
+     *
+     * @exception IOException
+     * @exception MessagingException
+     */
+    private void writePartsConcurrently(final OutputStream out, final byte[] boundary) throws IOException, MessagingException {
+        final int count = parts.size();
+        final int window = Math.min(count, MailExecutor.getThreadCount() + 1);
+        final List<FutureTask<PartBuffer>> tasks = new ArrayList<FutureTask<PartBuffer>>(count);
+        for (int i = 0; i < window; i++) {
+            submitPart(tasks, i);
+        }
+
+        int next = 0;
+        try {
+            while (next < count) {
+                final PartBuffer buffer = getPartBuffer(tasks.get(next++));
+                try {
+                    // keep the window full while this part is copied out
+                    if (tasks.size() < count) {
+                        submitPart(tasks, tasks.size());
+                    }
+                    out.write(dash);
+                    out.write(boundary);
+                    out.write(crlf);
+                    buffer.writeTo(out);
+                    out.write(crlf);
+                } finally {
+                    buffer.release();
+                }
+            }
+        } finally {
+            // if we failed part way, stop the parts that have not started, and wait for
+            // the ones already being encoded so their buffers can be released
+            for (int i = next; i < tasks.size(); i++) {
+                final FutureTask<PartBuffer> task = tasks.get(i);
+                if (!task.cancel(false)) {
+                    try {
+                        task.get().release();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (final ExecutionException e) {
+                        // the writer has already released its buffer
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the encoding of a body part on the mail executor.
+     *
+     * @param tasks  The tasks queued so far.
+     * @param index  The index of the part to encode.
+     */
+    private void submitPart(final List<FutureTask<PartBuffer>> tasks, final int index) {
+        final FutureTask<PartBuffer> task = new FutureTask<PartBuffer>(new PartWriter((BodyPart) parts.get(index), spillThreshold));
+        tasks.add(task);
+        MailExecutor.execute(task);
+    }
+
+    /**
+     * Wait for an encoded body part, rethrowing any
+     * failure from the encoding task.  If the part has not
+     * been started yet, it is encoded on the calling thread.
+     *
+     * @param task   The encoding task.
+     *
+     * @return The buffer holding the encoded part.
+     * @exception IOException
+     * @exception MessagingException
+     */
+    private static PartBuffer getPartBuffer(final FutureTask<PartBuffer> task) throws IOException, MessagingException {
+        try {
+            return MailExecutor.join(task);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing multipart content");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof MessagingException) {
+                throw (MessagingException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new MessagingException("Error writing body part", (Exception)cause);
+        }
+    }
+
+    /**
+     * Write part content to a temporary file, returning a shared
+     * stream for accessing the data.  The file is deleted as soon as
+     * the stream is opened, so the data is released once the last
+     * stream sharing it is closed or finalized.  If the file
+     * cannot be deleted while open, it is deleted on exit.
+     *
+     * @param content The content read so far.
+     * @param buffer  A buffer for copying the remainder.
+     * @param in      The stream with the remaining content.
+     *
+     * @return A SharedFileInputStream for the spilled content.
+     * @exception IOException
+     */
+    private InputStream spillContent(final ByteArrayOutputStream content, final byte[] buffer, final InputStream in) throws IOException {
+        final File file = File.createTempFile("javamail", ".part");
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                content.writeTo(out);
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+            return new SharedFileInputStream(file);
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
     protected InternetHeaders createInternetHeaders(final InputStream in) throws MessagingException {
         return new InternetHeaders(in);
     }
@@ -556,16 +788,339 @@ public class MimeMultipart extends Multipart {
         return buf.toString();
     }
 
+    /**
+     * Encodes a single body part into a buffer.
+     */
+    private static final class PartWriter implements Callable<PartBuffer> {
+        private final BodyPart part;
+        private final int spillThreshold;
+
+        PartWriter(final BodyPart part, final int spillThreshold) {
+            this.part = part;
+            this.spillThreshold = spillThreshold;
+        }
+
+        public PartBuffer call() throws Exception {
+            final PartBuffer buffer = new PartBuffer(spillThreshold);
+            try {
+                part.writeTo(buffer);
+                buffer.close();
+                return buffer;
+            } catch (final Exception e) {
+                buffer.release();
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * Holds the encoded data for a body part.  The data is kept in memory
+     * unless it grows beyond the spill threshold, in which case it is moved
+     * to a temporary file.  As with parsed content, the file is deleted as
+     * soon as it is opened, so the space is released once the buffer is.
+     */
+    private static final class PartBuffer extends OutputStream {
+        private final int threshold;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+        // the spill file streams.  The input is opened up front, so the file can be deleted right away.
+        private OutputStream fileOut;
+        private InputStream fileIn;
+        private File file;
+
+        PartBuffer(final int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (fileOut == null) {
+                checkSpill(1);
+            }
+            if (fileOut != null) {
+                fileOut.write(b);
+            }
+            else {
+                memory.write(b);
+            }
+        }
+
+        @Override
+        public void write(final byte[] data, final int offset, final int length) throws IOException {
+            if (fileOut == null) {
+                checkSpill(length);
+            }
+            if (fileOut != null) {
+                fileOut.write(data, offset, length);
+            }
+            else {
+                memory.write(data, offset, length);
+            }
+        }
+
+        /**
+         * Move the data to a temporary file if adding more
+         * data would take it over the threshold.
+         *
+         * @param length The number of bytes about to be written.
+         *
+         * @exception IOException
+         */
+        private void checkSpill(final int length) throws IOException {
+            if (threshold < 0 || memory.size() + (long)length <= threshold) {
+                return;
+            }
+            file = File.createTempFile("javamail", ".part");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 8192);
+            fileIn = new FileInputStream(file);
+            if (file.delete()) {
+                file = null;
+            }
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+
+        /**
+         * Copy the buffered data to a stream.
+         *
+         * @param out    The target stream.
+         *
+         * @exception IOException
+         */
+        void writeTo(final OutputStream out) throws IOException {
+            if (fileIn == null) {
+                memory.writeTo(out);
+                return;
+            }
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = fileIn.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
+
+        /**
+         * Release the buffered data, closing and removing
+         * any spill file.
+         */
+        void release() {
+            memory = null;
+            try {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+                if (fileIn != null) {
+                    fileIn.close();
+                }
+            } catch (final IOException e) {
+                // nothing more we can do with this
+            }
+            // the file could not be deleted while it was open
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+
+    /**
+     * Locates potential boundary lines in a block of data using a
+     * Boyer-Moore-Horspool search for the line end and boundary
+     * sequence ("\n--boundary").  A match only identifies a candidate
+     * boundary line; the trailing "--", white space and line end
+     * are verified separately.
+     */
+    private static final class BoundaryMatcher {
+        // the search pattern, a linefeed followed by the boundary marker
+        final byte[] pattern;
+        // the Horspool bad character skip table
+        private final int[] skip = new int[256];
+
+        BoundaryMatcher(final byte[] boundary) {
+            pattern = new byte[boundary.length + 1];
+            pattern[0] = '\n';
+            System.arraycopy(boundary, 0, pattern, 1, boundary.length);
+
+            final int last = pattern.length - 1;
+            Arrays.fill(skip, pattern.length);
+            for (int i = 0; i < last; i++) {
+                skip[pattern[i] & 0xff] = last - i;
+            }
+        }
+
+        /**
+         * Search a block of data for the pattern.
+         *
+         * @param data   The data buffer.
+         * @param start  The starting search offset.
+         * @param end    The end of the data (exclusive).
+         *
+         * @return The offset of the match, or -1 if the pattern was not found.
+         */
+        int find(final byte[] data, final int start, final int end) {
+            final int last = pattern.length - 1;
+            int pos = start;
+            while (pos + last < end) {
+                int i = last;
+                while (data[pos + i] == pattern[i]) {
+                    if (i == 0) {
+                        return pos;
+                    }
+                    i--;
+                }
+                pos += skip[data[pos + last] & 0xff];
+            }
+            return -1;
+        }
+    }
+
     private class MimeBodyPartInputStream extends InputStream {
-        BufferedInputStream inStream;
+        // the maximum amount of data examined in a single bulk read
+        private static final int WINDOW_SIZE = 8192;
+
+        // the source stream, which must support mark/reset
+        InputStream inStream;
         public boolean boundaryFound = false;
         byte[] boundary;
         public boolean finalBoundaryFound = false;
+        // the boundary search used by the bulk read path
+        private final BoundaryMatcher matcher;
+        // for shared sources, the source position following the last byte of part data
+        private final SharedInputStream shared;
+        long dataEnd;
 
         public MimeBodyPartInputStream(final BufferedInputStream inStream, final byte[] boundary) {
+            this(inStream, boundary, new BoundaryMatcher(boundary));
+        }
+
+        MimeBodyPartInputStream(final InputStream inStream, final byte[] boundary, final BoundaryMatcher matcher) {
             super();
             this.inStream = inStream;
             this.boundary = boundary;
+            this.matcher = matcher;
+            this.shared = inStream instanceof SharedInputStream ? (SharedInputStream)inStream : null;
+            if (shared != null) {
+                dataEnd = shared.getPosition();
+            }
+        }
+
+        /**
+         * Read through the rest of the part data, stopping at
+         * the boundary or the end of the stream.
+         *
+         * @exception IOException
+         */
+        void skipToBoundary() throws IOException {
+            final byte[] buffer = new byte[WINDOW_SIZE];
+            while (read(buffer, 0, WINDOW_SIZE) != -1) {
+                // just discarding the data
+            }
+        }
+
+        /**
+         * Bulk read of the part data.  This returns the data up to (but
+         * not including) the first line end that might begin a boundary
+         * line.  A line end that is a potential boundary is handed to
+         * the single character {@link #read()} method, which performs
+         * the full boundary validation.
+         *
+         * @param buffer The target buffer.
+         * @param offset The starting offset within the buffer.
+         * @param length The maximum number of bytes to read.
+         *
+         * @return The number of bytes read, or -1 if we've hit the boundary or
+         *         the end of the stream.
+         * @exception IOException
+         */
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (boundaryFound) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            final int window = Math.min(length, WINDOW_SIZE);
+            // we might read past the boundary, so mark the position to give that data back
+            inStream.mark(window);
+            final int count = inStream.read(buffer, offset, window);
+            if (count <= 0) {
+                return -1;
+            }
+            final int end = offset + count;
+
+            // any line end near the end of the window might be the start of a boundary
+            // that straddles the window, so we hold that data back for the next read.
+            int runEnd = end;
+            for (int i = Math.max(offset, end - matcher.pattern.length); i < end; i++) {
+                if (buffer[i] == '\r' || buffer[i] == '\n') {
+                    runEnd = i;
+                    break;
+                }
+            }
+
+            // now search the rest for a complete boundary marker.  This includes a marker that
+            // starts at the held back line end, which matters when that line end is a linefeed
+            // whose carriage return is just in front of the held back data.
+            final int match = matcher.find(buffer, offset, Math.min(end, runEnd + matcher.pattern.length));
+            if (match != -1 && match <= runEnd) {
+                runEnd = match;
+                // a CRLF line end belongs with the boundary
+                if (runEnd > offset && buffer[runEnd - 1] == '\r') {
+                    runEnd--;
+                }
+            }
+
+            // give back everything after the data run
+            if (runEnd < end) {
+                inStream.reset();
+                skipFully(runEnd - offset);
+            }
+
+            // if we're positioned at a potential boundary, let the single character
+            // read sort it out.
+            if (runEnd == offset) {
+                final int ch = read();
+                if (ch == -1) {
+                    return -1;
+                }
+                buffer[offset] = (byte)ch;
+                return 1;
+            }
+            if (shared != null) {
+                dataEnd = shared.getPosition();
+            }
+            return runEnd - offset;
+        }
+
+        /**
+         * Skip over data in the source stream that has already been
+         * returned from a bulk read.
+         *
+         * @param count  The number of bytes to skip.
+         * @exception IOException
+         */
+        private void skipFully(long count) throws IOException {
+            while (count > 0) {
+                final long skipped = inStream.skip(count);
+                if (skipped <= 0) {
+                    if (inStream.read() == -1) {
+                        return;
+                    }
+                    count--;
+                }
+                else {
+                    count -= skipped;
+                }
+            }
         }
 
         /**
@@ -577,6 +1132,22 @@ public class MimeMultipart extends Multipart {
          */
         @Override
         public int read() throws IOException {
+            final int ch = readByte();
+            // keep track of where the part data ends in shared sources
+            if (ch != -1 && shared != null) {
+                dataEnd = shared.getPosition();
+            }
+            return ch;
+        }
+
+        /**
+         * Read a single character of data, handling the boundary
+         * detection.
+         *
+         * @return The read character, or -1 if an EOF or the boundary was encountered.
+         * @exception IOException
+         */
+        private int readByte() throws IOException {
             if (boundaryFound) {
                 return -1;
             }
@@ -20,16 +20,20 @@
 package javax.mail.internet;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -37,7 +41,6 @@ import javax.mail.EncodingAware;
 import javax.mail.MessagingException;
 
 import org.apache.geronimo.mail.util.ASCIIUtil;
-import org.apache.geronimo.mail.util.Base64;
 import org.apache.geronimo.mail.util.Base64DecoderStream;
 import org.apache.geronimo.mail.util.Base64Encoder;
 import org.apache.geronimo.mail.util.Base64EncoderStream;
@@ -59,6 +62,8 @@ public class MimeUtility {
     private static final String MIME_FOLDENCODEDWORDS = "mail.mime.foldencodedwords";
     private static final String MIME_DECODE_TEXT_STRICT = "mail.mime.decodetext.strict";
     private static final String MIME_FOLDTEXT = "mail.mime.foldtext";
+    // the maximum number of content bytes examined to choose a transfer encoding
+    private static final String MIME_ENCODING_SCANLIMIT = "mail.mime.encoding.scanlimit";
     private static final int FOLD_THRESHOLD = 76;
 
     private MimeUtility() {
@@ -77,6 +82,15 @@ public class MimeUtility {
     private static Map java2mime;
     private static Map mime2java;
 
+    // resolved charsets, indexed by the lower case MIME name.  Charset names come from
+    // message headers, so the number of entries is capped.
+    private static final int MAX_CACHED_CHARSETS = 64;
+    private static final ConcurrentMap<String, Charset> charsets = new ConcurrentHashMap<String, Charset>();
+
+    // the word encoders don't keep any state, so a single instance of each can be shared.
+    private static final Base64Encoder base64WordEncoder = new Base64Encoder();
+    private static final QuotedPrintableEncoder qpWordEncoder = new QuotedPrintableEncoder();
+
     static {
         // we need to load the mapping tables used by javaCharset() and mimeCharset().
         loadCharacterSetMappings();
@@ -133,7 +147,7 @@ public class MimeUtility {
         int startWhiteSpace = -1;
         int endWhiteSpace = -1;
 
-        final StringBuffer decodedText = new StringBuffer(text.length());
+        final StringBuilder decodedText = new StringBuilder(text.length());
 
         boolean previousTokenEncoded = false;
 
@@ -173,18 +187,16 @@ public class MimeUtility {
 
                     //NB:  Trailing whitespace on these header strings will just be discarded.
                 }
-                // pull out the word token.
-                final String word = text.substring(wordStart, offset);
-                // is the token encoded?  decode the word
-                if (word.startsWith("=?")) {
+                // is the token encoded?  decode the word directly from the text
+                if (text.startsWith("=?", wordStart)) {
                     try {
                         // if this gives a parsing failure, treat it like a non-encoded word.
-                        final String decodedWord = decodeWord(word);
+                        final String decodedWord = EncodedWordDecoder.decode(text, wordStart, offset);
 
                         // are any whitespace characters significant?  Append 'em if we've got 'em.
                         if (!previousTokenEncoded) {
                             if (startWhiteSpace != -1) {
-                                decodedText.append(text.substring(startWhiteSpace, endWhiteSpace));
+                                decodedText.append(text, startWhiteSpace, endWhiteSpace);
                                 startWhiteSpace = -1;
                             }
                         }
@@ -202,12 +214,12 @@ public class MimeUtility {
                 // this is a normal token, so it doesn't matter what the previous token was.  Add the white space
                 // if we have it.
                 if (startWhiteSpace != -1) {
-                    decodedText.append(text.substring(startWhiteSpace, endWhiteSpace));
+                    decodedText.append(text, startWhiteSpace, endWhiteSpace);
                     startWhiteSpace = -1;
                 }
                 // this is not a decoded token.
                 previousTokenEncoded = false;
-                decodedText.append(word);
+                decodedText.append(text, wordStart, offset);
             }
         }
 
@@ -385,67 +397,7 @@ public class MimeUtility {
      * @exception UnsupportedEncodingException
      */
     public static String decodeWord(final String word) throws ParseException, UnsupportedEncodingException {
-        // encoded words start with the characters "=?".  If this not an encoded word, we throw a
-        // ParseException for the caller.
-
-        if (!word.startsWith("=?")) {
-            throw new ParseException("Invalid RFC 2047 encoded-word: " + word);
-        }
-
-        final int charsetPos = word.indexOf('?', 2);
-        if (charsetPos == -1) {
-            throw new ParseException("Missing charset in RFC 2047 encoded-word: " + word);
-        }
-
-        // pull out the character set information (this is the MIME name at this point).
-        final String charset = word.substring(2, charsetPos).toLowerCase();
-
-        // now pull out the encoding token the same way.
-        final int encodingPos = word.indexOf('?', charsetPos + 1);
-        if (encodingPos == -1) {
-            throw new ParseException("Missing encoding in RFC 2047 encoded-word: " + word);
-        }
-
-        final String encoding = word.substring(charsetPos + 1, encodingPos);
-
-        // and finally the encoded text.
-        final int encodedTextPos = word.indexOf("?=", encodingPos + 1);
-        if (encodedTextPos == -1) {
-            throw new ParseException("Missing encoded text in RFC 2047 encoded-word: " + word);
-        }
-
-        final String encodedText = word.substring(encodingPos + 1, encodedTextPos);
-
-        // seems a bit silly to encode a null string, but easy to deal with.
-        if (encodedText.length() == 0) {
-            return "";
-        }
-
-        try {
-            // the decoder writes directly to an output stream.
-            final ByteArrayOutputStream out = new ByteArrayOutputStream(encodedText.length());
-
-            final byte[] encodedData = encodedText.getBytes("US-ASCII");
-
-            // Base64 encoded?
-            if (encoding.equals("B")) {
-                Base64.decode(encodedData, out);
-            }
-            // maybe quoted printable.
-            else if (encoding.equals("Q")) {
-                final QuotedPrintableEncoder dataEncoder = new QuotedPrintableEncoder();
-                dataEncoder.decodeWord(encodedData, out);
-            }
-            else {
-                throw new UnsupportedEncodingException("Unknown RFC 2047 encoding: " + encoding);
-            }
-            // get the decoded byte data and convert into a string.
-            final byte[] decodedData = out.toByteArray();
-            return new String(decodedData, javaCharset(charset));
-        } catch (final IOException e) {
-            throw new UnsupportedEncodingException("Invalid RFC 2047 encoding");
-        }
-
+        return EncodedWordDecoder.decode(word, 0, word.length());
     }
 
     /**
@@ -574,14 +526,12 @@ public class MimeUtility {
             
             // now do the appropriate encoding work 
             if (encoder.equals("base64")) {
-                final Base64Encoder dataEncoder = new Base64Encoder();
                 // this may recurse on the encoding if the string is too long.  The left-most will not 
                 // get a segment delimiter 
-                encodeBase64(word, result, sizeLimit, charset, dataEncoder, true, SessionUtil.getBooleanProperty(MIME_FOLDENCODEDWORDS, false)); 
+                encodeBase64(word, result, sizeLimit, charset, base64WordEncoder, true, SessionUtil.getBooleanProperty(MIME_FOLDENCODEDWORDS, false)); 
             }
             else {
-                final QuotedPrintableEncoder dataEncoder = new QuotedPrintableEncoder();
-                encodeQuotedPrintable(word, result, sizeLimit, charset, dataEncoder, true, 
+                encodeQuotedPrintable(word, result, sizeLimit, charset, qpWordEncoder, true, 
                     SessionUtil.getBooleanProperty(MIME_FOLDENCODEDWORDS, false), encodingWord ? QP_WORD_SPECIALS : QP_TEXT_SPECIALS); 
             }
             return result.toString();    
@@ -612,7 +562,7 @@ public class MimeUtility {
     static private void encodeBase64(final String data, final StringBuffer out, final int sizeLimit, final String charset, final Base64Encoder encoder, final boolean firstSegment, final boolean foldSegments) throws IOException
     {
         // this needs to be converted into the appropriate transfer encoding. 
-        final byte [] bytes = data.getBytes(javaCharset(charset)); 
+        final byte [] bytes = data.getBytes(getCharset(charset)); 
         
         final int estimatedSize = encoder.estimateEncodedLength(bytes); 
         
@@ -664,7 +614,7 @@ public class MimeUtility {
         final boolean firstSegment, final boolean foldSegments, final String specials)  throws IOException 
     {
         // this needs to be converted into the appropriate transfer encoding. 
-        final byte [] bytes = data.getBytes(javaCharset(charset)); 
+        final byte [] bytes = data.getBytes(getCharset(charset)); 
         
         final int estimatedSize = encoder.estimateEncodedLength(bytes, specials); 
         
@@ -699,6 +649,11 @@ public class MimeUtility {
      * of transfer encoding should be used.  For text streams,
      * we'll decided between 7bit, quoted-printable, and base64.
      * For binary content types, we'll use either 7bit or base64.
+     * <p/>
+     * Binary content is only examined until something is found that
+     * cannot be sent as 7bit.  If the "mail.mime.encoding.scanlimit"
+     * property is set to a positive value, no more than that many bytes
+     * are examined.  Content longer than that is never sent as 7bit.
      *
      * @param handler The DataHandler associated with the content.
      *
@@ -709,9 +664,11 @@ public class MimeUtility {
 
         // if this handler has an associated data source, we can read directly from the
         // data source to make this judgment.  This is generally MUCH faster than asking the
-        // DataHandler to write out the data for us.
+        // DataHandler to write out the data for us.  A handler created from an object hands
+        // back a wrapper that pipes writeTo() through another thread, so that one is better
+        // served by writing the object ourselves.
         final DataSource ds = handler.getDataSource();
-        if (ds != null) {
+        if (ds != null && !isObjectDataSource(ds)) {
             return getEncoding(ds);
         }
 
@@ -722,12 +679,21 @@ public class MimeUtility {
             // The only access to the content bytes at this point is by asking the handler to write
             // the information out to a stream.  We're going to pipe this through a special stream
             // that examines the bytes as they go by.
-            final ContentCheckingOutputStream checker = new ContentCheckingOutputStream();
+            final boolean text = content.match("text/*");
+            final ContentCheckingOutputStream checker = new ContentCheckingOutputStream(!text, getEncodingScanLimit());
 
-            handler.writeTo(checker);
+            try {
+                handler.writeTo(checker);
+            } catch (final IOException e) {
+                // we've seen enough to decide.  The content handler might have wrapped our
+                // signal in an exception of its own, so look for it in the causes too.
+                if (!isScanComplete(e)) {
+                    throw e;
+                }
+            }
 
             // figure this out based on whether we believe this to be a text type or not.
-            if (content.match("text/*")) {
+            if (text) {
                 return checker.getTextTransferEncoding();
             }
             else {
@@ -772,10 +738,10 @@ public class MimeUtility {
             if (!content.match("text/*")) {
                 // Not purporting to be a text type?  Examine the content to see we might be able to
                 // at least pretend it is an ascii type.
-                return ASCIIUtil.getBinaryTransferEncoding(in);
+                return ASCIIUtil.getBinaryTransferEncoding(in, getEncodingScanLimit());
             }
             else {
-                return ASCIIUtil.getTextTransferEncoding(in);
+                return ASCIIUtil.getTextTransferEncoding(in, getEncodingScanLimit());
             }
         } catch (final Exception e) {
             // this was a problem...not sure what makes sense here, so we'll assume it's binary
@@ -793,6 +759,50 @@ public class MimeUtility {
     }
 
 
+    /**
+     * Test if a DataSource is the wrapper a DataHandler creates
+     * around an object and its DataContentHandler.
+     *
+     * @param source The DataSource to check.
+     *
+     * @return true if reading the source runs the handler's writeTo().
+     */
+    private static boolean isObjectDataSource(final DataSource source) {
+        // the activation implementations keep these private, so the name is all we have
+        final String name = source.getClass().getName();
+        return name.startsWith("javax.activation.DataHandler") && !name.equals("javax.activation.DataHandler");
+    }
+
+
+    /**
+     * Test if an exception raised while writing content to a
+     * ContentCheckingOutputStream was caused by the end of the scan.
+     *
+     * @param e The exception thrown by the writer.
+     *
+     * @return true if the exception, or one of its causes, is a ScanComplete.
+     */
+    private static boolean isScanComplete(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ContentCheckingOutputStream.ScanComplete) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Get the maximum number of content bytes examined when
+     * choosing a transfer encoding.
+     *
+     * @return The configured limit.  Zero or less means there is no limit.
+     */
+    private static int getEncodingScanLimit() {
+        return SessionUtil.getIntProperty(MIME_ENCODING_SCANLIMIT, 0);
+    }
+
+
     /**
      * Quote a "word" value.  If the word contains any character from
      * the specified "specials" list, this value is returned as a
@@ -873,6 +883,35 @@ public class MimeUtility {
         return mappedCharset == null ? charset : mappedCharset;
     }
 
+    /**
+     * Resolve a MIME character set name into a Charset.  Resolved
+     * charsets are cached, so repeated lookups of the same name
+     * don't go through the name mapping tables.
+     *
+     * @param charset The MIME standard name.
+     *
+     * @return The Charset for this name.
+     * @exception UnsupportedEncodingException if the charset is not supported.
+     */
+    static Charset getCharset(final String charset) throws UnsupportedEncodingException {
+        final String key = charset.toLowerCase();
+        Charset result = charsets.get(key);
+        if (result == null) {
+            final String javaName = javaCharset(charset);
+            try {
+                result = Charset.forName(javaName);
+            } catch (final IllegalCharsetNameException e) {
+                throw new UnsupportedEncodingException(javaName);
+            } catch (final UnsupportedCharsetException e) {
+                throw new UnsupportedEncodingException(javaName);
+            }
+            if (charsets.size() < MAX_CACHED_CHARSETS) {
+                charsets.put(key, result);
+            }
+        }
+        return result;
+    }
+
     /**
      * Map a Java character set name into the MIME equivalent.
      *
@@ -1299,16 +1338,34 @@ public class MimeUtility {
  * Utility class for examining content information written out
  * by a DataHandler object.  This stream gathers statistics on
  * the stream so it can make transfer encoding determinations.
+ * Once nothing written later can change the result, the stream
+ * throws a {@link ScanComplete} exception to stop the writer.
  */
 class ContentCheckingOutputStream extends OutputStream {
+    // true if we only need the binary transfer encoding
+    private final boolean binary;
+    // the number of bytes left to examine
+    private long remaining;
     private int asciiChars = 0;
     private int nonAsciiChars = 0;
     private boolean containsLongLines = false;
     private boolean containsMalformedEOL = false;
+    private boolean truncated = false;
     private int previousChar = 0;
     private int span = 0;
 
-    ContentCheckingOutputStream() {
+    /**
+     * Create a checking stream.
+     *
+     * @param binary True if only the binary transfer encoding is needed.  This
+     *               allows the scan to stop at the first data that can't be sent
+     *               as 7bit.
+     * @param limit  The maximum number of bytes to examine.  Zero or less means
+     *               there is no limit.
+     */
+    ContentCheckingOutputStream(final boolean binary, final int limit) {
+        this.binary = binary;
+        this.remaining = limit > 0 ? limit : Long.MAX_VALUE;
     }
 
     @Override
@@ -1324,7 +1381,15 @@ class ContentCheckingOutputStream extends OutputStream {
     }
 
     @Override
-    public void write(final int ch) {
+    public void write(int ch) throws IOException {
+        // anything written past the limit is data we haven't examined
+        if (remaining == 0) {
+            truncated = true;
+            throw new ScanComplete();
+        }
+        remaining--;
+        ch &= 0xff;
+
         // we found a linebreak.  Reset the line length counters on either one.  We don't
         // really need to validate here.
         if (ch == '\n' || ch == '\r') {
@@ -1354,11 +1419,16 @@ class ContentCheckingOutputStream extends OutputStream {
             }
         }
         previousChar = ch;
+
+        // binary content can't be anything other than base64 now
+        if (binary && (nonAsciiChars != 0 || containsLongLines || containsMalformedEOL)) {
+            throw new ScanComplete();
+        }
     }
 
 
     public String getBinaryTransferEncoding() {
-        if (nonAsciiChars != 0 || containsLongLines || containsMalformedEOL) {
+        if (nonAsciiChars != 0 || containsLongLines || containsMalformedEOL || truncated) {
             return "base64";
         }
         else {
@@ -1370,8 +1440,9 @@ class ContentCheckingOutputStream extends OutputStream {
         // looking good so far, only valid chars here.
         if (nonAsciiChars == 0) {
             // does this contain long text lines?  We need to use a Q-P encoding which will
-            // be only slightly longer, but handles folding the longer lines.
-            if (containsLongLines) {
+            // be only slightly longer, but handles folding the longer lines.  The same goes
+            // for data we haven't looked at.
+            if (containsLongLines || truncated) {
                 return "quoted-printable";
             }
             else {
@@ -1390,4 +1461,15 @@ class ContentCheckingOutputStream extends OutputStream {
             }
         }
     }
+
+
+    /**
+     * Thrown to stop the content writer once the
+     * transfer encoding has been decided.
+     */
+    static class ScanComplete extends IOException {
+        ScanComplete() {
+            super("Content scan complete");
+        }
+    }
 }
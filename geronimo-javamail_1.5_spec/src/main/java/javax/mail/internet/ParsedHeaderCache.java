@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+/**
+ * Holds the parsed forms of the Content-Type and Content-Disposition
+ * headers of a MimeMessage or MimeBodyPart, so repeated checks against an
+ * unchanged header only parse it once.  Each entry remembers the raw
+ * header value it was parsed from, and is reparsed whenever it is asked
+ * for a different value.  That catches every way the headers can change,
+ * including direct updates to the part's InternetHeaders.
+ * <p/>
+ * The parsed objects are shared, so callers must only query them.  Any
+ * code that modifies a ContentType or ContentDisposition needs to parse
+ * its own copy.
+ *
+ * @version $Rev$ $Date$
+ */
+final class ParsedHeaderCache {
+    private volatile Entry contentType;
+    private volatile Entry disposition;
+
+    /**
+     * Get the parsed form of a Content-Type value.
+     *
+     * @param value  The raw header value.
+     *
+     * @return The parsed ContentType.  This must not be modified.
+     * @exception ParseException
+     */
+    ContentType getContentType(final String value) throws ParseException {
+        Entry entry = contentType;
+        if (entry == null || !entry.value.equals(value)) {
+            entry = new Entry(value, new ContentType(value));
+            contentType = entry;
+        }
+        return (ContentType)entry.parsed;
+    }
+
+    /**
+     * Get the parsed form of a Content-Disposition value.
+     *
+     * @param value  The raw header value.
+     *
+     * @return The parsed ContentDisposition.  This must not be modified.
+     * @exception ParseException
+     */
+    ContentDisposition getDisposition(final String value) throws ParseException {
+        Entry entry = disposition;
+        if (entry == null || !entry.value.equals(value)) {
+            entry = new Entry(value, new ContentDisposition(value));
+            disposition = entry;
+        }
+        return (ContentDisposition)entry.parsed;
+    }
+
+
+    /**
+     * A raw header value paired with its parsed form.  These are
+     * replaced as a unit, so readers always see a consistent pair.
+     */
+    private static final class Entry {
+        final String value;
+        final Object parsed;
+
+        Entry(final String value, final Object parsed) {
+            this.value = value;
+            this.parsed = parsed;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.internet;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single pass parser for the common address forms:
+ * <pre>
+ *    local@domain
+ *    "Personal Name" &lt;local@domain&gt;
+ *    Personal Name &lt;local@domain&gt;
+ * </pre>
+ * where the local part and domain are dot separated atoms.  These forms
+ * are valid at every {@link AddressParser} validation level, and parse to
+ * the same InternetAddress values.  Anything else (comments, groups,
+ * routes, quoting within the address, escapes, or domain literals) is
+ * left to the full AddressParser, which is signalled by returning null.
+ *
+ * @version $Rev$ $Date$
+ */
+final class SimpleAddressParser {
+    private final String addresses;
+    private final int end;
+    // the current parsing position
+    private int position;
+
+    private SimpleAddressParser(final String addresses) {
+        this.addresses = addresses;
+        this.end = addresses.length();
+    }
+
+    /**
+     * Parse an address list.
+     *
+     * @param addresses The address list string.
+     *
+     * @return The parsed addresses, or null if the list needs the full parser.
+     */
+    static InternetAddress[] parseAddressList(final String addresses) {
+        final SimpleAddressParser parser = new SimpleAddressParser(addresses);
+        final List<InternetAddress> result = new ArrayList<InternetAddress>();
+        while (true) {
+            parser.skipWhiteSpace();
+            if (parser.position == parser.end) {
+                break;
+            }
+            // null elements in a list are skipped
+            if (parser.addresses.charAt(parser.position) != ',') {
+                final InternetAddress address = parser.parseMailbox();
+                if (address == null) {
+                    return null;
+                }
+                result.add(address);
+                parser.skipWhiteSpace();
+                if (parser.position == parser.end) {
+                    break;
+                }
+                if (parser.addresses.charAt(parser.position) != ',') {
+                    return null;
+                }
+            }
+            // step over the comma
+            parser.position++;
+        }
+        return result.toArray(new InternetAddress[result.size()]);
+    }
+
+    /**
+     * Parse a single address.
+     *
+     * @param address The address string.
+     *
+     * @return The parsed address, or null if this needs the full parser.
+     */
+    static InternetAddress parseAddress(final String address) {
+        final SimpleAddressParser parser = new SimpleAddressParser(address);
+        parser.skipWhiteSpace();
+        // an empty address is an error, which the full parser reports
+        if (parser.position == parser.end) {
+            return null;
+        }
+        final InternetAddress result = parser.parseMailbox();
+        if (result == null) {
+            return null;
+        }
+        parser.skipWhiteSpace();
+        return parser.position == parser.end ? result : null;
+    }
+
+    /**
+     * Parse a single mailbox, either a bare address or a personal
+     * name followed by a bracketed address.
+     *
+     * @return The parsed address, or null if this is not one of the simple forms.
+     */
+    private InternetAddress parseMailbox() {
+        String personal = null;
+        if (addresses.charAt(position) == '"') {
+            personal = scanQuotedString();
+            if (personal == null) {
+                return null;
+            }
+            skipWhiteSpace();
+        }
+        else {
+            final int start = position;
+            final String local = scanDotAtom();
+            if (local == null) {
+                return null;
+            }
+            // a bare address
+            if (position < end && addresses.charAt(position) == '@') {
+                position++;
+                final String domain = scanDotAtom();
+                if (domain == null) {
+                    return null;
+                }
+                final InternetAddress result = new InternetAddress();
+                result.setAddress(addresses.substring(start, position));
+                return result;
+            }
+            // periods are only allowed within addresses here
+            if (local.indexOf('.') != -1) {
+                return null;
+            }
+            // an unquoted phrase, which is a series of blank delimited words
+            StringBuilder phrase = null;
+            while (true) {
+                skipWhiteSpace();
+                if (position == end || !AddressParser.isAtom(addresses.charAt(position))) {
+                    break;
+                }
+                final String word = scanAtom();
+                if (phrase == null) {
+                    phrase = new StringBuilder(local);
+                }
+                phrase.append(' ').append(word);
+            }
+            personal = phrase == null ? local : phrase.toString();
+        }
+
+        // there must be a bracketed address following the personal name
+        if (position == end || addresses.charAt(position) != '<') {
+            return null;
+        }
+        position++;
+        final int start = position;
+        if (scanDotAtom() == null || position == end || addresses.charAt(position) != '@') {
+            return null;
+        }
+        position++;
+        if (scanDotAtom() == null || position == end || addresses.charAt(position) != '>') {
+            return null;
+        }
+        final String address = addresses.substring(start, position);
+        position++;
+
+        final InternetAddress result = new InternetAddress();
+        result.setAddress(address);
+        try {
+            result.setPersonal(personal);
+        } catch (final UnsupportedEncodingException e) {
+        }
+        return result;
+    }
+
+    /**
+     * Scan a series of atoms separated by single periods.
+     *
+     * @return The scanned text, or null if there is no valid dot-atom here.
+     */
+    private String scanDotAtom() {
+        final int start = position;
+        while (true) {
+            if (position == end || !AddressParser.isAtom(addresses.charAt(position))) {
+                return null;
+            }
+            scanAtom();
+            if (position == end || addresses.charAt(position) != '.') {
+                return addresses.substring(start, position);
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Scan an atom.  The current character must be an atom character.
+     *
+     * @return The atom text.
+     */
+    private String scanAtom() {
+        final int start = position;
+        position++;
+        while (position < end && AddressParser.isAtom(addresses.charAt(position))) {
+            position++;
+        }
+        return addresses.substring(start, position);
+    }
+
+    /**
+     * Scan a quoted string without escapes or line ends.
+     *
+     * @return The string contents, or null if this needs the full parser.
+     */
+    private String scanQuotedString() {
+        final int start = position + 1;
+        for (int i = start; i < end; i++) {
+            final char ch = addresses.charAt(i);
+            if (ch == '"') {
+                position = i + 1;
+                return addresses.substring(start, i);
+            }
+            if (ch == '\\' || ch == '\r') {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void skipWhiteSpace() {
+        while (position < end) {
+            final char ch = addresses.charAt(position);
+            if (ch != ' ' && ch != '\t' && ch != '\r' && ch != '\n') {
+                return;
+            }
+            position++;
+        }
+    }
+}
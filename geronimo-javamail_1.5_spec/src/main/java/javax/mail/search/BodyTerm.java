@@ -20,16 +20,26 @@
 package javax.mail.search;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import javax.activation.DataSource;
 
 import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePartDataSource;
+import javax.mail.internet.MimeUtility;
 
 /**
  * Term that matches on a message body. All {@link javax.mail.BodyPart parts} that have
- * a MIME type of "text/*" are searched.
+ * a MIME type of "text/*" are searched.  Text that comes from a parsed message is
+ * decoded and searched as a stream, so the content is never held in memory, and
+ * reading stops at the first match.
  *
  * @version $Rev$ $Date$
  */
@@ -37,6 +47,9 @@ public final class BodyTerm extends StringTerm {
 	
 	private static final long serialVersionUID = -4888862527916911385L;
 	
+    // the compiled form of the pattern, created on first use
+    private transient volatile StreamMatcher matcher;
+
     public BodyTerm(final String pattern) {
         super(pattern);
     }
@@ -64,8 +77,7 @@ public final class BodyTerm extends StringTerm {
             }
             return false;
         } else if (part.isMimeType("text/*")) {
-            final String content = (String) part.getContent();
-            return super.match(content);
+            return matchText(part);
         } else if (part.isMimeType("message/rfc822")) {
             // nested messages need recursion        
             return matchPart((Part)part.getContent());
@@ -73,4 +85,43 @@ public final class BodyTerm extends StringTerm {
             return false;
         }
     }
+
+    /**
+     * Search a text part for the pattern.  Content read from a message source
+     * is decoded (transfer encoding and charset) on the fly.  Content set by
+     * the application is already available as an object, so that is matched
+     * directly.
+     *
+     * @param part   The text part.
+     *
+     * @return true if the part contains the pattern.
+     */
+    private boolean matchText(final Part part) throws MessagingException, IOException {
+        final DataSource source = part.getDataHandler().getDataSource();
+        if (!(source instanceof MimePartDataSource)) {
+            final String content = (String) part.getContent();
+            return super.match(content);
+        }
+
+        String charset = new ContentType(part.getContentType()).getParameter("charset");
+        if (charset == null) {
+            charset = "us-ascii";
+        }
+        final InputStream in = source.getInputStream();
+        try {
+            final Reader reader = new InputStreamReader(in, MimeUtility.javaCharset(charset));
+            return getMatcher().find(reader);
+        } finally {
+            in.close();
+        }
+    }
+
+    private StreamMatcher getMatcher() {
+        StreamMatcher m = matcher;
+        if (m == null) {
+            m = new StreamMatcher(pattern, ignoreCase);
+            matcher = m;
+        }
+        return m;
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.search;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A substring matcher that works on a character stream, so text can be
+ * searched without first being read into a String.  This uses the
+ * Knuth-Morris-Pratt algorithm, which examines each character only once
+ * and needs no look back into the stream.  Case insensitive matches use
+ * the same character folding as String.regionMatches(), giving the same
+ * results as {@link StringTerm#match(String)}.
+ *
+ * Instances are immutable and may be shared between threads.
+ *
+ * @version $Rev$ $Date$
+ */
+final class StreamMatcher {
+    // the size of the read buffer
+    private static final int BUFFER_SIZE = 4096;
+
+    // the pattern, case folded for case insensitive matches
+    private final char[] pattern;
+    private final boolean ignoreCase;
+    // for each pattern position, the length of the longest proper prefix that is also a suffix
+    private final int[] failure;
+
+    StreamMatcher(final String pattern, final boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.pattern = new char[pattern.length()];
+        for (int i = 0; i < this.pattern.length; i++) {
+            this.pattern[i] = fold(pattern.charAt(i));
+        }
+
+        failure = new int[this.pattern.length];
+        int k = 0;
+        for (int i = 1; i < this.pattern.length; i++) {
+            while (k > 0 && this.pattern[i] != this.pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (this.pattern[i] == this.pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    /**
+     * Search a character stream for the pattern.  Reading stops
+     * as soon as a match is found.
+     *
+     * @param reader The source of the text.
+     *
+     * @return true if the pattern occurs in the text.
+     * @exception IOException
+     */
+    boolean find(final Reader reader) throws IOException {
+        if (pattern.length == 0) {
+            return true;
+        }
+        final char[] buffer = new char[BUFFER_SIZE];
+        // the number of pattern characters matched so far
+        int matched = 0;
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                final char ch = fold(buffer[i]);
+                while (matched > 0 && ch != pattern[matched]) {
+                    matched = failure[matched - 1];
+                }
+                if (ch == pattern[matched]) {
+                    matched++;
+                    if (matched == pattern.length) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private char fold(final char ch) {
+        if (!ignoreCase) {
+            return ch;
+        }
+        // the same two step comparison String.regionMatches() uses
+        return Character.toLowerCase(Character.toUpperCase(ch));
+    }
+}
@@ -20,12 +20,26 @@
 package javax.mail.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import javax.mail.internet.SharedInputStream;
 
+import org.apache.geronimo.mail.util.ChannelWriter;
+
 public class SharedByteArrayInputStream extends ByteArrayInputStream implements SharedInputStream {
 
+    // let the channel writer send the data straight from the buffer
+    static {
+        ChannelWriter.setStreamAccess(SharedByteArrayInputStream.class, new ChannelWriter.StreamAccess() {
+            public long transferTo(final InputStream in, final WritableByteChannel target) throws IOException {
+                return ((SharedByteArrayInputStream)in).transferTo(target);
+            }
+        });
+    }
+
     /**
      * Position within shared buffer that this stream starts at.
      */
@@ -89,4 +103,25 @@ public class SharedByteArrayInputStream extends ByteArrayInputStream implements
         }
         return new SharedByteArrayInputStream(buf, start + (int)offset, (int)(end - offset));
     }
+
+
+    /**
+     * Write the unread data directly from the shared buffer
+     * to a channel.  This is not part of the public API; it is used
+     * by {@link ChannelWriter}.
+     *
+     * @param target The target channel.
+     *
+     * @return The number of bytes written.
+     * @exception IOException
+     */
+    synchronized long transferTo(final WritableByteChannel target) throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(buf, pos, count - pos);
+        final int length = data.remaining();
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        pos = count;
+        return length;
+    }
 }
@@ -24,16 +24,32 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import javax.mail.internet.SharedInputStream;
 
+import org.apache.geronimo.mail.util.ChannelWriter;
+import org.apache.geronimo.mail.util.SessionUtil;
+
 public class SharedFileInputStream extends BufferedInputStream implements SharedInputStream {
 
 
     // This initial size isn't documented, but bufsize is 2048 after initialization for the
-    // Sun implementation.
+    // Sun implementation.  This can be overridden with the buffer size property.
+    private static final String MIME_SHAREDFILE_BUFFERSIZE = "mail.mime.sharedfile.buffersize";
     private static final int DEFAULT_BUFFER_SIZE = 2048;
 
+    // let the channel writer transfer the data straight from the file
+    static {
+        ChannelWriter.setStreamAccess(SharedFileInputStream.class, new ChannelWriter.StreamAccess() {
+            public long transferTo(final InputStream in, final WritableByteChannel target) throws IOException {
+                return ((SharedFileInputStream)in).transferTo(target);
+            }
+        });
+    }
+
     // the shared file information, used to synchronize opens/closes of the base file.
     private SharedFileSource source;
 
@@ -74,7 +90,7 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
      * @exception IOException
      */
     public SharedFileInputStream(final String file) throws IOException {
-        this(file, DEFAULT_BUFFER_SIZE);
+        this(file, getDefaultBufferSize());
     }
 
 
@@ -86,7 +102,7 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
      * @exception IOException
      */
     public SharedFileInputStream(final File file) throws IOException {
-        this(file, DEFAULT_BUFFER_SIZE);
+        this(file, getDefaultBufferSize());
     }
 
 
@@ -176,6 +192,19 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
     }
 
 
+    /**
+     * Determine the buffer size used when none is specified on the
+     * constructor.
+     *
+     * @return The configured buffer size, or the default if the property is not set
+     *         to a valid positive value.
+     */
+    private static int getDefaultBufferSize() {
+        final int size = SessionUtil.getIntProperty(MIME_SHAREDFILE_BUFFERSIZE, DEFAULT_BUFFER_SIZE);
+        return size > 0 ? size : DEFAULT_BUFFER_SIZE;
+    }
+
+
     /**
      * Check to see if we need to read more data into our buffer.
      *
@@ -243,8 +272,8 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
             return false;
         }
 
-        // seek to the read location start.  Note this is a shared file, so this assumes all of the methods
-        // doing buffer fills will be synchronized.
+        // read from our current location.  This is a positional read, so other instances sharing
+        // the file can fill their buffers at the same time.
         int fillLength = buf.length - pos;
 
         // we might be working with a subset of the file data, so normal eof processing might not apply.
@@ -446,6 +475,49 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
     }
 
 
+    /**
+     * Write the unread data to a channel.  Anything already in the
+     * read buffer is written first, and the rest is transferred
+     * directly from the file.  This is not part of the public API; it
+     * is used by {@link ChannelWriter}.
+     *
+     * @param target The target channel.
+     *
+     * @return The number of bytes written.
+     * @exception IOException
+     */
+    synchronized long transferTo(final WritableByteChannel target) throws IOException {
+        checkOpen();
+
+        long written = 0;
+        if (pos < count) {
+            final ByteBuffer buffered = ByteBuffer.wrap(buf, pos, count - pos);
+            while (buffered.hasRemaining()) {
+                written += target.write(buffered);
+            }
+        }
+
+        final long end = start + datalen;
+        long position = bufpos + count;
+        while (position < end) {
+            final long transferred = source.transferTo(position, end - position, target);
+            // nothing transferred means the file is shorter than expected
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            written += transferred;
+        }
+
+        // everything has been consumed, so position the stream at the end
+        bufpos = position;
+        pos = 0;
+        count = 0;
+        markpos = -1;
+        return written;
+    }
+
+
     /**
      * Close the stream.  This does not close the source file until
      * the last shared instance is closed.
@@ -523,16 +595,21 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
 
     /**
      * Internal class used to manage resources shared between the
-     * ShareFileInputStream instances.
+     * ShareFileInputStream instances.  Reads are performed using
+     * positional reads on the file channel, so the shared instances
+     * never need to seek the file and can read concurrently.
      */
     class SharedFileSource {
         // the file source
         public RandomAccessFile source;
+        // the channel used for positional reads.  This shares the source file's descriptor.
+        private final FileChannel channel;
         // the shared instance count for this file (open instances)
         public int instanceCount = 0;
 
         public SharedFileSource(final File file) throws IOException {
             source = new RandomAccessFile(file, "r");
+            channel = source.getChannel();
         }
 
         /**
@@ -571,11 +648,41 @@ public class SharedFileInputStream extends BufferedInputStream implements Shared
          * @return The number of bytes actually read.
          * @exception IOException
          */
-        public synchronized int read(final long position, final byte[] buf, final int offset, final int length) throws IOException {
-            // seek to the read location start.  Note this is a shared file, so this assumes all of the methods
-            // doing buffer fills will be synchronized.
-            source.seek(position);
-            return source.read(buf, offset, length);
+        public int read(final long position, final byte[] buf, final int offset, final int length) throws IOException {
+            // a positional read does not use or change the file pointer, so no locking is needed.
+            // An interrupted reader would close the channel, and the file, for every stream
+            // sharing it.  A pending interrupt is held back until the read is done instead, so the
+            // reader sees it afterwards just as it would after a plain RandomAccessFile read.
+            final boolean interrupted = Thread.interrupted();
+            try {
+                return channel.read(ByteBuffer.wrap(buf, offset, length), position);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Transfer a range of the shared file to a channel.
+         *
+         * @param position The file position to start from.
+         * @param length   The maximum number of bytes to transfer.
+         * @param target   The target channel.
+         *
+         * @return The number of bytes actually transferred.
+         * @exception IOException
+         */
+        public long transferTo(final long position, final long length, final WritableByteChannel target) throws IOException {
+            // like the positional reads, this leaves the file pointer alone and holds back interrupts.
+            final boolean interrupted = Thread.interrupted();
+            try {
+                return channel.transferTo(position, length, target);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
 
 
@@ -22,6 +22,7 @@ import java.net.URL;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
 
@@ -34,6 +35,8 @@ public class MailProviderRegistry {
     static ConcurrentMap<Long, URL> providers = new ConcurrentHashMap<Long, URL>();
     // a list of all active default provider config files
     static ConcurrentMap<Long, URL> defaultProviders = new ConcurrentHashMap<Long, URL>();
+    // bumped on every change, so cached provider information can be discarded
+    private static final AtomicLong generation = new AtomicLong();
 
     /**
      * Perform the check for an existing mailcap file when
@@ -61,6 +64,9 @@ public class MailProviderRegistry {
             // this indicates our interest
             result = url;
         }
+        if (result != null) {
+            invalidate();
+        }
         // the url marks our interest in additional activity for this
         // bundle.
         return result;
@@ -76,6 +82,26 @@ public class MailProviderRegistry {
         // remove these items
         providers.remove(bundle.getBundleId());
         defaultProviders.remove(bundle.getBundleId());
+        invalidate();
+    }
+
+    /**
+     * Signal that the available provider definitions have changed.
+     * Provider information cached by javax.mail.Session is reloaded
+     * the next time it is used.
+     */
+    public static void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Return the current registry generation.  This changes
+     * each time the provider definitions are invalidated.
+     *
+     * @return The generation number.
+     */
+    public static long getGeneration() {
+        return generation.get();
     }
 
     /**
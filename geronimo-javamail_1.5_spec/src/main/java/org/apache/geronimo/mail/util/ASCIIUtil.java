@@ -19,7 +19,6 @@
 
 package org.apache.geronimo.mail.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -83,41 +82,70 @@ public class ASCIIUtil {
      * @exception IOException
      */
     public static String getTextTransferEncoding(final InputStream content) throws IOException {
+        return getTextTransferEncoding(content, -1);
+    }
 
-        // for efficiency, we'll read in blocks.
-        final BufferedInputStream in = new BufferedInputStream(content, 4096);
+
+    /**
+     * Examine a stream of text and make a judgement on what encoding
+     * type should be used for the text, looking at no more than a
+     * given number of bytes.  If the content is longer than the limit,
+     * the unexamined data might contain anything, so 7bit is never
+     * chosen.  Content that looks like plain ASCII gets quoted-printable
+     * instead, and otherwise the choice is made on the ratio of 7-bit
+     * characters to non-7bit found in the examined data.
+     *
+     * @param content     An input stream for the content we're examining.
+     * @param limit       The maximum number of bytes to examine.  A value of
+     *                    zero or less examines the entire stream.
+     *
+     * @exception IOException
+     */
+    public static String getTextTransferEncoding(final InputStream content, final int limit) throws IOException {
+        final byte[] buffer = new byte[4096];
+        long remaining = limit > 0 ? limit : Long.MAX_VALUE;
 
         int span = 0;            // span of characters without a line break.
         boolean containsLongLines = false;
         int asciiChars = 0;
         int nonAsciiChars = 0;
+        boolean truncated = false;
 
         while (true) {
-            final int ch = in.read();
-            // if we hit an EOF here, go decide what type we've actually found.
-            if (ch == -1) {
+            // stop once we've seen enough.  If there is more data, this is only a partial answer.
+            if (remaining == 0) {
+                truncated = content.read() != -1;
                 break;
             }
-
-            // we found a linebreak.  Reset the line length counters on either one.  We don't
-            // really need to validate here.
-            if (ch == '\n' || ch == '\r') {
-                // hit a line end, reset our line length counter
-                span = 0;
+            final int count = content.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            // if we hit an EOF here, go decide what type we've actually found.
+            if (count == -1) {
+                break;
             }
-            else {
-                span++;
-                // the text has long lines, we can't transfer this as unencoded text.
-                if (span > 998) {
-                    containsLongLines = true;
-                }
+            remaining -= count;
 
-                // non-ascii character, we have to transfer this in binary.
-                if (!isAscii(ch)) {
-                    nonAsciiChars++;
+            for (int i = 0; i < count; i++) {
+                final int ch = buffer[i] & 0xff;
+                // we found a linebreak.  Reset the line length counters on either one.  We don't
+                // really need to validate here.
+                if (ch == '\n' || ch == '\r') {
+                    // hit a line end, reset our line length counter
+                    span = 0;
                 }
                 else {
-                    asciiChars++;
+                    span++;
+                    // the text has long lines, we can't transfer this as unencoded text.
+                    if (span > 998) {
+                        containsLongLines = true;
+                    }
+
+                    // non-ascii character, we have to transfer this in binary.
+                    if (!isAscii(ch)) {
+                        nonAsciiChars++;
+                    }
+                    else {
+                        asciiChars++;
+                    }
                 }
             }
         }
@@ -125,8 +153,9 @@ public class ASCIIUtil {
         // looking good so far, only valid chars here.
         if (nonAsciiChars == 0) {
             // does this contain long text lines?  We need to use a Q-P encoding which will
-            // be only slightly longer, but handles folding the longer lines.
-            if (containsLongLines) {
+            // be only slightly longer, but handles folding the longer lines.  The same goes
+            // for data we haven't looked at.
+            if (containsLongLines || truncated) {
                 return "quoted-printable";
             }
             else {
@@ -204,43 +233,68 @@ public class ASCIIUtil {
      * @exception IOException
      */
     public static String getBinaryTransferEncoding(final InputStream content) throws IOException {
+        return getBinaryTransferEncoding(content, -1);
+    }
 
-        // for efficiency, we'll read in blocks.
-        final BufferedInputStream in = new BufferedInputStream(content, 4096);
+
+    /**
+     * Determine if the transfer encoding looks like it might be
+     * valid ascii text, looking at no more than a given number of bytes.
+     * The scan stops at the first data that cannot be sent as 7bit.  If
+     * the content is longer than the limit, the unexamined data might
+     * contain anything, so base64 is used.
+     *
+     * @param content     An input stream for the content we're examining.
+     * @param limit       The maximum number of bytes to examine.  A value of
+     *                    zero or less examines the entire stream.
+     *
+     * @exception IOException
+     */
+    public static String getBinaryTransferEncoding(final InputStream content, final int limit) throws IOException {
+        final byte[] buffer = new byte[4096];
+        long remaining = limit > 0 ? limit : Long.MAX_VALUE;
 
         int previousChar = 0;
         int span = 0;            // span of characters without a line break.
 
         while (true) {
-            final int ch = in.read();
+            // anything past the limit is unknown, so only an exact fit is 7bit
+            if (remaining == 0) {
+                return content.read() == -1 ? "7bit" : "base64";
+            }
+            final int count = content.read(buffer, 0, (int)Math.min(buffer.length, remaining));
             // if we hit an EOF here, we've only found valid text so far, so we can transfer this as
             // 7-bit ascii.
-            if (ch == -1) {
+            if (count == -1) {
                 return "7bit";
             }
+            remaining -= count;
 
-            // we found a newline, this is only valid if the previous char was the '\r'
-            if (ch == '\n') {
-                // malformed linebreak?  force this to base64 encoding.
-                if (previousChar != '\r') {
-                    return "base64";
-                }
-                // hit a line end, reset our line length counter
-                span = 0;
-            }
-            else {
-                span++;
-                // the text has long lines, we can't transfer this as unencoded text.
-                if (span > 998) {
-                    return "base64";
+            for (int i = 0; i < count; i++) {
+                final int ch = buffer[i] & 0xff;
+                // we found a newline, this is only valid if the previous char was the '\r'
+                if (ch == '\n') {
+                    // malformed linebreak?  force this to base64 encoding.
+                    if (previousChar != '\r') {
+                        return "base64";
+                    }
+                    // hit a line end, reset our line length counter
+                    span = 0;
                 }
+                else {
+                    span++;
+                    // the text has long lines, we can't transfer this as unencoded text.
+                    if (span > 998) {
+                        return "base64";
+                    }
 
-                // non-ascii character, we have to transfer this in binary.
-                if (!isAscii(ch)) {
-                    return "base64";
+                    // non-ascii character, we have to transfer this in binary.
+                    if (!isAscii(ch)) {
+                        return "base64";
+                    }
                 }
+                previousChar = ch;
             }
-            previousChar = ch;
         }
     }
 }
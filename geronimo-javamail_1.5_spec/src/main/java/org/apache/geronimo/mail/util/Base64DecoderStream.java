@@ -53,6 +53,9 @@ public class Base64DecoderStream extends FilterInputStream {
     protected int decodedCount = 0;
     // index of the next decoded character
     protected int decodedIndex = 0;
+    // the number of valid characters at the front of encodedChars held over from the last read
+    // because they did not make up a complete unit.
+    private int pendingChars = 0;
 
 
     public Base64DecoderStream(final InputStream in) {
@@ -93,7 +96,8 @@ public class Base64DecoderStream extends FilterInputStream {
         final int readCharacters = fillEncodedBuffer();
 
         if (readCharacters > 0) {
-            decodedCount =  decoder.decode(encodedChars, 0, readCharacters, decodedChars);
+            decodedCount =  decoder.decode(encodedChars, 0, readCharacters, decodedChars, 0);
+            shiftPendingChars(readCharacters);
             return true;
         }
         return false;
@@ -152,13 +156,14 @@ public class Base64DecoderStream extends FilterInputStream {
      */
     private int fillEncodedBuffer() throws IOException
     {
-        int readCharacters = 0;
+        int readCharacters = pendingChars;
 
         while (true) {
-            // get the next character from the stream
-            final int ch = in.read();
+            // read directly into the free part of the buffer
+            final int count = in.read(encodedChars, readCharacters, encodedChars.length - readCharacters);
             // did we hit an EOF condition?
-            if (ch == -1) {
+            if (count == -1) {
+                pendingChars = 0;
                 // now check to see if this is normal, or potentially an error
                 // if we didn't get characters as a multiple of 4, we may need to complain about this.
                 if ((readCharacters % 4) != 0) {
@@ -172,16 +177,36 @@ public class Base64DecoderStream extends FilterInputStream {
                 // return the count.
                 return readCharacters;
             }
-            // if this character is valid in a Base64 stream, copy it to the buffer.
-            else if (decoder.isValidBase64(ch)) {
-                encodedChars[readCharacters++] = (byte)ch;
-                // if we've filled up the buffer, time to quit.
-                if (readCharacters >= encodedChars.length) {
-                    return readCharacters;
+
+            // squeeze out the whitespace and CRLF characters, keeping the characters valid
+            // in a Base64 stream.
+            final int end = readCharacters + count;
+            for (int i = readCharacters; i < end; i++) {
+                final int ch = encodedChars[i] & 0xff;
+                if (decoder.isValidBase64(ch)) {
+                    encodedChars[readCharacters++] = (byte)ch;
                 }
             }
 
-            // we're filtering out whitespace and CRLF characters, so just ignore these
+            // once we have a reasonable amount of data, hand back the complete units and hold
+            // onto anything left over.
+            if (readCharacters >= encodedChars.length / 2 || (count > 0 && in.available() <= 0)) {
+                final int units = (readCharacters / 4) * 4;
+                if (units > 0) {
+                    pendingChars = readCharacters - units;
+                    return units;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move any characters held over from the last decoded block
+     * to the front of the encoding buffer.
+     */
+    private void shiftPendingChars(final int consumed) {
+        if (pendingChars > 0) {
+            System.arraycopy(encodedChars, consumed, encodedChars, 0, pendingChars);
         }
     }
 
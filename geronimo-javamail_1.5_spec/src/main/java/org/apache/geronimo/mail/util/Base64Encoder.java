@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 
 public class Base64Encoder
     implements Encoder
@@ -50,6 +51,16 @@ public class Base64Encoder
      */
     protected final byte[] decodingTable = new byte[256];
 
+    /*
+     * the value of each character in the encoding alphabet, or -1 for characters outside
+     * of the alphabet.  Since every valid value fits in 6 bits, or-ing together the shifted
+     * values of a 4 character unit gives a negative result if any character is invalid.
+     */
+    private final int[] values = new int[256];
+
+    // the maximum number of encoded bytes we'll build up before writing to a stream.
+    private static final int ENCODE_CHUNK = 4096;
+
     protected void initialiseDecodingTable()
     {
         for (int i = 0; i < encodingTable.length; i++)
@@ -58,9 +69,22 @@ public class Base64Encoder
         }
     }
 
+    private void initialiseValueTable()
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = -1;
+        }
+        for (int i = 0; i < encodingTable.length; i++)
+        {
+            values[encodingTable[i] & 0xff] = i;
+        }
+    }
+
     public Base64Encoder()
     {
         initialiseDecodingTable();
+        initialiseValueTable();
     }
 
     /**
@@ -75,169 +99,267 @@ public class Base64Encoder
         final OutputStream    out)
         throws IOException
     {
+        // encode into a local buffer so the stream sees a few large writes rather than
+        // one call per character.
+        final byte[] encoded = new byte[Math.min(((length + 2) / 3) * 4, ENCODE_CHUNK)];
+        final int chunk = (encoded.length / 4) * 3;
+
+        int produced = 0;
+        int offset = off;
+        int remaining = length;
+
+        while (remaining > 0)
+        {
+            final int count = Math.min(remaining, chunk);
+            final int encodedCount = encode(data, offset, count, encoded, 0);
+            out.write(encoded, 0, encodedCount);
+            produced += encodedCount;
+            offset += count;
+            remaining -= count;
+        }
+
+        return produced;
+    }
+
+    /**
+     * encode the input data into a byte array.  The output array must have room
+     * for ((length + 2) / 3) * 4 bytes.  If the length is not a multiple of 3,
+     * the final unit is padded.
+     *
+     * @param data   The data to encode.
+     * @param off    The starting offset within the data.
+     * @param length The number of bytes to encode.
+     * @param out    The target array.
+     * @param outOff The starting offset within the target array.
+     *
+     * @return the number of bytes produced.
+     */
+    public int encode(final byte[] data, final int off, final int length, final byte[] out, final int outOff)
+    {
+        final byte[] table = encodingTable;
         final int modulus = length % 3;
-        final int dataLength = (length - modulus);
-        int a1, a2, a3;
+        final int end = off + length - modulus;
+        int o = outOff;
 
-        for (int i = off; i < off + dataLength; i += 3)
+        for (int i = off; i < end; i += 3)
         {
-            a1 = data[i] & 0xff;
-            a2 = data[i + 1] & 0xff;
-            a3 = data[i + 2] & 0xff;
+            final int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
 
-            out.write(encodingTable[(a1 >>> 2) & 0x3f]);
-            out.write(encodingTable[((a1 << 4) | (a2 >>> 4)) & 0x3f]);
-            out.write(encodingTable[((a2 << 2) | (a3 >>> 6)) & 0x3f]);
-            out.write(encodingTable[a3 & 0x3f]);
+            out[o] = table[bits >>> 18];
+            out[o + 1] = table[(bits >>> 12) & 0x3f];
+            out[o + 2] = table[(bits >>> 6) & 0x3f];
+            out[o + 3] = table[bits & 0x3f];
+            o += 4;
         }
 
-        /*
-         * process the tail end.
-         */
-        int    b1, b2, b3;
-        int    d1, d2;
-
         switch (modulus)
         {
         case 0:        /* nothing left to do */
             break;
         case 1:
-            d1 = data[off + dataLength] & 0xff;
-            b1 = (d1 >>> 2) & 0x3f;
-            b2 = (d1 << 4) & 0x3f;
-
-            out.write(encodingTable[b1]);
-            out.write(encodingTable[b2]);
-            out.write(padding);
-            out.write(padding);
+            o += encodeTail(data[end] & 0xff, 0, 1, out, o);
             break;
         case 2:
-            d1 = data[off + dataLength] & 0xff;
-            d2 = data[off + dataLength + 1] & 0xff;
-
-            b1 = (d1 >>> 2) & 0x3f;
-            b2 = ((d1 << 4) | (d2 >>> 4)) & 0x3f;
-            b3 = (d2 << 2) & 0x3f;
-
-            out.write(encodingTable[b1]);
-            out.write(encodingTable[b2]);
-            out.write(encodingTable[b3]);
-            out.write(padding);
+            o += encodeTail(data[end] & 0xff, data[end + 1] & 0xff, 2, out, o);
             break;
         }
 
-        return (dataLength / 3) * 4 + ((modulus == 0) ? 0 : 4);
+        return o - outOff;
     }
 
-    private boolean ignore(
-        final char    c)
+    /**
+     * encode a final partial unit of 1 or 2 bytes, with padding.
+     *
+     * @return the number of bytes produced.
+     */
+    private int encodeTail(final int d1, final int d2, final int count, final byte[] out, final int o)
     {
-        return (c == '\n' || c =='\r' || c == '\t' || c == ' ');
+        out[o] = encodingTable[(d1 >>> 2) & 0x3f];
+        out[o + 1] = encodingTable[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+        out[o + 2] = count == 1 ? padding : encodingTable[(d2 << 2) & 0x3f];
+        out[o + 3] = padding;
+        return 4;
     }
 
     /**
-     * decode the base 64 encoded byte data writing it to the given output stream,
-     * whitespace characters will be ignored.
+     * encode data from one buffer into another.  Only complete 3 byte units are
+     * encoded, and encoding stops when either the input is exhausted or the
+     * output does not have room for another 4 bytes.  Once endOfInput is set,
+     * a final partial unit is encoded with padding.  No line breaks are added.
+     *
+     * @param in         The source data.  The position is advanced past the encoded bytes.
+     * @param out        The target buffer.
+     * @param endOfInput true if there is no data following what is in the source buffer.
      *
      * @return the number of bytes produced.
      */
-    public int decode(
-        final byte[]                data,
-        final int                    off,
-        final int                    length,
-        final OutputStream    out)
-        throws IOException
+    public int encode(final ByteBuffer in, final ByteBuffer out, final boolean endOfInput)
     {
-        byte    b1, b2, b3, b4;
-        int        outLen = 0;
+        final int start = out.position();
+        final int units = Math.min(in.remaining() / 3, out.remaining() / 4);
 
-        int        end = off + length;
-
-        while (end > 0)
+        if (in.hasArray() && out.hasArray())
+        {
+            final int produced = encode(in.array(), in.arrayOffset() + in.position(), units * 3,
+                    out.array(), out.arrayOffset() + out.position());
+            in.position(in.position() + units * 3);
+            out.position(out.position() + produced);
+        }
+        else
         {
-            if (!ignore((char)data[end - 1]))
+            for (int i = 0; i < units; i++)
             {
-                break;
-            }
+                final int bits = (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
 
-            end--;
+                out.put(encodingTable[bits >>> 18]);
+                out.put(encodingTable[(bits >>> 12) & 0x3f]);
+                out.put(encodingTable[(bits >>> 6) & 0x3f]);
+                out.put(encodingTable[bits & 0x3f]);
+            }
         }
 
-        int  i = off;
-        final int  finish = end - 4;
-
-        while (i < finish)
+        final int left = in.remaining();
+        if (endOfInput && left > 0 && left < 3 && out.remaining() >= 4)
         {
-            while ((i < finish) && ignore((char)data[i]))
-            {
-                i++;
-            }
+            final byte[] tail = new byte[4];
+            final int d1 = in.get() & 0xff;
+            final int d2 = left == 2 ? in.get() & 0xff : 0;
+            out.put(tail, 0, encodeTail(d1, d2, left, tail, 0));
+        }
 
-            b1 = decodingTable[data[i++]];
+        return out.position() - start;
+    }
 
-            while ((i < finish) && ignore((char)data[i]))
+    /**
+     * decode data from one buffer into another, skipping line breaks and any other
+     * characters outside of the Base64 alphabet.  Decoding stops when the input is
+     * exhausted or the output has less than 3 bytes of room.  Unless endOfInput is set,
+     * an incomplete unit at the end of the input is left in the source buffer for the
+     * next call.
+     *
+     * @param in         The encoded data.  The position is advanced past the decoded characters.
+     * @param out        The target buffer.
+     * @param endOfInput true if there is no data following what is in the source buffer.
+     *
+     * @return the number of bytes produced.
+     * @exception IOException if the input ends with an incomplete unit.
+     */
+    public int decode(final ByteBuffer in, final ByteBuffer out, final boolean endOfInput) throws IOException
+    {
+        final int start = out.position();
+        final boolean arrays = in.hasArray() && out.hasArray();
+
+        while (out.remaining() >= 3)
+        {
+            if (arrays)
             {
-                i++;
+                // run through the complete units that don't need any special handling.
+                final byte[] data = in.array();
+                final byte[] target = out.array();
+                int i = in.arrayOffset() + in.position();
+                int o = out.arrayOffset() + out.position();
+                final int units = Math.min(in.remaining() / 4, out.remaining() / 3);
+                final int end = i + units * 4;
+
+                while (i < end)
+                {
+                    final int bits = values[data[i] & 0xff] << 18 | values[data[i + 1] & 0xff] << 12
+                        | values[data[i + 2] & 0xff] << 6 | values[data[i + 3] & 0xff];
+                    if (bits < 0)
+                    {
+                        break;
+                    }
+                    target[o] = (byte)(bits >> 16);
+                    target[o + 1] = (byte)(bits >> 8);
+                    target[o + 2] = (byte)bits;
+                    i += 4;
+                    o += 3;
+                }
+                in.position(i - in.arrayOffset());
+                out.position(o - out.arrayOffset());
+                if (out.remaining() < 3)
+                {
+                    break;
+                }
             }
 
-            b2 = decodingTable[data[i++]];
+            // gather the next unit a character at a time.
+            final int mark = in.position();
+            int bits = 0;
+            int count = 0;
+            boolean padded = false;
 
-            while ((i < finish) && ignore((char)data[i]))
+            while (count < 4 && in.hasRemaining())
             {
-                i++;
+                final int ch = in.get() & 0xff;
+                if (ch == padding)
+                {
+                    padded = true;
+                    break;
+                }
+                final int value = values[ch];
+                if (value >= 0)
+                {
+                    bits = bits << 6 | value;
+                    count++;
+                }
             }
 
-            b3 = decodingTable[data[i++]];
-
-            while ((i < finish) && ignore((char)data[i]))
+            if (count < 4 && !padded)
             {
-                i++;
+                if (!endOfInput)
+                {
+                    // leave this for the next call
+                    in.position(mark);
+                }
+                else if (count != 0)
+                {
+                    throw new IOException("Base64 encoding error, data truncated");
+                }
+                break;
             }
-
-            b4 = decodingTable[data[i++]];
-
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
-            out.write((b3 << 6) | b4);
-
-            outLen += 3;
-        }
-
-        if (data[end - 2] == padding)
-        {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-
-            out.write((b1 << 2) | (b2 >> 4));
-
-            outLen += 1;
+            decodeUnit(bits, count, out);
         }
-        else if (data[end - 1] == padding)
-        {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-            b3 = decodingTable[data[end - 2]];
 
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
+        return out.position() - start;
+    }
 
-            outLen += 2;
-        }
-        else
+    private static void decodeUnit(final int bits, final int count, final ByteBuffer out)
+    {
+        switch (count)
         {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-            b3 = decodingTable[data[end - 2]];
-            b4 = decodingTable[data[end - 1]];
-
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
-            out.write((b3 << 6) | b4);
-
-            outLen += 3;
+        case 4:
+            out.put((byte)(bits >> 16));
+            out.put((byte)(bits >> 8));
+            out.put((byte)bits);
+            break;
+        case 3:
+            out.put((byte)(bits >> 10));
+            out.put((byte)(bits >> 2));
+            break;
+        case 2:
+            out.put((byte)(bits >> 4));
+            break;
         }
+    }
 
-        return outLen;
+    /**
+     * decode the base 64 encoded byte data writing it to the given output stream,
+     * whitespace characters will be ignored.
+     *
+     * @return the number of bytes produced.
+     */
+    public int decode(
+        final byte[]                data,
+        final int                    off,
+        final int                    length,
+        final OutputStream    out)
+        throws IOException
+    {
+        final byte[] decoded = new byte[(length / 4) * 3 + 3];
+        final int count = decode(data, off, length, decoded, 0);
+        out.write(decoded, 0, count);
+        return count;
     }
 
     /**
@@ -251,93 +373,15 @@ public class Base64Encoder
         final OutputStream    out)
         throws IOException
     {
-        byte    b1, b2, b3, b4;
-        int        length = 0;
-
-        int        end = data.length();
-
-        while (end > 0)
+        final int length = data.length();
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
         {
-            if (!ignore(data.charAt(end - 1)))
-            {
-                break;
-            }
-
-            end--;
+            final char ch = data.charAt(i);
+            // characters outside of the byte range can't be part of the encoding, so they get skipped
+            bytes[i] = ch < 256 ? (byte)ch : (byte)' ';
         }
-
-        int    i = 0;
-        final int   finish = end - 4;
-
-        while (i < finish)
-        {
-            while ((i < finish) && ignore(data.charAt(i)))
-            {
-                i++;
-            }
-
-            b1 = decodingTable[data.charAt(i++)];
-
-            while ((i < finish) && ignore(data.charAt(i)))
-            {
-                i++;
-            }
-            b2 = decodingTable[data.charAt(i++)];
-
-            while ((i < finish) && ignore(data.charAt(i)))
-            {
-                i++;
-            }
-            b3 = decodingTable[data.charAt(i++)];
-
-            while ((i < finish) && ignore(data.charAt(i)))
-            {
-                i++;
-            }
-            b4 = decodingTable[data.charAt(i++)];
-
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
-            out.write((b3 << 6) | b4);
-
-            length += 3;
-        }
-
-        if (data.charAt(end - 2) == padding)
-        {
-            b1 = decodingTable[data.charAt(end - 4)];
-            b2 = decodingTable[data.charAt(end - 3)];
-
-            out.write((b1 << 2) | (b2 >> 4));
-
-            length += 1;
-        }
-        else if (data.charAt(end - 1) == padding)
-        {
-            b1 = decodingTable[data.charAt(end - 4)];
-            b2 = decodingTable[data.charAt(end - 3)];
-            b3 = decodingTable[data.charAt(end - 2)];
-
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
-
-            length += 2;
-        }
-        else
-        {
-            b1 = decodingTable[data.charAt(end - 4)];
-            b2 = decodingTable[data.charAt(end - 3)];
-            b3 = decodingTable[data.charAt(end - 2)];
-            b4 = decodingTable[data.charAt(end - 1)];
-
-            out.write((b1 << 2) | (b2 >> 4));
-            out.write((b2 << 4) | (b3 >> 2));
-            out.write((b3 << 6) | b4);
-
-            length += 3;
-        }
-
-        return length;
+        return decode(bytes, 0, length, out);
     }
 
     /**
@@ -347,88 +391,85 @@ public class Base64Encoder
      */
     public int decode(final byte[] data, final int off, final int length, final byte[] out) throws IOException
     {
-        byte    b1, b2, b3, b4;
-        int        outLen = 0;
-
-        int        end = off + length;
-
-        while (end > 0)
-        {
-            if (!ignore((char)data[end - 1]))
-            {
-                break;
-            }
-
-            end--;
-        }
+        return decode(data, off, length, out, 0);
+    }
 
-        int  i = off;
-        final int  finish = end - 4;
+    /**
+     * decode the base 64 encoded byte data writing it to the provided byte array buffer.
+     * Line breaks and any other characters outside of the Base64 alphabet are skipped.
+     * The output array must have room for (length / 4) * 3 + 3 bytes.
+     *
+     * @param data   The encoded data.
+     * @param off    The starting offset within the data.
+     * @param length The number of encoded bytes.
+     * @param out    The target array.
+     * @param outOff The starting offset within the target array.
+     *
+     * @return the number of bytes produced.
+     */
+    public int decode(final byte[] data, final int off, final int length, final byte[] out, final int outOff)
+    {
+        final int[] table = values;
+        final int end = off + length;
+        int i = off;
+        int o = outOff;
 
-        while (i < finish)
+        while (i < end)
         {
-            while ((i < finish) && ignore((char)data[i]))
-            {
-                i++;
-            }
-
-            b1 = decodingTable[data[i++]];
-
-            while ((i < finish) && ignore((char)data[i]))
+            // the fast path, for complete units of valid characters.
+            while (i + 4 <= end)
             {
-                i++;
+                final int bits = table[data[i] & 0xff] << 18 | table[data[i + 1] & 0xff] << 12
+                    | table[data[i + 2] & 0xff] << 6 | table[data[i + 3] & 0xff];
+                if (bits < 0)
+                {
+                    break;
+                }
+                out[o] = (byte)(bits >> 16);
+                out[o + 1] = (byte)(bits >> 8);
+                out[o + 2] = (byte)bits;
+                i += 4;
+                o += 3;
             }
 
-            b2 = decodingTable[data[i++]];
+            // this unit contains a line break, padding, or is incomplete, so gather
+            // it a character at a time.
+            int bits = 0;
+            int count = 0;
 
-            while ((i < finish) && ignore((char)data[i]))
+            while (count < 4 && i < end)
             {
-                i++;
+                final int ch = data[i++] & 0xff;
+                if (ch == padding)
+                {
+                    break;
+                }
+                final int value = table[ch];
+                if (value >= 0)
+                {
+                    bits = bits << 6 | value;
+                    count++;
+                }
             }
 
-            b3 = decodingTable[data[i++]];
-
-            while ((i < finish) && ignore((char)data[i]))
+            switch (count)
             {
-                i++;
+            case 4:
+                out[o++] = (byte)(bits >> 16);
+                out[o++] = (byte)(bits >> 8);
+                out[o++] = (byte)bits;
+                break;
+            case 3:
+                out[o++] = (byte)(bits >> 10);
+                out[o++] = (byte)(bits >> 2);
+                break;
+            case 2:
+                out[o++] = (byte)(bits >> 4);
+                break;
             }
-
-            b4 = decodingTable[data[i++]];
-
-            out[outLen++] = (byte)((b1 << 2) | (b2 >> 4));
-            out[outLen++] = (byte)((b2 << 4) | (b3 >> 2));
-            out[outLen++] = (byte)((b3 << 6) | b4);
-        }
-
-        if (data[end - 2] == padding)
-        {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-
-            out[outLen++] = (byte)((b1 << 2) | (b2 >> 4));
-        }
-        else if (data[end - 1] == padding)
-        {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-            b3 = decodingTable[data[end - 2]];
-
-            out[outLen++] = (byte)((b1 << 2) | (b2 >> 4));
-            out[outLen++] = (byte)((b2 << 4) | (b3 >> 2));
-        }
-        else
-        {
-            b1 = decodingTable[data[end - 4]];
-            b2 = decodingTable[data[end - 3]];
-            b3 = decodingTable[data[end - 2]];
-            b4 = decodingTable[data[end - 1]];
-
-            out[outLen++] = (byte)((b1 << 2) | (b2 >> 4));
-            out[outLen++] = (byte)((b2 << 4) | (b3 >> 2));
-            out[outLen++] = (byte)((b3 << 6) | b4);
         }
 
-        return outLen;
+        return o - outOff;
     }
 
     /**
@@ -440,8 +481,7 @@ public class Base64Encoder
      * @return true if this is valid in Base64 encoded data, false otherwise.
      */
     public boolean isValidBase64(final int ch) {
-        // 'A' has the value 0 in the decoding table, so we need a special one for that
-        return ch == padding || ch == 'A' || decodingTable[ch] != 0;
+        return ch == padding || (ch >= 0 && ch < values.length && values[ch] >= 0);
     }
 
 
@@ -59,6 +59,14 @@ public class Base64EncoderStream extends FilterOutputStream {
     // insert line breaks.
     protected int outputCount;
 
+    // the size of our output buffer.  Encoded data is collected here and written out in large blocks.
+    private static final int ENCODED_BUFFER_SIZE = 8192;
+
+    // encoded data waiting to be written to the stream
+    private final byte[] encoded = new byte[ENCODED_BUFFER_SIZE];
+    // the number of bytes held in the encoded buffer
+    private int encodedCount;
+
     /**
      * Create a Base64 encoder stream that wraps a specifed stream
      * using the default line break size.
@@ -73,7 +81,7 @@ public class Base64EncoderStream extends FilterOutputStream {
     public Base64EncoderStream(final OutputStream out, final int lineBreak) {
         super(out);
         // lines are processed only in multiple of 4, so round this down.
-        this.lineBreak = (lineBreak / 4) * 4 ;
+        this.lineBreak = lineBreak == Integer.MAX_VALUE ? lineBreak : Math.max((lineBreak / 4) * 4, 4);
     }
 
     // in order for this to work, we need to override the 3 different signatures for write
@@ -84,13 +92,7 @@ public class Base64EncoderStream extends FilterOutputStream {
         buffer[bufferedBytes++] = (byte)ch;
         // if the buffer is filled, encode these bytes
         if (bufferedBytes == 3) {
-            // check for room in the current line for this character
-            checkEOL(4);
-            // write these directly to the stream.
-            encoder.encode(buffer, 0, 3, out);
-            bufferedBytes = 0;
-            // and update the line length checkers
-            updateLineCount(4);
+            encodeBuffered();
         }
     }
 
@@ -101,42 +103,31 @@ public class Base64EncoderStream extends FilterOutputStream {
 
     @Override
     public void write(final byte [] data, int offset, int length) throws IOException {
-        // if we have something in the buffer, we need to write enough bytes out to flush
-        // those into the output stream AND continue on to finish off a line.  Once we're done there
-        // we can write additional data out in complete blocks.
-        while ((bufferedBytes > 0 || outputCount > 0) && length > 0) {
+        // top up a partial unit left over from an earlier write first.
+        while (bufferedBytes > 0 && length > 0) {
             write(data[offset++]);
             length--;
         }
 
-        if (length > 0) {
-            // no linebreaks requested?  YES!!!!!, we can just dispose of the lot with one call.
-            if (lineBreak == Integer.MAX_VALUE) {
-                encoder.encode(data, offset, length, out);
-            }
-            else {
-                // calculate the size of a segment we can encode directly as a line.
-                final int segmentSize = (lineBreak / 4) * 3;
-
-                // write this out a block at a time, with separators between.
-                while (length > segmentSize) {
-                    // encode a segment
-                    encoder.encode(data, offset, segmentSize, out);
-                    // write an EOL marker
-                    out.write(CRLF);
-                    offset += segmentSize;
-                    length -= segmentSize;
-                }
-
-                // any remainder we write out a byte at a time to manage the groupings and
-                // the line count appropriately.
-                if (length > 0) {
-                    while (length > 0) {
-                        write(data[offset++]);
-                        length--;
-                    }
-                }
+        // now encode complete units in blocks, each running to the end of the current
+        // line or the end of the output buffer, whichever comes first.
+        while (length >= 3) {
+            checkEOL(4);
+            int units = Math.min(length / 3, (encoded.length - encodedCount) / 4);
+            if (lineBreak != Integer.MAX_VALUE) {
+                units = Math.min(units, (lineBreak - outputCount) / 4);
             }
+            final int count = units * 3;
+            encodedCount += encoder.encode(data, offset, count, encoded, encodedCount);
+            updateLineCount(units * 4);
+            offset += count;
+            length -= count;
+        }
+
+        // and hold onto any partial unit for the next write.
+        while (length > 0) {
+            buffer[bufferedBytes++] = data[offset++];
+            length--;
         }
     }
 
@@ -148,9 +139,38 @@ public class Base64EncoderStream extends FilterOutputStream {
 
     @Override
     public void flush() throws IOException {
+        // a partial unit can only be the end of the data, so this gets written with padding.
         if (bufferedBytes > 0) {
-            encoder.encode(buffer, 0, bufferedBytes, out);
-            bufferedBytes = 0;
+            encodeBuffered();
+        }
+        writeEncoded();
+    }
+
+
+    /**
+     * Encode the bytes held in the unit buffer into the output buffer.
+     *
+     * @exception IOException
+     */
+    private void encodeBuffered() throws IOException {
+        // check for room in the current line for this unit
+        checkEOL(4);
+        encodedCount += encoder.encode(buffer, 0, bufferedBytes, encoded, encodedCount);
+        bufferedBytes = 0;
+        // and update the line length checkers
+        updateLineCount(4);
+    }
+
+
+    /**
+     * Write out any encoded data held in the output buffer.
+     *
+     * @exception IOException
+     */
+    private void writeEncoded() throws IOException {
+        if (encodedCount > 0) {
+            out.write(encoded, 0, encodedCount);
+            encodedCount = 0;
         }
     }
 
@@ -158,17 +178,23 @@ public class Base64EncoderStream extends FilterOutputStream {
     /**
      * Check for whether we're about the reach the end of our
      * line limit for an update that's about to occur.  If we will
-     * overflow, then a line break is inserted.
+     * overflow, then a line break is inserted.  This also makes
+     * sure the output buffer has room for the line break and
+     * the pending update.
      *
      * @param required The space required for this pending write.
      *
      * @exception IOException
      */
     private void checkEOL(final int required) throws IOException {
+        if (encodedCount + CRLF.length + required > encoded.length) {
+            writeEncoded();
+        }
         if (lineBreak != Integer.MAX_VALUE) {
             // if this write would exceed the line maximum, add a linebreak to the stream.
             if (outputCount + required > lineBreak) {
-                out.write(CRLF);
+                encoded[encodedCount++] = CRLF[0];
+                encoded[encodedCount++] = CRLF[1];
                 outputCount = 0;
             }
         }
@@ -186,4 +212,3 @@ public class Base64EncoderStream extends FilterOutputStream {
         }
     }
 }
-
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Implemented by input streams that can write their data directly
+ * to a channel, without copying it through the caller's buffers.
+ * Streams backed by a file can use this to hand the transfer off
+ * to the operating system.
+ *
+ * @version $Rev$ $Date$
+ */
+public interface ChannelTransferable {
+    /**
+     * Write all of the unread data in this stream to a channel.  The
+     * stream is positioned at the end of its data afterwards.
+     *
+     * @param target The target channel.  This must be in blocking mode.
+     *
+     * @return The number of bytes written.
+     * @exception IOException
+     */
+    long transferTo(WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Writes a MimeMessage to a channel.  This produces the same data as
+ * {@link MimeMessage#writeTo(OutputStream, String[])}, but if the raw
+ * content of the message can be written unchanged, it is passed to the
+ * channel without being copied: the header block and content bytes are
+ * written together, and content from a shared file is transferred
+ * directly from the file.
+ * <p/>
+ * The spec classes cannot gain public methods for this.  Instead,
+ * MimeMessage and the shared stream classes register their accessors
+ * here when they are initialized.
+ *
+ * @version $Rev$ $Date$
+ */
+public final class ChannelWriter {
+    // the accessor registered by MimeMessage
+    private static volatile MessageAccess messageAccess;
+    // the accessors registered by stream classes, keyed by the exact class
+    private static final ConcurrentMap<Class<?>, StreamAccess> streamAccess = new ConcurrentHashMap<Class<?>, StreamAccess>();
+
+    private ChannelWriter() {
+    }
+
+    /**
+     * Access to the raw data of a MimeMessage.
+     */
+    public interface MessageAccess {
+        /**
+         * Return the raw content of a message, if it can be written
+         * as it is.  Any changes are saved first.
+         *
+         * @param message The message.
+         *
+         * @return The content byte array, a stream of the content data, or null
+         *         if the message must go through writeTo().
+         * @exception MessagingException
+         */
+        Object getRawContent(MimeMessage message) throws MessagingException;
+
+        /**
+         * Write the header block of a message, including the blank line
+         * that separates it from the content, followed by some content.
+         *
+         * @param message The message.
+         * @param ignoreHeaders
+         *                An array of header types to ignore.  This can be null.
+         * @param channel The target channel.
+         * @param content Content to write after the headers (can be null).
+         *
+         * @exception IOException
+         */
+        void writeHeaders(MimeMessage message, String[] ignoreHeaders, WritableByteChannel channel, ByteBuffer content) throws IOException;
+    }
+
+    /**
+     * Transfers the unread data of a stream to a channel.
+     */
+    public interface StreamAccess {
+        /**
+         * Write all of the unread data in a stream to a channel.
+         *
+         * @param in     The stream.
+         * @param target The target channel.
+         *
+         * @return The number of bytes written.
+         * @exception IOException
+         */
+        long transferTo(InputStream in, WritableByteChannel target) throws IOException;
+    }
+
+    /**
+     * Register the MimeMessage accessor.  MimeMessage does this when it
+     * is initialized, and it can only be done once.
+     *
+     * @param access The accessor.
+     */
+    public static void setMessageAccess(final MessageAccess access) {
+        // MimeMessage registers itself while it is initialized, so this makes sure it gets there first
+        initialize(MimeMessage.class);
+        synchronized (ChannelWriter.class) {
+            if (messageAccess != null) {
+                throw new IllegalStateException("MimeMessage access is already registered");
+            }
+            messageAccess = access;
+        }
+    }
+
+    /**
+     * Register the transfer accessor for a stream class.  Only streams
+     * of exactly this class use it, since a subclass might change how
+     * the data is read.  Each class can only be registered once.
+     *
+     * @param type   The stream class.
+     * @param access The accessor.
+     */
+    public static void setStreamAccess(final Class<? extends InputStream> type, final StreamAccess access) {
+        // as with MimeMessage, a class registering itself while it is initialized gets there first
+        initialize(type);
+        if (streamAccess.putIfAbsent(type, access) != null) {
+            throw new IllegalStateException("Stream access is already registered for " + type.getName());
+        }
+    }
+
+    private static void initialize(final Class<?> type) {
+        try {
+            Class.forName(type.getName(), true, type.getClassLoader());
+        } catch (final ClassNotFoundException e) {
+            // the class is already loaded, so this can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a message out to a channel.
+     *
+     * @param message The message to write.
+     * @param channel The target channel.  This must be in blocking mode.
+     *
+     * @exception MessagingException
+     * @exception IOException
+     */
+    public static void writeTo(final MimeMessage message, final WritableByteChannel channel) throws MessagingException, IOException {
+        writeTo(message, channel, null);
+    }
+
+    /**
+     * Write a message out to a channel, excluding the specified
+     * message headers.
+     *
+     * @param message The message to write.
+     * @param channel The target channel.  This must be in blocking mode.
+     * @param ignoreHeaders
+     *                An array of header types to ignore.  This can be null, which means
+     *                write out all headers.
+     *
+     * @exception MessagingException
+     * @exception IOException
+     */
+    public static void writeTo(final MimeMessage message, final WritableByteChannel channel, final String[] ignoreHeaders) throws MessagingException, IOException {
+        // MimeMessage registered this when it was initialized, which it has been if there's an instance
+        final MessageAccess access = messageAccess;
+
+        // content that needs encoding, or a subclass with its own format, goes through the stream version
+        final Object raw = access.getRawContent(message);
+        if (raw == null) {
+            final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+            message.writeTo(out, ignoreHeaders);
+            out.flush();
+            return;
+        }
+
+        // if we have content directly, it can go out in the same write as the headers
+        if (raw instanceof byte[]) {
+            access.writeHeaders(message, ignoreHeaders, channel, ByteBuffer.wrap((byte[])raw));
+            return;
+        }
+
+        final InputStream in = (InputStream)raw;
+        try {
+            final StreamAccess transfer = streamAccess.get(in.getClass());
+            if (transfer != null) {
+                access.writeHeaders(message, ignoreHeaders, channel, null);
+                transfer.transferTo(in, channel);
+            }
+            else if (in instanceof ChannelTransferable) {
+                access.writeHeaders(message, ignoreHeaders, channel, null);
+                ((ChannelTransferable)in).transferTo(channel);
+            }
+            else {
+                // copy the data stream-to-channel, sending the headers along with the first chunk.
+                final byte[] buffer = new byte[8192];
+                int length = in.read(buffer);
+                access.writeHeaders(message, ignoreHeaders, channel, length > 0 ? ByteBuffer.wrap(buffer, 0, length) : null);
+                while (length > 0) {
+                    length = in.read(buffer);
+                    if (length > 0) {
+                        write(channel, ByteBuffer.wrap(buffer, 0, length), null);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write one or two buffers to a channel, using a single
+     * gathering write where the channel supports it.
+     *
+     * @param channel The target channel.
+     * @param first   The first buffer.
+     * @param second  The second buffer (can be null).
+     *
+     * @exception IOException
+     */
+    public static void write(final WritableByteChannel channel, final ByteBuffer first, final ByteBuffer second) throws IOException {
+        if (second != null && channel instanceof GatheringByteChannel) {
+            final ByteBuffer[] buffers = new ByteBuffer[] { first, second };
+            while (first.hasRemaining() || second.hasRemaining()) {
+                ((GatheringByteChannel)channel).write(buffers);
+            }
+            return;
+        }
+        while (first.hasRemaining()) {
+            channel.write(first);
+        }
+        if (second != null) {
+            while (second.hasRemaining()) {
+                channel.write(second);
+            }
+        }
+    }
+}
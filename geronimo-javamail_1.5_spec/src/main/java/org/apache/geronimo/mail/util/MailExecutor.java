@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The thread pool shared by all of the background work in the mail
+ * implementation: event dispatch, concurrent Transport sends, parallel
+ * folder searches and parallel multipart writes.  The pool is created
+ * the first time it is used.  It holds at most "mail.executor.threads"
+ * daemon threads (default: the larger of 4 and the number of
+ * processors), and idle threads time out.  The older "mail.event.threads"
+ * property, which sized the event dispatch pool this replaces, is still
+ * honored when "mail.executor.threads" is not set.  Delayed tasks are held by a
+ * single timer thread until they are due, then run on the pool.
+ * <p/>
+ * Because the pool is bounded and shared, a task must never block
+ * waiting for another task that might still be queued behind it.
+ * {@link #join(FutureTask)} avoids that by running a task that no pool
+ * thread has started on the calling thread instead.  Tasks are never
+ * interrupted by this class.
+ *
+ * @version $Rev$ $Date$
+ */
+public final class MailExecutor {
+    private static final String MAIL_EXECUTOR_THREADS = "mail.executor.threads";
+    // the setting used when event dispatch had a pool of its own
+    private static final String MAIL_EVENT_THREADS = "mail.event.threads";
+
+    private MailExecutor() {
+    }
+
+    /**
+     * Queue a task on the shared pool.
+     *
+     * @param task   The task to run.
+     */
+    public static void execute(final Runnable task) {
+        Pool.pool.execute(task);
+    }
+
+    /**
+     * Queue a task on the shared pool once a delay has passed.
+     *
+     * @param task   The task to run.
+     * @param delay  The delay in milliseconds.
+     */
+    public static void schedule(final Runnable task, final long delay) {
+        Timer.timer.schedule(new Runnable() {
+            public void run() {
+                execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the maximum number of threads in the shared pool.
+     *
+     * @return The pool size.
+     */
+    public static int getThreadCount() {
+        return Pool.threads;
+    }
+
+    /**
+     * Wait for the result of a task that was queued with
+     * {@link #execute(Runnable)}.  If no pool thread has started the
+     * task yet, it is run on the calling thread.
+     *
+     * @param task   The task.
+     *
+     * @return The task result.
+     * @exception InterruptedException
+     * @exception ExecutionException if the task failed.
+     */
+    public static <V> V join(final FutureTask<V> task) throws InterruptedException, ExecutionException {
+        // this does nothing if the task has already been started (or cancelled)
+        task.run();
+        return task.get();
+    }
+
+
+    /**
+     * Holder for the shared pool, so it is only created once there
+     * is work for it.
+     */
+    private static final class Pool {
+        static final int threads;
+        static final ThreadPoolExecutor pool;
+
+        static {
+            threads = Math.max(1, SessionUtil.getIntProperty(MAIL_EXECUTOR_THREADS,
+                    SessionUtil.getIntProperty(MAIL_EVENT_THREADS, Math.max(4, Runtime.getRuntime().availableProcessors()))));
+            pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "JavaMail-Executor");
+                        thread.setDaemon(true);  // this is a background server thread.
+                        return thread;
+                    }
+                });
+            // an idle pool holds no threads
+            pool.allowCoreThreadTimeOut(true);
+        }
+    }
+
+
+    /**
+     * Holder for the timer that releases delayed tasks to the pool.
+     */
+    private static final class Timer {
+        static final ScheduledThreadPoolExecutor timer;
+
+        static {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "JavaMail-Timer");
+                    thread.setDaemon(true);  // this is a background server thread.
+                    return thread;
+                }
+            });
+            // the timer thread only lives while there are delayed tasks
+            timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+            timer.allowCoreThreadTimeOut(true);
+        }
+    }
+}
@@ -34,6 +34,21 @@ public class QuotedPrintableDecoderStream extends FilterInputStream {
     // our decoder for processing the data
     protected QuotedPrintableEncoder decoder;
 
+    // the size of our buffer of encoded data
+    private static final int BUFFER_SIZE = 8192;
+
+    // encoded data read from the stream, waiting to be decoded.  This is
+    // read in blocks so the decoding can work on runs of characters.
+    private final byte[] encoded = new byte[BUFFER_SIZE];
+    // the position of the next encoded character
+    private int position = 0;
+    // the end of the encoded data in the buffer
+    private int limit = 0;
+    // the number of spaces we've scanned past that turned out to be real data
+    private int pendingSpaces = 0;
+    // the target for single byte reads
+    private final byte[] single = new byte[1];
+
 
     /**
      * Stream constructor.
@@ -58,8 +73,7 @@ public class QuotedPrintableDecoderStream extends FilterInputStream {
     @Override
     public int read() throws IOException
     {
-        // just get a single byte from the decoder
-        return decoder.decode(in);
+        return decode(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
     }
 
 
@@ -75,16 +89,127 @@ public class QuotedPrintableDecoderStream extends FilterInputStream {
      */
     @Override
     public int read(final byte [] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        return decode(buffer, offset, length);
+    }
+
+
+    /**
+     * Decode data into a buffer.  This will continue reading until
+     * the request is satisfied or the end of the stream is reached.
+     *
+     * @param buffer The target byte array.
+     * @param offset The starting offset for the decoded data.
+     * @param length The amount of data requested.
+     *
+     * @return The number of bytes decoded, or -1 at the end of the stream.
+     * @exception IOException
+     */
+    private int decode(final byte[] buffer, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        int count = offset;
+
+        while (count < end) {
+            // hand out any blanks we've found to be significant first.
+            if (pendingSpaces > 0) {
+                buffer[count++] = ' ';
+                pendingSpaces--;
+                continue;
+            }
+
+            if (!fill(1)) {
+                break;
+            }
 
-        for (int i = 0; i < length; i++) {
-            final int ch = decoder.decode(in);
-            if (ch == -1) {
-                return i == 0 ? -1 : i;
+            final byte ch = encoded[position];
+
+            // space characters are a pain.  We need to scan ahead until we find a non-space character.
+            // if the character is a line terminator, we need to discard the blanks.
+            if (ch == ' ') {
+                int spaces = 0;
+                do {
+                    while (position < limit && encoded[position] == ' ') {
+                        position++;
+                        spaces++;
+                    }
+                } while (position == limit && fill(1));
+
+                if (position < limit && encoded[position] != '\r' && encoded[position] != '\n') {
+                    pendingSpaces = spaces;
+                }
+            }
+            else if (ch == '=') {
+                // we need to get two characters after the quotation marker
+                if (!fill(3)) {
+                    throw new IOException("Truncated quoted printable data");
+                }
+                final int b1 = encoded[position + 1] & 0xff;
+                final int b2 = encoded[position + 2] & 0xff;
+                position += 3;
+
+                // we've found an encoded carriage return.  The next char needs to be a newline
+                if (b1 == '\r') {
+                    if (b2 != '\n') {
+                        throw new IOException("Invalid quoted printable encoding");
+                    }
+                    // this was a soft linebreak inserted by the encoding.  We just toss this away
+                    // on decode.
+                }
+                else {
+                    if (b1 >= QuotedPrintableEncoder.decodingTable.length || b2 >= QuotedPrintableEncoder.decodingTable.length) {
+                        throw new IOException("Invalid quoted printable encoding");
+                    }
+                    // this is a hex pair we need to convert back to a single byte.
+                    buffer[count++] = (byte)((QuotedPrintableEncoder.decodingTable[b1] << 4) | QuotedPrintableEncoder.decodingTable[b2]);
+                }
+            }
+            else {
+                // copy the run of simple characters.
+                buffer[count++] = ch;
+                position++;
+                while (count < end && position < limit) {
+                    final byte next = encoded[position];
+                    if (next == ' ' || next == '=') {
+                        break;
+                    }
+                    buffer[count++] = next;
+                    position++;
+                }
             }
-            buffer[offset + i] = (byte)ch;
         }
 
-        return length;
+        return count == offset ? -1 : count - offset;
+    }
+
+
+    /**
+     * Make sure the buffer holds a minimum number of characters,
+     * reading more from the stream if needed.
+     *
+     * @param required The number of characters needed.
+     *
+     * @return true if the characters are available, false if the stream ended first.
+     * @exception IOException
+     */
+    private boolean fill(final int required) throws IOException {
+        if (limit - position >= required) {
+            return true;
+        }
+        // shift what's left to the front of the buffer
+        System.arraycopy(encoded, position, encoded, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        while (limit < required) {
+            final int count = in.read(encoded, limit, encoded.length - limit);
+            if (count == -1) {
+                return false;
+            }
+            limit += count;
+        }
+        return true;
     }
 
 
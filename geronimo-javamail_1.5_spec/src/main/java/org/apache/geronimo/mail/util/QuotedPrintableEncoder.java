@@ -25,6 +25,8 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class QuotedPrintableEncoder implements Encoder {
 
@@ -51,6 +53,36 @@ public class QuotedPrintableEncoder implements Encoder {
     // default number of characters we will write per line.
     static private final int DEFAULT_CHARS_PER_LINE = 76;
 
+    /*
+     * character classes for body encoding.  Anything that is neither printable nor a
+     * line terminator is encoded, as is the '=' escape character.
+     */
+    static private final byte PRINTABLE = 0;
+    static private final byte ENCODED = 1;
+    static private final byte SPACE = 2;
+    static private final byte CR = 3;
+    static private final byte LF = 4;
+
+    static private final byte[] characterClasses = new byte[256];
+
+    static {
+        for (int ch = 0; ch < characterClasses.length; ch++) {
+            characterClasses[ch] = (ch < 32 || ch >= 127) ? ENCODED : PRINTABLE;
+        }
+        characterClasses[' '] = SPACE;
+        characterClasses['\r'] = CR;
+        characterClasses['\n'] = LF;
+        characterClasses['='] = ENCODED;
+    }
+
+    // the encoding tables for the different sets of specials used with encoded words.
+    // There are only a couple of these in practice, but the cache is bounded to be safe.
+    static private final int MAX_SPECIALS_TABLES = 16;
+    static private final ConcurrentMap<String, boolean[]> specialsTables = new ConcurrentHashMap<String, boolean[]>();
+
+    // the size of the buffer used to collect the encoded output
+    static private final int OUTPUT_BUFFER_SIZE = 4096;
+
     // the output stream we're wrapped around
     protected OutputStream out;
     // the number of bytes written;
@@ -69,6 +101,11 @@ public class QuotedPrintableEncoder implements Encoder {
     // remember whether last character was a white space.
     protected boolean lastWhitespace = false;
 
+    // the encoded output is collected here and written to the stream in blocks.
+    private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    // the count of bytes in the output buffer
+    private int outputCount = 0;
+
     public QuotedPrintableEncoder() {
         this(null, DEFAULT_CHARS_PER_LINE);
     }
@@ -87,11 +124,11 @@ public class QuotedPrintableEncoder implements Encoder {
         if (lastWhitespace) {
             // if this whitespace is at the end of the line, write it out encoded
             if (ch == '\r' || ch == '\n') {
-                writeEncodedCharacter(' ');
+                putEncodedCharacter(' ');
             }
             else {
                 // we can write this out without encoding.
-                writeCharacter(' ');
+                putCharacter(' ');
             }
             // we always turn this off.
             lastWhitespace = false;
@@ -100,7 +137,7 @@ public class QuotedPrintableEncoder implements Encoder {
         else if (lastCR) {
             // if the char following the CR was not a new line, write an EOL now.
             if (ch != '\n') {
-                writeEOL();
+                putEOL();
             }
             // we always turn this off too
             lastCR = false;
@@ -119,22 +156,42 @@ public class QuotedPrintableEncoder implements Encoder {
      */
     public int encode(final byte[] data, int off, final int length) throws IOException {
         final int endOffset = off + length;
+        final byte[] classes = characterClasses;
 
         while (off < endOffset) {
-            // get the character
-            final byte ch = data[off++];
-
+            // with nothing deferred, a run of printable characters can be copied straight
+            // to the output, only stopping for soft line breaks.
+            if (!lastWhitespace && !lastCR) {
+                while (off < endOffset && classes[data[off] & 0xFF] == PRINTABLE) {
+                    if (lineCount + 1 >= lineLength || outputCount == outputBuffer.length) {
+                        putCharacter(data[off++]);
+                    }
+                    else {
+                        outputBuffer[outputCount++] = data[off++];
+                        lineCount++;
+                        bytesWritten++;
+                    }
+                }
+                if (off >= endOffset) {
+                    break;
+                }
+            }
             // handle the encoding of this character.
-            encode(ch);
+            encodeCharacter(data[off++] & 0xFF);
         }
 
+        writeOutput();
         return bytesWritten;
     }
 
 
-    public void encode(int ch) throws IOException {
-        // make sure this is just a single byte value.
-        ch = ch &0xFF;
+    public void encode(final int ch) throws IOException {
+        encodeCharacter(ch & 0xFF);
+        writeOutput();
+    }
+
+
+    private void encodeCharacter(final int ch) throws IOException {
 
         // see if we had to defer handling of a whitespace or '\r' character, and handle it if necessary.
         checkDeferred(ch);
@@ -164,26 +221,19 @@ public class QuotedPrintableEncoder implements Encoder {
             case '\n':
             {
                 // we always write this out for a newline.  We defer CRs until we see if the LF follows.
-                writeEOL();
+                putEOL();
                 break;
             }
 
-            // an '=' is the escape character for an encoded character, so it must also
-            // be written encoded.
-            case '=':
-            {
-                writeEncodedCharacter(ch);
-                break;
-            }
-
-            // all other characters.  If outside the printable character range, write it encoded.
+            // all other characters.  The '=' is the escape character for an encoded character,
+            // so it must also be written encoded, as must anything outside the printable range.
             default:
             {
-                if (ch < 32 || ch >= 127) {
-                    writeEncodedCharacter(ch);
+                if (characterClasses[ch] == ENCODED) {
+                    putEncodedCharacter(ch);
                 }
                 else {
-                    writeCharacter(ch);
+                    putCharacter(ch);
                 }
                 break;
             }
@@ -202,15 +252,17 @@ public class QuotedPrintableEncoder implements Encoder {
      */
     public int encode(final byte[] data, int off, final int length, final String specials) throws IOException {
         final int endOffset = off + length;
+        final boolean[] encoded = getSpecialsTable(specials);
 
         while (off < endOffset) {
             // get the character
             final byte ch = data[off++];
 
             // handle the encoding of this character.
-            encode(ch, specials);
+            encodeWordCharacter(ch & 0xFF, encoded);
         }
 
+        writeOutput();
         return bytesWritten;
     }
 
@@ -225,6 +277,7 @@ public class QuotedPrintableEncoder implements Encoder {
      * @return the number of bytes produced.
      */
     public int encode(final PushbackInputStream in, final StringBuffer out, final String specials, final int limit) throws IOException {
+        final boolean[] encoded = getSpecialsTable(specials);
         int count = 0;
 
         while (count < limit) {
@@ -244,7 +297,7 @@ public class QuotedPrintableEncoder implements Encoder {
                 count++;
             }
             // non-ascii chars and the designated specials all get encoded.
-            else if (ch < 32 || ch >= 127 || specials.indexOf(ch) != -1) {
+            else if (encoded[ch]) {
                 // we need at least 3 characters to write this out, so we need to
                 // forget we saw this one and try in the next segment.
                 if (count + 3 > limit) {
@@ -277,24 +330,50 @@ public class QuotedPrintableEncoder implements Encoder {
      *
      * @exception IOException
      */
-    public void encode(int ch, final String specials) throws IOException {
-        // make sure this is just a single byte value.
-        ch = ch &0xFF;
+    public void encode(final int ch, final String specials) throws IOException {
+        encodeWordCharacter(ch & 0xFF, getSpecialsTable(specials));
+        writeOutput();
+    }
+
 
+    private void encodeWordCharacter(final int ch, final boolean[] encoded) throws IOException {
         // spaces require special handling.  If the next character is a line terminator, then
         // the space needs to be encoded.
         if (ch == ' ') {
             // blanks get translated into underscores, because the encoded tokens can't have embedded blanks.
-            writeCharacter('_');
+            putCharacter('_');
         }
         // non-ascii chars and the designated specials all get encoded.
-        else if (ch < 32 || ch >= 127 || specials.indexOf(ch) != -1) {
-            writeEncodedCharacter(ch);
+        else if (encoded[ch]) {
+            putEncodedCharacter(ch);
         }
         else {
             // good character, just use unchanged.
-            writeCharacter(ch);
+            putCharacter(ch);
+        }
+    }
+
+
+    /**
+     * Get the table of characters that must be encoded in an encoded
+     * word.  These are the non-ascii characters, plus the specials.
+     *
+     * @param specials The additional characters that require encoding.
+     *
+     * @return A 256 entry table, indexed by character, that is true for characters that need encoding.
+     */
+    static private boolean[] getSpecialsTable(final String specials) {
+        boolean[] table = specialsTables.get(specials);
+        if (table == null) {
+            table = new boolean[256];
+            for (int ch = 0; ch < table.length; ch++) {
+                table[ch] = ch < 32 || ch >= 127 || specials.indexOf(ch) != -1;
+            }
+            if (specialsTables.size() < MAX_SPECIALS_TABLES) {
+                specialsTables.put(specials, table);
+            }
         }
+        return table;
     }
 
 
@@ -497,11 +576,15 @@ public class QuotedPrintableEncoder implements Encoder {
     }
 
     private void checkLineLength(final int required) throws IOException {
+        // make sure there's room for a line break plus the pending characters.
+        if (outputCount + 3 + required > outputBuffer.length) {
+            writeOutput();
+        }
         // if we're at our line length limit, write out a soft line break and reset.
         if ((lineCount + required) >= lineLength ) {
-            out.write('=');
-            out.write('\r');
-            out.write('\n');
+            outputBuffer[outputCount++] = '=';
+            outputBuffer[outputCount++] = '\r';
+            outputBuffer[outputCount++] = '\n';
             bytesWritten += 3;
             lineCount = 0;
         }
@@ -509,33 +592,66 @@ public class QuotedPrintableEncoder implements Encoder {
 
 
     public void writeEncodedCharacter(final int ch) throws IOException {
+        putEncodedCharacter(ch);
+        writeOutput();
+    }
+
+
+    public void writeCharacter(final int ch) throws IOException {
+        putCharacter(ch);
+        writeOutput();
+    }
+
+
+    public void writeEOL() throws IOException {
+        putEOL();
+        writeOutput();
+    }
+
+
+    private void putEncodedCharacter(final int ch) throws IOException {
         // we need 3 characters for an encoded value
         checkLineLength(3);
-        out.write('=');
-        out.write(encodingTable[ch >> 4]);
-        out.write(encodingTable[ch & 0x0F]);
+        outputBuffer[outputCount++] = '=';
+        outputBuffer[outputCount++] = encodingTable[ch >> 4];
+        outputBuffer[outputCount++] = encodingTable[ch & 0x0F];
         lineCount += 3;
         bytesWritten += 3;
     }
 
 
-    public void writeCharacter(final int ch) throws IOException {
-        // we need 3 characters for an encoded value
+    private void putCharacter(final int ch) throws IOException {
         checkLineLength(1);
-        out.write(ch);
+        outputBuffer[outputCount++] = (byte)ch;
         lineCount++;
         bytesWritten++;
     }
 
 
-    public void writeEOL() throws IOException {
-        out.write('\r');
-        out.write('\n');
+    private void putEOL() throws IOException {
+        if (outputCount + 2 > outputBuffer.length) {
+            writeOutput();
+        }
+        outputBuffer[outputCount++] = '\r';
+        outputBuffer[outputCount++] = '\n';
         lineCount = 0;
         bytesWritten += 3;
     }
 
 
+    /**
+     * Write any buffered output to the target stream.
+     *
+     * @exception IOException
+     */
+    private void writeOutput() throws IOException {
+        if (outputCount > 0) {
+            out.write(outputBuffer, 0, outputCount);
+            outputCount = 0;
+        }
+    }
+
+
     public int decode(final InputStream in) throws IOException {
 
         // we potentially need to scan over spans of whitespace characters to determine if they're real
@@ -716,6 +832,7 @@ public class QuotedPrintableEncoder implements Encoder {
      * @exception IOException
      */
     public void encodeWordData(final byte[] data, final StringBuffer out, final String specials) throws IOException {
+        final boolean[] encoded = getSpecialsTable(specials);
         for (int i = 0; i < data.length; i++) {
             final int ch = data[i] & 0xff; ; 
 
@@ -726,7 +843,7 @@ public class QuotedPrintableEncoder implements Encoder {
                 out.append('_');
             }
             // non-ascii chars and the designated specials all get encoded.
-            else if (ch < 32 || ch >= 127 || specials.indexOf(ch) != -1) {
+            else if (encoded[ch]) {
                 out.append('=');
                 out.append((char)encodingTable[ch >> 4]);
                 out.append((char)encodingTable[ch & 0x0F]);
@@ -752,6 +869,7 @@ public class QuotedPrintableEncoder implements Encoder {
      */
     public int estimateEncodedLength(final byte[] data, final String specials) 
     {
+        final boolean[] encoded = getSpecialsTable(specials);
         int count = 0; 
         
         for (int i = 0; i < data.length; i++) {
@@ -759,7 +877,7 @@ public class QuotedPrintableEncoder implements Encoder {
             final int  ch = data[i] & 0xff;
 
             // non-ascii chars and the designated specials all get encoded.
-            if (ch < 32 || ch >= 127 || specials.indexOf(ch) != -1) {
+            if (encoded[ch]) {
                 // Q encoding translates a single char into 3 characters 
                 count += 3; 
             }
@@ -172,6 +172,30 @@ public class SessionUtil {
     }
 
 
+    /**
+     * Get a system property as an integer value.  Returns the default value if the
+     * property doesn't exist or it doesn't have a valid int value.
+     *
+     * @param name    The name of the property.
+     * @param defaultValue
+     *                The default value to return if the property doesn't exist.
+     *
+     * @return The property value converted to an int.
+     */
+    static public int getIntProperty(final String name, final int defaultValue) {
+        final String result = getProperty(name);
+        if (result != null) {
+            try {
+                // convert into an int value.
+                return Integer.parseInt(result);
+            } catch (final NumberFormatException e) {
+            }
+        }
+        // return default value if it doesn't exist is isn't convertable.
+        return defaultValue;
+    }
+
+
     /**
      * Get a system property associated with this mail session as a boolean value.  Returns
      * the default value if the property doesn't exist.
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A {@link SharedInputStream} implementation backed by a memory mapped
+ * file.  The file is mapped once, and each stream created by
+ * {@link #newStream(long, long)} is a slice of that mapping, so substreams
+ * need no read buffers of their own and reads never contend for a shared
+ * file position.  This can be used anywhere a
+ * {@link javax.mail.util.SharedFileInputStream} is used to parse a
+ * MimeMessage.
+ *
+ * The mapping is released by the garbage collector once all of the streams
+ * sharing it are unreachable.  Files larger than 2GB cannot be mapped
+ * with a single buffer, and are rejected.
+ *
+ * Individual stream instances are not thread safe, but any number of
+ * threads may read their own substreams of the same file concurrently.
+ *
+ * @version $Rev$ $Date$
+ */
+public class SharedMappedFileInputStream extends InputStream implements SharedInputStream, ChannelTransferable {
+
+    // the data represented by this stream.  The buffer position is the read position.
+    private ByteBuffer data;
+
+    /**
+     * Construct a SharedMappedFileInputStream from a file name.
+     *
+     * @param file   The name of the file.
+     *
+     * @exception IOException
+     */
+    public SharedMappedFileInputStream(final String file) throws IOException {
+        this(new File(file));
+    }
+
+
+    /**
+     * Construct a SharedMappedFileInputStream from a File object.
+     *
+     * @param file   The file to map.
+     *
+     * @exception IOException
+     */
+    public SharedMappedFileInputStream(final File file) throws IOException {
+        final RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = source.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to be mapped");
+            }
+            // the mapping remains valid after the file is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            source.close();
+        }
+    }
+
+
+    /**
+     * Private constructor used to spawn off a shared instance
+     * of this stream.
+     *
+     * @param data   The slice of the mapped data this stream represents.
+     */
+    private SharedMappedFileInputStream(final ByteBuffer data) {
+        this.data = data;
+    }
+
+
+    /**
+     * Read a single byte of data from the input stream.
+     *
+     * @return The read byte.  Returns -1 if an eof condition has been hit.
+     * @exception IOException
+     */
+    @Override
+    public int read() throws IOException {
+        checkOpen();
+        if (!data.hasRemaining()) {
+            return -1;
+        }
+        return data.get() & 0xff;
+    }
+
+
+    /**
+     * Read multiple bytes of data and place them directly into
+     * a byte-array buffer.
+     *
+     * @param buffer The target buffer.
+     * @param offset The offset within the buffer to place the data.
+     * @param length The length to attempt to read.
+     *
+     * @return The number of bytes actually read.  Returns -1 for an EOF
+     *         condition.
+     * @exception IOException
+     */
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        checkOpen();
+        if (offset < 0 || length < 0 || length > buffer.length - offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        // asked to read nothing?  That's what we'll do.
+        if (length == 0) {
+            return 0;
+        }
+        final int available = data.remaining();
+        if (available == 0) {
+            return -1;
+        }
+        final int given = Math.min(available, length);
+        data.get(buffer, offset, given);
+        return given;
+    }
+
+
+    /**
+     * Write the unread data directly from the mapped buffer
+     * to a channel.
+     *
+     * @param target The target channel.
+     *
+     * @return The number of bytes written.
+     * @exception IOException
+     */
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        checkOpen();
+        final int length = data.remaining();
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        return length;
+    }
+
+
+    /**
+     * Skip the read pointer ahead a given number of bytes.
+     *
+     * @param n      The number of bytes to skip.
+     *
+     * @return The number of bytes actually skipped.
+     * @exception IOException
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        checkOpen();
+        // nothing to skip, so don't skip
+        if (n <= 0) {
+            return 0;
+        }
+        final int skipped = (int)Math.min(data.remaining(), n);
+        data.position(data.position() + skipped);
+        return skipped;
+    }
+
+
+    /**
+     * Return the number of bytes available for reading without
+     * blocking.
+     *
+     * @return The number of bytes between the current read position
+     *         and the end of the stream data.
+     * @exception IOException
+     */
+    @Override
+    public int available() throws IOException {
+        checkOpen();
+        return data.remaining();
+    }
+
+
+    /**
+     * Mark the current position for retracing.  Since all of the data
+     * is available, the read limit is ignored.
+     *
+     * @param readlimit The limit for the distance the read position can move from
+     *                  the mark position before the mark is reset.
+     */
+    @Override
+    public void mark(final int readlimit) {
+        checkOpenRuntime();
+        data.mark();
+    }
+
+
+    /**
+     * Reset to the mark position.  If no mark has been set, the stream is
+     * reset to its beginning.
+     *
+     * @exception IOException
+     */
+    @Override
+    public void reset() throws IOException {
+        checkOpen();
+        try {
+            data.reset();
+        } catch (final InvalidMarkException e) {
+            data.position(0);
+        }
+    }
+
+
+    /**
+     * Indicates the mark() operation is supported.
+     *
+     * @return Always returns true.
+     */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+
+    /**
+     * Close the stream.  Other streams sharing the same mapping
+     * are not affected.
+     *
+     * @exception IOException
+     */
+    @Override
+    public void close() throws IOException {
+        data = null;
+    }
+
+
+    /**
+     * Return the current read position of the stream.
+     *
+     * @return The current position relative to the beginning of the stream.
+     */
+    public long getPosition() {
+        checkOpenRuntime();
+        return data.position();
+    }
+
+
+    /**
+     * Create a new stream from this stream, sharing the same
+     * mapped file data.
+     *
+     * @param start  The offset relative to the start of this stream instance.
+     * @param end    The end offset of the substream.  If -1, the end of this stream is used.
+     *
+     * @return A new SharedMappedFileInputStream object sharing the same mapping.
+     */
+    public InputStream newStream(final long start, long end) {
+        checkOpenRuntime();
+
+        if (start < 0) {
+            throw new IllegalArgumentException("Start position is less than 0");
+        }
+        // the default end position is the end of the one we're spawning from.
+        if (end == -1) {
+            end = data.limit();
+        }
+        if (end < start || end > data.limit()) {
+            throw new IllegalArgumentException("Invalid end position " + end);
+        }
+
+        // a duplicate has independent positions, so this does not disturb our reads
+        final ByteBuffer slice = data.duplicate();
+        slice.limit((int)end);
+        slice.position((int)start);
+        return new SharedMappedFileInputStream(slice.slice());
+    }
+
+
+    /**
+     * Check if the stream is open and throw an IOException if not.
+     *
+     * @exception IOException
+     */
+    private void checkOpen() throws IOException {
+        if (data == null) {
+            throw new IOException("Stream has been closed");
+        }
+    }
+
+
+    /**
+     * Check if the stream is open and throw a RuntimeException if not.
+     * This version is used by the API methods that are not defined as
+     * throwing IOException.
+     *
+     * @exception RuntimeException
+     */
+    private void checkOpenRuntime() {
+        if (data == null) {
+            throw new RuntimeException("Stream has been closed");
+        }
+    }
+}
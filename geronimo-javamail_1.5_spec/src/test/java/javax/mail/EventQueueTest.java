@@ -19,8 +19,15 @@
 
 package javax.mail;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import javax.mail.event.ConnectionEvent;
+import javax.mail.event.ConnectionListener;
 import javax.mail.event.FolderEvent;
 import javax.mail.event.FolderListener;
 
@@ -70,6 +77,67 @@ public class EventQueueTest extends TestCase {
         assertEquals("Unexpcted method dispatched", type, listener.getState());
     }
     
+    public void testOrderingAcrossQueues() throws Exception {
+        final int sources = 200;
+        final int events = 50;
+        final CountDownLatch done = new CountDownLatch(sources * events);
+        final List<List<Integer>> received = new ArrayList<List<Integer>>();
+        final EventQueue[] queues = new EventQueue[sources];
+        for (int i = 0; i < sources; i++) {
+            queues[i] = new EventQueue();
+            received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        for (int j = 0; j < events; j++) {
+            for (int i = 0; i < sources; i++) {
+                final List<Integer> target = received.get(i);
+                final Object[] listeners = new Object[] { new ConnectionListener() {
+                    public void opened(final ConnectionEvent e) {
+                        target.add(Integer.valueOf(e.getType()));
+                        done.countDown();
+                    }
+                    public void disconnected(final ConnectionEvent e) {
+                    }
+                    public void closed(final ConnectionEvent e) {
+                    }
+                } };
+                // the event type is used to carry the sequence number
+                queues[i].queueEvent(new SequencedEvent(this, j), listeners);
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (int i = 0; i < sources; i++) {
+            final List<Integer> list = received.get(i);
+            assertEquals(events, list.size());
+            for (int j = 0; j < events; j++) {
+                assertEquals(j, list.get(j).intValue());
+            }
+        }
+
+        // all of these sources share the dispatcher threads
+        int dispatchers = 0;
+        final Thread[] threads = new Thread[Thread.activeCount() * 2];
+        final int count = Thread.enumerate(threads);
+        for (int i = 0; i < count; i++) {
+            if ("JavaMail-EventQueue".equals(threads[i].getName())) {
+                dispatchers++;
+            }
+        }
+        assertTrue(dispatchers <= 4);
+    }
+
+    static class SequencedEvent extends ConnectionEvent {
+        SequencedEvent(final Object source, final int sequence) {
+            super(source, sequence);
+        }
+
+        @Override
+        public void dispatch(final Object listener) {
+            ((ConnectionListener)listener).opened(this);
+        }
+    }
+
     public static class FolderListenerTest implements FolderListener {
         private int state = 0;
         public void folderCreated(final FolderEvent event) {
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.HeaderTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.SubjectTerm;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Rev$ $Date$
+ */
+public class SearchEngineTest extends TestCase {
+    private static final String[] WORDS = { "Invoice", "invoice", "REPORT", "Meeting", "stra\u00dfe", "STRASSE", "\u03a3\u038a\u03a3\u03a5\u03a6\u039f\u03a3", "\u03c3\u03af\u03c3\u03c5\u03c6\u03bf\u03c2", "Istanbul", "\u0130stanbul", "\u0131stanbul", "x" };
+
+    public void testStringMatcher() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            final String text = randomText(random);
+            final String pattern = WORDS[random.nextInt(WORDS.length)];
+            final boolean ignoreCase = random.nextBoolean();
+            final SearchEngine.StringMatcher matcher = new SearchEngine.StringMatcher(pattern, ignoreCase);
+            assertEquals(text + "/" + pattern, regionMatch(text, pattern, ignoreCase), matcher.matches(text));
+        }
+        assertTrue(new SearchEngine.StringMatcher("", true).matches(""));
+        assertFalse(new SearchEngine.StringMatcher("abc", true).matches("ab"));
+    }
+
+    public void testSearchMatchesSequential() throws Exception {
+        final Session session = Session.getInstance(new Properties(), null);
+        final Random random = new Random(11);
+        final Message[] messages = new Message[3000];
+        for (int i = 0; i < messages.length; i++) {
+            final MimeMessage message = new MimeMessage(session);
+            message.setSubject(randomText(random));
+            message.setFrom(new InternetAddress(WORDS[random.nextInt(3)].toLowerCase() + "@apache.org"));
+            message.setRecipient(Message.RecipientType.TO, new InternetAddress("user" + random.nextInt(10) + "@apache.org"));
+            message.setHeader("X-Tag", WORDS[random.nextInt(WORDS.length)]);
+            message.setText(randomText(random));
+            messages[i] = message;
+        }
+
+        final SearchTerm[] terms = {
+            new SubjectTerm("invoice"),
+            new HeaderTerm("X-Tag", "strasse"),
+            new OrTerm(new SubjectTerm("report"), new FromStringTerm("meeting")),
+            new AndTerm(new SearchTerm[] { new SubjectTerm("istanbul"), new NotTerm(new HeaderTerm("X-Tag", "x")),
+                new RecipientStringTerm(Message.RecipientType.TO, "user3") }),
+            new AndTerm(new SizeTerm(ComparisonTerm.GE, 0), new SubjectTerm("\u03c3\u03af\u03c3\u03c5\u03c6\u03bf\u03c2")),
+        };
+        for (int i = 0; i < terms.length; i++) {
+            final List<Message> expected = new ArrayList<Message>();
+            for (int j = 0; j < messages.length; j++) {
+                if (messages[j].match(terms[i])) {
+                    expected.add(messages[j]);
+                }
+            }
+            final Message[] found = SearchEngine.search(terms[i], messages);
+            assertEquals(expected.size(), found.length);
+            for (int j = 0; j < found.length; j++) {
+                assertSame(expected.get(j), found[j]);
+            }
+        }
+    }
+
+    public void testOverriddenMatch() throws Exception {
+        final Session session = Session.getInstance(new Properties(), null);
+        final Message[] messages = new Message[600];
+        for (int i = 0; i < messages.length; i++) {
+            final MimeMessage message;
+            if (i % 3 == 0) {
+                // matches on the message number, whatever the term says
+                final int number = i;
+                message = new MimeMessage(session) {
+                    @Override
+                    public boolean match(final SearchTerm term) {
+                        return number % 2 == 0;
+                    }
+                };
+            }
+            else {
+                message = new MimeMessage(session);
+            }
+            message.setSubject(i % 2 == 0 ? "invoice" : "report");
+            messages[i] = message;
+        }
+
+        final SearchTerm term = new SubjectTerm("report");
+        final Message[] found = SearchEngine.search(term, messages);
+        int count = 0;
+        for (int i = 0; i < messages.length; i++) {
+            if (messages[i].match(term)) {
+                assertSame(messages[i], found[count++]);
+            }
+        }
+        assertEquals(count, found.length);
+    }
+
+    private static String randomText(final Random random) {
+        final StringBuilder buffer = new StringBuilder();
+        final int words = random.nextInt(6);
+        for (int i = 0; i < words; i++) {
+            buffer.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? " " : "");
+        }
+        return buffer.toString();
+    }
+
+    private static boolean regionMatch(final String text, final String pattern, final boolean ignoreCase) {
+        for (int i = 0; i <= text.length() - pattern.length(); i++) {
+            if (text.regionMatches(ignoreCase, i, pattern, 0, pattern.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -23,6 +23,8 @@ import java.util.Properties;
 
 import junit.framework.TestCase;
 
+import org.apache.geronimo.mail.MailProviderRegistry;
+
 /**
  * @version $Rev$ $Date$
  */
@@ -46,6 +48,28 @@ public class SessionTest extends TestCase {
         assertTrue(trans instanceof NullTransport);
     }
 
+    public void testProviderInvalidation() throws MessagingException {
+        final Session mailSession = Session.getInstance(new Properties(), null);
+
+        final Provider provider = new Provider(Provider.Type.TRANSPORT, "bar", NullTransport.class.getName(), "Apache", "Java 1.4 Test");
+        mailSession.addProvider(provider);
+        mailSession.setProtocolForAddress("bar", "bar");
+        final int count = mailSession.getProviders().length;
+
+        // a registry change reloads the provider resources, but keeps what the application added
+        MailProviderRegistry.invalidate();
+
+        assertEquals(count, mailSession.getProviders().length);
+        assertSame(provider, mailSession.getProvider("bar"));
+        assertTrue(mailSession.getTransport("bar") instanceof NullTransport);
+        assertEquals("bar", mailSession.getTransport(new FooAddress() {
+            @Override
+            public String getType() {
+                return "bar";
+            }
+        }).getURLName().getProtocol());
+    }
+
     static public class NullTransport extends Transport {
         public NullTransport(final Session session, final URLName urlName) {
             super(session, urlName);
@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.event.TransportAdapter;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Rev$ $Date$
+ */
+public class TransportTest extends TestCase {
+
+    static CyclicBarrier barrier;
+
+    private Session createSession(final boolean parallel) {
+        final Properties props = new Properties();
+        if (parallel) {
+            props.setProperty("mail.transport.parallel", "true");
+        }
+        final Session session = Session.getInstance(props, null);
+        session.addProvider(new Provider(Provider.Type.TRANSPORT, "good", GoodTransport.class.getName(), "Apache", "Test"));
+        session.addProvider(new Provider(Provider.Type.TRANSPORT, "bad", BadTransport.class.getName(), "Apache", "Test"));
+        session.setProtocolForAddress("good", "good");
+        session.setProtocolForAddress("bad", "bad");
+        return session;
+    }
+
+    private void doSend(final Session session) throws Exception {
+        final MimeMessage message = new MimeMessage(session);
+        message.setText("test");
+
+        final Address good = new TestAddress("good", "good@apache.org");
+        final Address bad = new TestAddress("bad", "bad@apache.org");
+        try {
+            Transport.send(message, new Address[] { good, bad });
+            fail();
+        } catch (final SendFailedException e) {
+            assertEquals(1, e.getValidSentAddresses().length);
+            assertSame(good, e.getValidSentAddresses()[0]);
+            assertEquals(0, e.getValidUnsentAddresses().length);
+            assertEquals(1, e.getInvalidAddresses().length);
+            assertSame(bad, e.getInvalidAddresses()[0]);
+            assertTrue(e.getNextException() instanceof SendFailedException);
+        }
+    }
+
+    public void testSequentialSend() throws Exception {
+        barrier = null;
+        doSend(createSession(false));
+    }
+
+    public void testParallelSend() throws Exception {
+        // both transports must be sending at the same time to get past the barrier
+        barrier = new CyclicBarrier(2);
+        try {
+            doSend(createSession(true));
+        } finally {
+            barrier = null;
+        }
+    }
+
+    public void testParallelEventOrder() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("mail.transport.parallel", "true");
+        final Session session = Session.getInstance(props, null);
+        final Address[] addresses = new Address[4];
+        for (int i = 0; i < addresses.length; i++) {
+            session.addProvider(new Provider(Provider.Type.TRANSPORT, "ordered" + i, OrderedTransport.class.getName(), "Apache", "Test"));
+            session.setProtocolForAddress("ordered" + i, "ordered" + i);
+            addresses[i] = new TestAddress("ordered" + i, "user" + i + "@apache.org");
+        }
+
+        final MimeMessage message = new MimeMessage(session);
+        message.setText("test");
+        OrderedTransport.events.clear();
+        Transport.send(message, addresses);
+
+        // the earlier groups take longest to send, but their events still come first
+        assertEquals(addresses.length, OrderedTransport.events.size());
+        for (int i = 0; i < addresses.length; i++) {
+            final TransportEvent event = OrderedTransport.events.get(i);
+            assertEquals(TransportEvent.MESSAGE_DELIVERED, event.getType());
+            assertSame(addresses[i], event.getValidSentAddresses()[0]);
+        }
+    }
+
+    public void testPooledConnections() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("mail.transport.pool", "true");
+        final Session session = Session.getInstance(props, null);
+        session.addProvider(new Provider(Provider.Type.TRANSPORT, "counting", CountingTransport.class.getName(), "Apache", "Test"));
+        session.setProtocolForAddress("counting", "counting");
+
+        final MimeMessage message = new MimeMessage(session);
+        message.setText("test");
+        final Address[] addresses = new Address[] { new TestAddress("counting", "user@apache.org") };
+
+        CountingTransport.connects = 0;
+        CountingTransport.drop = false;
+        Transport.send(message, addresses);
+        Transport.send(message, addresses);
+        Transport.send(message, addresses);
+        assertEquals(1, CountingTransport.connects);
+
+        // a connection that has been dropped is not reused
+        CountingTransport.drop = true;
+        Transport.send(message, addresses);
+        CountingTransport.drop = false;
+        Transport.send(message, addresses);
+        assertEquals(2, CountingTransport.connects);
+
+        // different credentials need a different connection
+        Transport.send(message, addresses, "user", "password");
+        Transport.send(message, addresses, "user", "password");
+        assertEquals(3, CountingTransport.connects);
+
+        // rejected recipients do not cost the connection
+        CountingTransport.reject = true;
+        try {
+            Transport.send(message, addresses);
+            fail();
+        } catch (final SendFailedException e) {
+            // expected
+        } finally {
+            CountingTransport.reject = false;
+        }
+        Transport.send(message, addresses);
+        assertEquals(3, CountingTransport.connects);
+    }
+
+    public void testPoolTimeout() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("mail.transport.pool", "true");
+        props.setProperty("mail.transport.pool.maxperkey", "1");
+        props.setProperty("mail.transport.pool.timeout", "50");
+        final Session session = Session.getInstance(props, null);
+        final TransportPool pool = session.getTransportPool();
+
+        final Transport transport = new CountingTransport(session, new URLName("counting://host"));
+        final TransportPool.Key key = TransportPool.createKey(transport, null, null);
+        assertNull(pool.borrow(key));
+        try {
+            pool.borrow(key);
+            fail();
+        } catch (final MessagingException e) {
+            // expected
+        }
+        transport.connect();
+        pool.release(key, transport, true);
+        assertSame(transport, pool.borrow(key));
+        pool.release(key, transport, true);
+    }
+
+    public void testIdleSweep() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("mail.transport.pool", "true");
+        props.setProperty("mail.transport.pool.idletimeout", "20");
+        final Session session = Session.getInstance(props, null);
+        final TransportPool pool = session.getTransportPool();
+
+        final Transport transport = new CountingTransport(session, new URLName("counting://host"));
+        final TransportPool.Key key = TransportPool.createKey(transport, null, null);
+        assertNull(pool.borrow(key));
+        transport.connect();
+        pool.release(key, transport, true);
+
+        // the idle connection is closed without any further use of the pool
+        for (int i = 0; i < 500 && transport.isConnected(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(transport.isConnected());
+    }
+
+    static void await() throws MessagingException {
+        final CyclicBarrier b = barrier;
+        if (b != null) {
+            try {
+                b.await(10, TimeUnit.SECONDS);
+            } catch (final Exception e) {
+                throw new MessagingException("transports were not run concurrently", e);
+            }
+        }
+    }
+
+    static public class GoodTransport extends Transport {
+        public GoodTransport(final Session session, final URLName urlName) {
+            super(session, urlName);
+        }
+
+        @Override
+        public void sendMessage(final Message message, final Address[] addresses) throws MessagingException {
+            await();
+        }
+
+        @Override
+        protected boolean protocolConnect(final String host, final int port, final String user, final String password) throws MessagingException {
+            return true;
+        }
+    }
+
+    static public class BadTransport extends Transport {
+        public BadTransport(final Session session, final URLName urlName) {
+            super(session, urlName);
+        }
+
+        @Override
+        public void sendMessage(final Message message, final Address[] addresses) throws MessagingException {
+            await();
+            throw new SendFailedException("bad address", null, null, null, addresses);
+        }
+
+        @Override
+        protected boolean protocolConnect(final String host, final int port, final String user, final String password) throws MessagingException {
+            return true;
+        }
+    }
+
+    static public class OrderedTransport extends Transport {
+        static final List<TransportEvent> events = Collections.synchronizedList(new ArrayList<TransportEvent>());
+
+        public OrderedTransport(final Session session, final URLName urlName) {
+            super(session, urlName);
+            addTransportListener(new TransportAdapter() {
+                @Override
+                public void messageDelivered(final TransportEvent e) {
+                    events.add(e);
+                }
+            });
+        }
+
+        @Override
+        public void sendMessage(final Message message, final Address[] addresses) throws MessagingException {
+            // the groups are numbered by their protocol, and the first ones are slowest
+            final String type = addresses[0].getType();
+            final int group = Integer.parseInt(type.substring(type.length() - 1));
+            try {
+                Thread.sleep((4 - group) * 50);
+            } catch (final InterruptedException e) {
+                throw new MessagingException("interrupted", e);
+            }
+            notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED, addresses, new Address[0], new Address[0], message);
+        }
+
+        @Override
+        protected boolean protocolConnect(final String host, final int port, final String user, final String password) throws MessagingException {
+            return true;
+        }
+    }
+
+    static public class CountingTransport extends Transport {
+        static int connects;
+        static boolean drop;
+        static boolean reject;
+
+        public CountingTransport(final Session session, final URLName urlName) {
+            super(session, urlName);
+        }
+
+        @Override
+        public void sendMessage(final Message message, final Address[] addresses) throws MessagingException {
+            if (drop) {
+                setConnected(false);
+            }
+            if (reject) {
+                throw new SendFailedException("rejected", null, null, null, addresses);
+            }
+        }
+
+        @Override
+        protected boolean protocolConnect(final String host, final int port, final String user, final String password) throws MessagingException {
+            connects++;
+            return true;
+        }
+    }
+
+    static public class TestAddress extends Address {
+        private final String type;
+        private final String address;
+
+        public TestAddress(final String type, final String address) {
+            this.type = type;
+            this.address = address;
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other == this;
+        }
+    }
+}
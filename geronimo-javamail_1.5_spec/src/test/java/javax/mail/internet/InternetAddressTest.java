@@ -442,6 +442,95 @@ public class InternetAddressTest extends TestCase {
         assertEquals(InternetAddress.getLocalAddress(session), new InternetAddress("tester@incubator.apache.org"));
     }
 
+    public void testLocalAddressLookupFailure() throws Exception {
+        final boolean[] fail = { true };
+        final LocalIdentity.HostNameLookup previous = LocalIdentity.setHostNameLookup(new LocalIdentity.HostNameLookup() {
+            public String getHostName() throws UnknownHostException {
+                if (fail[0]) {
+                    throw new UnknownHostException("lookup failed");
+                }
+                return "host.apache.org";
+            }
+        });
+        try {
+            final Properties props = new Properties();
+            props.put("mail.user", "user");
+            final Session session = Session.getInstance(props, null);
+
+            // a failed lookup is not remembered
+            assertNull(InternetAddress.getLocalAddress(session));
+            fail[0] = false;
+            assertEquals(new InternetAddress("user@host.apache.org"), InternetAddress.getLocalAddress(session));
+
+            // but a successful one is
+            fail[0] = true;
+            assertEquals(new InternetAddress("user@host.apache.org"), InternetAddress.getLocalAddress(session));
+        } finally {
+            LocalIdentity.setHostNameLookup(previous);
+        }
+    }
+
+    public void testSimpleForms() throws Exception {
+        final String[] simple = {
+            "foo@apache.org",
+            "foo.bar@mail.apache.org",
+            "  foo@apache.org  ",
+            "Foo <foo@apache.org>",
+            "Foo  Bar <foo@apache.org>",
+            "\"Bar, Foo\" <foo@apache.org>",
+            "foo@apache.org, Bar <bar@apache.org>,, \"Baz\" <baz@apache.org>",
+        };
+        for (int i = 0; i < simple.length; i++) {
+            assertNotNull(simple[i], SimpleAddressParser.parseAddressList(simple[i]));
+            for (int level = AddressParser.NONSTRICT; level <= AddressParser.STRICT; level++) {
+                final InternetAddress[] expected = new AddressParser(simple[i], level).parseAddressList();
+                final InternetAddress[] actual = level == AddressParser.PARSE_HEADER ? InternetAddress.parseHeader(simple[i], false)
+                        : InternetAddress.parse(simple[i], level == AddressParser.STRICT);
+                assertEquals(simple[i], expected.length, actual.length);
+                for (int j = 0; j < expected.length; j++) {
+                    validateAddress(actual[j], expected[j].getAddress(), expected[j].getPersonal(), expected[j].toString(), false);
+                }
+            }
+        }
+
+        // anything beyond the simple forms is left to the full parser
+        assertNull(SimpleAddressParser.parseAddressList("(Fred) foo@apache.org"));
+        assertNull(SimpleAddressParser.parseAddressList("Foo:foo@apache.org;"));
+        assertNull(SimpleAddressParser.parseAddressList("\"Foo\\\"\" <foo@apache.org>"));
+        assertNull(SimpleAddressParser.parseAddressList("<foo@[apache].org>"));
+        assertNull(SimpleAddressParser.parseAddressList("Foo.Bar <foo@apache.org>"));
+        assertNull(SimpleAddressParser.parseAddress("foo@apache.org, bar@apache.org"));
+        assertNull(SimpleAddressParser.parseAddress(""));
+    }
+
+    public void testParseCache() throws Exception {
+        System.setProperty("mail.mime.address.cachesize", "2");
+        try {
+            final InternetAddress[] first = InternetAddress.parse("Foo <foo@apache.org>, bar@apache.org");
+            final InternetAddress[] second = InternetAddress.parse("Foo <foo@apache.org>, bar@apache.org");
+            assertEquals(2, second.length);
+            for (int i = 0; i < first.length; i++) {
+                assertEquals(first[i], second[i]);
+                assertEquals(first[i].getPersonal(), second[i].getPersonal());
+                assertNotSame(first[i], second[i]);
+            }
+
+            // changing a returned address must not affect later results
+            first[0].setPersonal("Bar");
+            assertEquals("Foo", InternetAddress.parse("Foo <foo@apache.org>, bar@apache.org")[0].getPersonal());
+
+            // addresses needing the full parser are cached the same way, and errors are not cached
+            InternetAddress.parse("a@apache.org");
+            InternetAddress.parse("b@apache.org");
+            validateAddress(InternetAddress.parse("(Fred) foo@apache.org")[0], "foo@apache.org", "Fred", "Fred <foo@apache.org>", false);
+            validateAddress(InternetAddress.parse("(Fred) foo@apache.org")[0], "foo@apache.org", "Fred", "Fred <foo@apache.org>", false);
+            parseErrorTest("<foo@apache.org", true);
+            parseErrorTest("<foo@apache.org", true);
+        } finally {
+            System.getProperties().remove("mail.mime.address.cachesize");
+        }
+    }
+
     private InternetAddress[] getGroup(final String address, final boolean strict) throws AddressException
     {
         final InternetAddress group = new InternetAddress(address);
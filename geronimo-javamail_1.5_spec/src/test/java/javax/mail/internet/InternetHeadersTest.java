@@ -20,6 +20,13 @@
 package javax.mail.internet;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.mail.Header;
 
 import javax.mail.MessagingException;
 
@@ -39,6 +46,150 @@ public class InternetHeadersTest extends TestCase {
         assertEquals("text/plain", header[0]);
     }
 
+    public void testLoadFoldedHeaders() throws Exception {
+        final String stream = "Subject: first\r\n  second\r\n\tthird\r\nX-Mailer: test\nTo: a@example.com\r\n\r\nbody";
+        final InputStream in = new ByteArrayInputStream(stream.getBytes("ISO8859-1"));
+        headers.load(in);
+        assertEquals("first\r\n  second\r\n\tthird", headers.getHeader("Subject", null));
+        assertEquals("test", headers.getHeader("X-Mailer", null));
+        assertEquals("a@example.com", headers.getHeader("To", null));
+        // the stream must be left at the start of the body
+        assertEquals('b', in.read());
+    }
+
+    public void testLoadNoMarkSupport() throws Exception {
+        final String stream = "Subject: first\r\n second\r\nTo: a@example.com\r\n\r\nbody";
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(stream.getBytes("ISO8859-1"))) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        headers.load(in);
+        assertEquals("first\r\n second", headers.getHeader("Subject", null));
+        assertEquals("a@example.com", headers.getHeader("To", null));
+        assertEquals('b', in.read());
+    }
+
+    public void testLoadLargeHeaderBlock() throws Exception {
+        final StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            stream.append("Received: from host").append(i).append(".example.com\r\n\tby relay.example.com\r\n");
+        }
+        stream.append("X-Last: done\r\n\r\nbody");
+        final InputStream in = new ByteArrayInputStream(stream.toString().getBytes("ISO8859-1"));
+        final InternetHeaders loaded = new InternetHeaders(in);
+        final String[] received = loaded.getHeader("Received");
+        assertEquals(500, received.length);
+        assertEquals("from host0.example.com\r\n\tby relay.example.com", received[0]);
+        assertEquals("from host499.example.com\r\n\tby relay.example.com", received[499]);
+        assertEquals("done", loaded.getHeader("X-Last", null));
+        assertEquals('b', in.read());
+
+        final Enumeration e = loaded.getAllHeaders();
+        assertEquals("Received", ((Header)e.nextElement()).getName());
+    }
+
+    public void testLoadUsesAddHeaderLine() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        final InternetHeaders loaded = new InternetHeaders() {
+            @Override
+            public void addHeaderLine(final String line) {
+                lines.add(line);
+                super.addHeaderLine(line);
+            }
+        };
+        final String stream = "Subject: first\r\n second\r\nTo:a@example.com\r\nX-Empty\r\n\r\nbody";
+        loaded.load(new ByteArrayInputStream(stream.getBytes("ISO8859-1")));
+        assertEquals(3, lines.size());
+        assertEquals("Subject: first\r\n second", lines.get(0));
+        assertEquals("To:a@example.com", lines.get(1));
+        assertEquals("X-Empty", lines.get(2));
+        assertEquals("first\r\n second", loaded.getHeader("Subject", null));
+        assertEquals("a@example.com", loaded.getHeader("To", null));
+    }
+
+    public void testHeaderOrderAndDuplicates() throws Exception {
+        headers.addHeader("X-Test", "one");
+        headers.addHeader("Received", "first");
+        headers.addHeader("x-test", "two");
+        headers.addHeader("Received", "second");
+        headers.addHeader("Subject", "subject");
+
+        String[] values = headers.getHeader("X-TEST");
+        assertEquals(2, values.length);
+        assertEquals("one", values[0]);
+        assertEquals("two", values[1]);
+        // Received headers are added in reverse order
+        values = headers.getHeader("received");
+        assertEquals("second", values[0]);
+        assertEquals("first", values[1]);
+
+        headers.setHeader("X-TEST", "three");
+        values = headers.getHeader("x-test");
+        assertEquals(1, values.length);
+        assertEquals("three", values[0]);
+
+        final Enumeration e = headers.getAllHeaders();
+        assertEquals("Received", ((Header)e.nextElement()).getName());
+        assertEquals("Received", ((Header)e.nextElement()).getName());
+        assertEquals("Subject", ((Header)e.nextElement()).getName());
+        assertEquals("X-TEST", ((Header)e.nextElement()).getName());
+        assertFalse(e.hasMoreElements());
+
+        headers.removeHeader("x-Test");
+        assertNull(headers.getHeader("X-Test"));
+        headers.addHeader("X-Test", "four");
+        assertEquals("four", headers.getHeader("X-Test", null));
+        headers.addHeaderLine("X-Test: five");
+        assertEquals("four,five", headers.getHeader("x-test", ","));
+    }
+
+    public void testDirectListChanges() throws Exception {
+        final InternetHeaders direct = new InternetHeaders() {
+            {
+                addHeader("X-Test", "one");
+                addHeader("Subject", "subject");
+
+                // replace an entry in place, so the size is unchanged
+                final int pos = indexOf("X-Test");
+                headers.set(pos, new InternetHeader("X-Other", "two"));
+                assertNull(getHeader("X-Test"));
+                assertEquals("two", getHeader("X-Other", null));
+
+                // a remove followed by an add, through a sublist
+                headers.subList(pos, pos + 1).set(0, new InternetHeader("X-Third", "three"));
+                assertNull(getHeader("X-Other"));
+                setHeader("X-Third", "four");
+                assertEquals("four", getHeader("X-Third", null));
+
+                // a different list of the same size
+                final List<InternetHeader> copy = new ArrayList<InternetHeader>();
+                for (int i = 0; i < headers.size(); i++) {
+                    final InternetHeader header = (InternetHeader)headers.get(i);
+                    copy.add(new InternetHeader(header.getName(), header.getValue()));
+                }
+                headers = copy;
+                removeHeader("Subject");
+                assertNull(getHeader("Subject"));
+                // and changes to it
+                copy.set(indexOf("X-Third"), new InternetHeader("X-Fourth", "five"));
+                assertNull(getHeader("X-Third"));
+                assertEquals("five", getHeader("X-Fourth", null));
+            }
+
+            private int indexOf(final String name) {
+                for (int i = 0; i < headers.size(); i++) {
+                    if (((InternetHeader)headers.get(i)).getName().equals(name)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        };
+        assertEquals("five", direct.getHeader("X-Fourth", null));
+    }
+
     @Override
     protected void setUp() throws Exception {
         headers = new InternetHeaders();
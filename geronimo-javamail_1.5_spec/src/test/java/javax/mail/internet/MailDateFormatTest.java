@@ -20,10 +20,13 @@
 package javax.mail.internet;
 
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Random;
 import java.util.SimpleTimeZone;
+import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
@@ -93,4 +96,81 @@ public class MailDateFormatTest extends TestCase {
         assertEquals(43, cal.get(Calendar.MINUTE));
         assertEquals(00, cal.get(Calendar.SECOND));
     }
+
+    public void testFormatMatchesSimpleDateFormat() {
+        final String[] zones = { "GMT", "America/New_York", "Europe/London", "Asia/Kolkata", "Australia/Adelaide", "Pacific/Kiritimati" };
+        final Random random = new Random(42);
+        for (int i = 0; i < zones.length; i++) {
+            final TimeZone zone = TimeZone.getTimeZone(zones[i]);
+            final SimpleDateFormat expected = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z (z)", Locale.US);
+            expected.setTimeZone(zone);
+            final MailDateFormat mdf = new MailDateFormat();
+            mdf.setTimeZone(zone);
+            for (int j = 0; j < 500; j++) {
+                // anything between 1900 and 2100
+                final long millis = -2208988800000L + (long)(random.nextDouble() * 6311433600000L);
+                final Date date = new Date(millis);
+                assertEquals(expected.format(date), mdf.format(date));
+                assertEquals(expected.format(date), MailDateFormatter.INSTANCE.format(millis, zone));
+            }
+        }
+    }
+
+    public void testSentDate() throws Exception {
+        final MimeMessage message = new MimeMessage((javax.mail.Session)null);
+        assertNull(message.getSentDate());
+        final Date date = new Date(1061988218000L);
+        message.setSentDate(date);
+        assertEquals(date, message.getSentDate());
+        message.setSentDate(null);
+        assertNull(message.getHeader("Date"));
+        message.setHeader("Date", "not a date");
+        assertNull(message.getSentDate());
+    }
+
+    public void testParseMillis() throws ParseException {
+        final MailDateFormatter formatter = MailDateFormatter.INSTANCE;
+        assertEquals(1061988218000L, formatter.parseMillis("Wed, 27 Aug 2003 13:43:38 +0100 (BST)"));
+        assertEquals(1061988218000L, formatter.parseMillis("Wed, 27 Aug 2003 07:43:38 EST"));
+        assertEquals(1061988218000L, formatter.parseMillis("27-aug-2003 12:43:38 z"));
+        assertEquals(1061988218000L, formatter.parseMillis("27 AUG 2003 12:43:38 ut"));
+        assertEquals(1061988218000L, formatter.parseMillis("27 Aug 2003 11:43:38 N"));
+        assertEquals(0L, formatter.parseMillis("1 Jan 1970 00:00:00 GMT"));
+        assertEquals(-1000L, formatter.parseMillis("31 Dec 1969 23:59:59 GMT"));
+        assertEquals(951782400000L, formatter.parseMillis("29 Feb 2000 00:00:00 +0000"));
+        // two digit years
+        assertEquals(915148800000L, formatter.parseMillis("1 Jan 99 00:00 GMT"));
+        // lenient parsing rolls over into the next month
+        assertEquals(951868800000L, formatter.parseMillis("30 Feb 2000 00:00:00 +0000"));
+
+        final String[] invalid = { "27 Foo 2003 12:43:38 GMT", "27 Aug 2003 12:43:38 J", "27 Aug 2003 12:43:38 XYZ", "27 Aug 2003" };
+        for (int i = 0; i < invalid.length; i++) {
+            try {
+                formatter.parseMillis(invalid[i]);
+                fail(invalid[i]);
+            } catch (final ParseException e) {
+            }
+        }
+    }
+
+    public void testStrictParsing() throws ParseException {
+        final MailDateFormat mdf = new MailDateFormat();
+        mdf.setLenient(false);
+        assertEquals(951782400000L, mdf.parse("29 Feb 2000 00:00:00 +0000").getTime());
+        try {
+            mdf.parse("29 Feb 2001 00:00:00 +0000");
+            fail();
+        } catch (final ParseException e) {
+        }
+    }
+
+    public void testParseMatchesFormat() throws ParseException {
+        final Random random = new Random(7);
+        final TimeZone zone = TimeZone.getTimeZone("America/Los_Angeles");
+        for (int i = 0; i < 1000; i++) {
+            // whole seconds between 1900 and 2100
+            final long millis = (-2208988800L + (long)(random.nextDouble() * 6311433600L)) * 1000;
+            assertEquals(millis, MailDateFormatter.INSTANCE.parseMillis(MailDateFormatter.INSTANCE.format(millis, zone)));
+        }
+    }
 }
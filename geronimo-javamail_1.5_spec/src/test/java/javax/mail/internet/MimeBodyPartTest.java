@@ -80,6 +80,39 @@ public class MimeBodyPartTest extends TestCase {
         assertTrue(part.isMimeType("text/*"));
     }
 
+    public void testParsedHeadersFollowChanges() throws MessagingException {
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader("Content-Type", "image/png; name=a.png");
+        assertTrue(part.isMimeType("image/png"));
+        assertEquals("a.png", part.getFileName());
+
+        // changes through any route are seen by the cached values
+        part.setHeader("Content-Type", "image/gif; name=b.gif");
+        assertFalse(part.isMimeType("image/png"));
+        assertTrue(part.isMimeType("image/gif"));
+        assertEquals("b.gif", part.getFileName());
+
+        part.headers.setHeader("Content-Type", "application/pdf");
+        assertTrue(part.isMimeType("application/pdf"));
+        assertNull(part.getFileName());
+
+        part.removeHeader("Content-Type");
+        assertTrue(part.isMimeType("text/plain"));
+
+        part.setContent("text", "text/html");
+        part.updateHeaders();
+        assertTrue(part.isMimeType("text/html"));
+
+        part.setHeader("Content-Disposition", "attachment; filename=c.txt");
+        assertEquals("attachment", part.getDisposition());
+        assertEquals("c.txt", part.getFileName());
+        part.setDisposition("inline");
+        assertEquals("inline", part.getDisposition());
+        assertEquals("c.txt", part.getFileName());
+        part.removeHeader("Content-Disposition");
+        assertNull(part.getDisposition());
+    }
+
 
     public void testGetDisposition() throws MessagingException {
         final MimeBodyPart part = new MimeBodyPart();
@@ -21,9 +21,18 @@ package javax.mail.internet;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.activation.CommandMap;
 import javax.activation.MailcapCommandMap;
@@ -33,6 +42,10 @@ import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.geronimo.mail.util.ChannelWriter;
 
 import junit.framework.TestCase;
 
@@ -78,6 +91,172 @@ public class MimeMessageTest extends TestCase {
     }
 
 
+    public void testCopySharesContent() throws MessagingException, IOException {
+        final String data = "From: foo@apache.org\r\n"
+            + "Subject: original\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + "SGVsbG8g\r\nV29ybGQ=\r\n";
+        final MimeMessage source = new MimeMessage(session, new ByteArrayInputStream(data.getBytes("ISO8859-1")));
+        final MimeMessage copy = new MimeMessage(source);
+
+        // the content is shared, but the headers are not
+        assertSame(source.content, copy.content);
+        copy.setSubject("changed");
+        assertEquals("original", source.getSubject());
+        assertEquals("changed", copy.getSubject());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.writeTo(out);
+        assertEquals(data, out.toString("ISO8859-1"));
+
+        // saving the header change writes the raw content rather than encoding it again
+        copy.saveChanges();
+        out = new ByteArrayOutputStream();
+        copy.writeTo(out);
+        final String written = out.toString("ISO8859-1");
+        assertTrue(written.indexOf("Subject: changed\r\n") != -1);
+        assertTrue(written.endsWith("\r\n\r\nSGVsbG8g\r\nV29ybGQ=\r\n"));
+
+        // new content is encoded as usual, and leaves the source alone
+        copy.setText("Goodbye");
+        copy.saveChanges();
+        out = new ByteArrayOutputStream();
+        copy.writeTo(out);
+        assertTrue(out.toString("ISO8859-1").endsWith("\r\n\r\nGoodbye"));
+        final InputStream in = source.getInputStream();
+        final byte[] decoded = new byte[32];
+        assertEquals(11, in.read(decoded));
+        assertEquals("Hello World", new String(decoded, 0, 11, "ISO8859-1"));
+
+        // a subclass that changes how its headers are seen is copied through its own methods
+        final MimeMessage filtered = new MimeMessage(session, new ByteArrayInputStream(data.getBytes("ISO8859-1"))) {
+            @Override
+            public String[] getHeader(final String name) throws MessagingException {
+                return "Subject".equalsIgnoreCase(name) ? new String[] { "filtered" } : super.getHeader(name);
+            }
+        };
+        final MimeMessage filteredCopy = new MimeMessage(filtered);
+        assertNotSame(filtered.content, filteredCopy.content);
+    }
+
+
+    public void testWriteToChannel() throws Exception {
+        final String data = "From: foo@apache.org\r\n"
+            + "Subject: stored\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "Hello World\r\n";
+        final File file = File.createTempFile("message", ".eml");
+        try {
+            final FileOutputStream fileOut = new FileOutputStream(file);
+            fileOut.write(data.getBytes("ISO8859-1"));
+            fileOut.close();
+
+            // a message stored in a file is transferred from the file
+            final SharedFileInputStream in = new SharedFileInputStream(file);
+            MimeMessage msg = new MimeMessage(session, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ChannelWriter.writeTo(msg, Channels.newChannel(out));
+            assertEquals(data, out.toString("ISO8859-1"));
+            in.close();
+
+            // headers can be skipped, and content held in memory goes out with the headers
+            msg = new MimeMessage(session, new ByteArrayInputStream(data.getBytes("ISO8859-1")));
+            out = new ByteArrayOutputStream();
+            ChannelWriter.writeTo(msg, Channels.newChannel(out), new String[] { "Subject" });
+            assertEquals(data.replaceFirst("Subject: stored\r\n", ""), out.toString("ISO8859-1"));
+
+            // and in a single gathering write where the channel supports one
+            final GatheringChannel gathering = new GatheringChannel();
+            ChannelWriter.writeTo(msg, gathering);
+            assertEquals(1, gathering.gatheringWrites);
+            assertEquals(data, gathering.out.toString("ISO8859-1"));
+
+            // new content is encoded, just as it is for a stream
+            msg = new MimeMessage(session);
+            msg.setText("Caf\u00e9 au lait");
+            out = new ByteArrayOutputStream();
+            ChannelWriter.writeTo(msg, Channels.newChannel(out));
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            msg.writeTo(expected);
+            assertEquals(expected.toString("ISO8859-1"), out.toString("ISO8859-1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    public void testChannelAccessRegistered() throws Exception {
+        // the spec classes have registered their accessors, and nothing can replace them
+        try {
+            ChannelWriter.setMessageAccess(new ChannelWriter.MessageAccess() {
+                public Object getRawContent(final MimeMessage message) {
+                    return null;
+                }
+
+                public void writeHeaders(final MimeMessage message, final String[] ignoreHeaders, final WritableByteChannel channel, final ByteBuffer content) {
+                }
+            });
+            fail();
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        final ChannelWriter.StreamAccess stream = new ChannelWriter.StreamAccess() {
+            public long transferTo(final InputStream in, final WritableByteChannel target) {
+                return 0;
+            }
+        };
+        try {
+            ChannelWriter.setStreamAccess(SharedFileInputStream.class, stream);
+            fail();
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        try {
+            ChannelWriter.setStreamAccess(SharedByteArrayInputStream.class, stream);
+            fail();
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+
+    static class GatheringChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int gatheringWrites;
+
+        public int write(final ByteBuffer src) throws IOException {
+            final int length = src.remaining();
+            while (src.hasRemaining()) {
+                out.write(src.get());
+            }
+            return length;
+        }
+
+        public long write(final ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            gatheringWrites++;
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+
     public void testFrom() throws MessagingException {
         final MimeMessage msg = new MimeMessage(session);
 
@@ -120,6 +299,53 @@ public class MimeMessageTest extends TestCase {
     }
 
 
+    public void testMessageID() throws Exception {
+        final Properties props = new Properties();
+        props.put("mail.from", "tester@apache.org");
+        final Session local = Session.getInstance(props, null);
+
+        final int threads = 4;
+        final int count = 250;
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final Thread[] workers = new Thread[threads];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < count; j++) {
+                            final MimeMessage msg = new MimeMessage(local);
+                            msg.setText("test");
+                            msg.saveChanges();
+                            ids.add(msg.getMessageID());
+                        }
+                    } catch (final Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(threads * count, ids.size());
+        assertTrue(ids.iterator().next().endsWith(".JavaMail.tester@apache.org>"));
+
+        // the cached identity follows changes to the session properties
+        local.getProperties().put("mail.from", "other@apache.org");
+        final MimeMessage msg = new MimeMessage(local);
+        msg.setText("test");
+        msg.saveChanges();
+        assertTrue(msg.getMessageID().endsWith(".JavaMail.other@apache.org>"));
+        assertEquals(new InternetAddress("other@apache.org"), InternetAddress.getLocalAddress(local));
+        assertNotSame(InternetAddress.getLocalAddress(local), InternetAddress.getLocalAddress(local));
+    }
+
     public void testSender() throws MessagingException {
         final MimeMessage msg = new MimeMessage(session);
 
@@ -433,6 +659,24 @@ public class MimeMessageTest extends TestCase {
     }
 
 
+    public void testParsedHeadersFollowChanges() throws MessagingException {
+        final MimeMessage msg = new MimeMessage(session);
+        assertTrue(msg.isMimeType("text/plain"));
+        msg.setHeader("Content-Type", "text/xml");
+        assertTrue(msg.isMimeType("text/xml"));
+        assertFalse(msg.isMimeType("text/plain"));
+        msg.removeHeader("Content-Type");
+        assertTrue(msg.isMimeType("text/plain"));
+
+        msg.setHeader("Content-Disposition", "attachment; filename=report.pdf");
+        assertEquals("attachment", msg.getDisposition());
+        assertEquals("report.pdf", msg.getFileName());
+        msg.setHeader("Content-Disposition", "inline; filename=other.pdf");
+        assertEquals("inline", msg.getDisposition());
+        assertEquals("other.pdf", msg.getFileName());
+    }
+
+
     public void testSetText() throws MessagingException {
         MimeMessage msg = new MimeMessage(session);
 
@@ -28,7 +28,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.CommandMap;
 import javax.activation.DataContentHandler;
@@ -39,6 +42,11 @@ import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.geronimo.mail.util.MailExecutor;
 
 import junit.framework.TestCase;
 
@@ -251,6 +259,234 @@ public class MimeMultipartTest extends TestCase {
 		}
     }
     
+    public void testSharedStreamParsing() throws IOException, MessagingException {
+        final File basedir = new File(System.getProperty("basedir", "."));
+        final SharedFileInputStream source = new SharedFileInputStream(new File(basedir, "src/test/resources/multipart_msg_normal.eml"));
+        try {
+            final MimeMessage message = new MimeMessage(null, source);
+            // the content is referenced in place, not copied
+            assertNull(message.content);
+            assertTrue(message.contentStream instanceof SharedInputStream);
+            checkSharedParts((MimeMultipart)message.getContent());
+        } finally {
+            source.close();
+        }
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(new File(basedir, "src/test/resources/multipart_msg_normal.eml"));
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            data.write(buffer, 0, count);
+        }
+        in.close();
+        final MimeMessage message = new MimeMessage(null, new SharedByteArrayInputStream(data.toByteArray()));
+        assertNull(message.content);
+        checkSharedParts((MimeMultipart)message.getContent());
+    }
+
+    private void checkSharedParts(final MimeMultipart mp) throws IOException, MessagingException {
+        assertEquals(2, mp.getCount());
+        assertTrue(mp.isComplete());
+        final MimeBodyPart part0 = (MimeBodyPart)mp.getBodyPart(0);
+        final MimeBodyPart part1 = (MimeBodyPart)mp.getBodyPart(1);
+        assertNull(part0.content);
+        assertTrue(part0.contentStream instanceof SharedInputStream);
+        assertEquals("This is implicitly typed plain ASCII text.\nIt does NOT end with a linebreak.", part0.getContent());
+        assertEquals("text/plain; charset=us-ascii", part1.getContentType());
+        assertEquals("This is explicitly typed plain ASCII text.\nIt DOES end with a linebreak.\n", part1.getContent());
+        // shared content can be read more than once
+        assertEquals(part1.getContent(), part1.getContent());
+    }
+
+    public void testSpillThreshold() throws IOException, MessagingException {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("attachment line ").append(i).append("\r\n");
+        }
+        final String data = "--boundary\r\nContent-Type: application/octet-stream\r\n\r\n" + body
+            + "\r\n--boundary\r\nContent-Type: text/plain\r\n\r\nsmall part\r\n--boundary--\r\n";
+
+        System.setProperty("mail.mime.multipart.spillthreshold", "1024");
+        try {
+            final MimeMultipart mp = new MimeMultipart(new ByteArrayDataSource(data.getBytes("ISO8859-1"), "multipart/mixed; boundary=boundary"));
+            assertEquals(2, mp.getCount());
+
+            final MimeBodyPart large = (MimeBodyPart)mp.getBodyPart(0);
+            assertNull(large.content);
+            assertTrue(large.contentStream instanceof SharedFileInputStream);
+            assertEquals("application/octet-stream", large.getContentType());
+            // read this twice to verify the shared data remains available
+            for (int pass = 0; pass < 2; pass++) {
+                final InputStream in = large.getRawInputStream();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                in.close();
+                assertEquals(body.toString(), out.toString("ISO8859-1"));
+            }
+
+            final MimeBodyPart small = (MimeBodyPart)mp.getBodyPart(1);
+            assertNotNull(small.content);
+            assertEquals("small part", small.getContent());
+        } finally {
+            System.getProperties().remove("mail.mime.multipart.spillthreshold");
+        }
+    }
+
+    public void testParallelWrite() throws IOException, MessagingException {
+        System.setProperty("mail.mime.multipart.parallelwrite", "true");
+        System.setProperty("mail.mime.multipart.spillthreshold", "4096");
+        try {
+            final MimeMultipart mp = new MimeMultipart();
+            final Random random = new Random(42);
+            for (int i = 0; i < 12; i++) {
+                // a mix of small parts kept in memory and large ones spilled to disk
+                final byte[] data = new byte[i % 3 == 0 ? 20000 + i : 100 + i];
+                random.nextBytes(data);
+                final MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+                mp.addBodyPart(part);
+            }
+            mp.setPreamble("preamble");
+            mp.updateHeaders();
+
+            // build the expected output one part at a time
+            final String boundary = new ContentType(mp.getContentType()).getParameter("boundary");
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write("preamble\r\n".getBytes("ISO8859-1"));
+            for (int i = 0; i < mp.getCount(); i++) {
+                expected.write(("--" + boundary + "\r\n").getBytes("ISO8859-1"));
+                mp.getBodyPart(i).writeTo(expected);
+                expected.write("\r\n".getBytes("ISO8859-1"));
+            }
+            expected.write(("--" + boundary + "--\r\n").getBytes("ISO8859-1"));
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            mp.writeTo(out);
+            assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+        } finally {
+            System.getProperties().remove("mail.mime.multipart.parallelwrite");
+            System.getProperties().remove("mail.mime.multipart.spillthreshold");
+        }
+    }
+
+    public void testParallelWriteFailure() throws IOException, MessagingException {
+        System.setProperty("mail.mime.multipart.parallelwrite", "true");
+        try {
+            final AtomicInteger started = new AtomicInteger();
+            final MimeMultipart mp = new MimeMultipart();
+            for (int i = 0; i < 50; i++) {
+                final boolean fail = i == 2;
+                final MimeBodyPart part = new MimeBodyPart() {
+                    @Override
+                    public void writeTo(final OutputStream out) throws IOException, MessagingException {
+                        started.incrementAndGet();
+                        if (fail) {
+                            throw new IOException("Part failed");
+                        }
+                        super.writeTo(out);
+                    }
+                };
+                part.setText("part " + i);
+                mp.addBodyPart(part);
+            }
+            mp.updateHeaders();
+
+            try {
+                mp.writeTo(new ByteArrayOutputStream());
+                fail();
+            } catch (final IOException e) {
+                assertEquals("Part failed", e.getMessage());
+            }
+            // only a window of parts past the failed one is ever queued
+            assertTrue(started.get() <= MailExecutor.getThreadCount() + 3);
+        } finally {
+            System.getProperties().remove("mail.mime.multipart.parallelwrite");
+        }
+    }
+
+    public void testLargePartBoundaryScan() throws IOException, MessagingException {
+        checkLargePartBoundaryScan("\r\n");
+        checkLargePartBoundaryScan("\n");
+    }
+
+    private void checkLargePartBoundaryScan(final String eol) throws IOException, MessagingException {
+        // build a large part body full of near-miss boundary lines
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append("line ").append(i).append(" of the attachment data\r");
+            switch (i % 5) {
+                case 0: body.append(eol).append("--bound"); break;
+                case 1: body.append(eol).append("--boundaryX"); break;
+                case 2: body.append(eol).append("--boundary--X"); break;
+                case 3: body.append("\r--boundary"); break;
+                default: body.append(eol); break;
+            }
+        }
+        final byte[] expected = body.toString().getBytes("ISO8859-1");
+
+        final StringBuilder data = new StringBuilder();
+        data.append("preamble text").append(eol);
+        data.append("--boundary").append(eol);
+        data.append("Content-Type: application/octet-stream").append(eol).append(eol);
+        data.append(body).append(eol);
+        data.append("--boundary  ").append(eol);
+        data.append("Content-Type: text/plain").append(eol).append(eol);
+        data.append("second part").append(eol);
+        data.append("--boundary--").append(eol);
+
+        final MimeMultipart mp = new MimeMultipart(new ByteArrayDataSource(data.toString().getBytes("ISO8859-1"), "multipart/mixed; boundary=boundary"));
+        assertEquals(2, mp.getCount());
+        assertTrue(mp.isComplete());
+        assertEquals("preamble text\r\n", mp.getPreamble());
+
+        final InputStream in = ((MimeBodyPart)mp.getBodyPart(0)).getRawInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+        assertEquals("second part", ((MimeBodyPart)mp.getBodyPart(1)).getContent());
+    }
+
+    public void testBoundaryAtReadChunkEnd() throws IOException, MessagingException {
+        // sweep the body length so the boundary line falls at every position around the
+        // end of the stream buffer and the bulk read window
+        for (int length = 980; length < 1100; length++) {
+            checkBodyLength(length);
+        }
+        for (int length = 8100; length < 8220; length++) {
+            checkBodyLength(length);
+        }
+    }
+
+    private void checkBodyLength(final int length) throws IOException, MessagingException {
+        final byte[] expected = new byte[length];
+        Arrays.fill(expected, (byte)'x');
+
+        final StringBuilder data = new StringBuilder();
+        data.append("--boundary\r\n\r\n");
+        data.append(new String(expected, "ISO8859-1"));
+        data.append("\r\n--boundary--\r\n");
+
+        final MimeMultipart mp = new MimeMultipart(new ByteArrayDataSource(data.toString().getBytes("ISO8859-1"), "multipart/mixed; boundary=boundary"));
+        assertEquals(1, mp.getCount());
+        final InputStream in = ((MimeBodyPart)mp.getBodyPart(0)).getRawInputStream();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        assertTrue("body length " + length, Arrays.equals(expected, out.toByteArray()));
+    }
+
     protected void setMultipartSystemPropsToDefault() {
     	setMultipartSystemProps(true, true, false, false);
     }
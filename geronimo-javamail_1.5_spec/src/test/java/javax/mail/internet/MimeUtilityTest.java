@@ -19,11 +19,21 @@
 
 package javax.mail.internet;
 
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import javax.activation.CommandMap;
+import javax.activation.DataContentHandler;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.MailcapCommandMap;
 import javax.mail.util.ByteArrayDataSource;
 
 import junit.framework.TestCase;
@@ -151,6 +161,48 @@ public class MimeUtilityTest extends TestCase {
     }
 
 
+    public void testDecodeWords() throws Exception {
+        // alternate charsets, so the cached decoder has to switch
+        assertEquals("caf\u00e9\u00fcbercaf\u00e9",
+            MimeUtility.decodeText("=?iso-8859-1?Q?caf=E9?= =?UTF-8?B?w7xiZXI=?= =?ISO-8859-1?q?caf=e9?="));
+        // white space between encoded words is dropped, but kept around plain words
+        assertEquals("ab c", MimeUtility.decodeText("=?us-ascii?Q?a?=  =?us-ascii?Q?b?= c"));
+        assertEquals("a =?bad?= b", MimeUtility.decodeText("=?us-ascii?Q?a?= =?bad?= =?us-ascii?Q?b?="));
+        assertEquals("", MimeUtility.decodeWord("=?utf-8?Q??="));
+        assertEquals("a b", MimeUtility.decodeWord("=?utf-8?Q?a_b?="));
+
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder encoded = new StringBuilder("=?utf-8?Q?");
+        for (int i = 0; i < 5000; i++) {
+            text.append('\u00e9');
+            encoded.append("=C3=A9");
+        }
+        encoded.append("?=");
+        assertEquals(text.toString(), MimeUtility.decodeWord(encoded.toString()));
+
+        try {
+            MimeUtility.decodeWord("=?x-no-such-charset?Q?abc?=");
+            fail("Unknown charset not detected");
+        } catch (final UnsupportedEncodingException e) {
+        }
+        try {
+            MimeUtility.decodeWord("=?utf-8?X?abc?=");
+            fail("Unknown encoding not detected");
+        } catch (final UnsupportedEncodingException e) {
+        }
+        try {
+            MimeUtility.decodeWord("=?utf-8?Q?abc=4?=");
+            fail("Truncated encoding not detected");
+        } catch (final UnsupportedEncodingException e) {
+        }
+        try {
+            MimeUtility.decodeWord("=?utf-8?Q?abc");
+            fail("Invalid word not detected");
+        } catch (final ParseException e) {
+        }
+    }
+
+
     public void testGetEncoding() throws Exception {
         ByteArrayDataSource source = new ByteArrayDataSource(new byte[] { 'a', 'b', 'c'}, "text/plain");
 
@@ -179,6 +231,103 @@ public class MimeUtilityTest extends TestCase {
     }
 
 
+    public void testGetEncodingScanLimit() throws Exception {
+        final byte[] ascii = new byte[100];
+        Arrays.fill(ascii, (byte)'a');
+        System.setProperty("mail.mime.encoding.scanlimit", "10");
+        try {
+            // content beyond the limit is never sent as 7bit
+            assertEquals("quoted-printable", MimeUtility.getEncoding(new ByteArrayDataSource(ascii, "text/plain")));
+            assertEquals("base64", MimeUtility.getEncoding(new ByteArrayDataSource(ascii, "application/binary")));
+            // but content that fits is
+            final byte[] shortAscii = new byte[10];
+            Arrays.fill(shortAscii, (byte)'a');
+            assertEquals("7bit", MimeUtility.getEncoding(new ByteArrayDataSource(shortAscii, "text/plain")));
+            assertEquals("7bit", MimeUtility.getEncoding(new ByteArrayDataSource(shortAscii, "application/binary")));
+            // the ratio is taken from the examined data
+            final byte[] mixed = new byte[100];
+            Arrays.fill(mixed, 0, 10, (byte)0x81);
+            assertEquals("base64", MimeUtility.getEncoding(new ByteArrayDataSource(mixed, "text/plain")));
+        } finally {
+            System.clearProperty("mail.mime.encoding.scanlimit");
+        }
+        assertEquals("7bit", MimeUtility.getEncoding(new ByteArrayDataSource(ascii, "text/plain")));
+    }
+
+
+    public void testContentCheckingStopsEarly() throws Exception {
+        // binary content is decided by the first byte that can't go as 7bit
+        ContentCheckingOutputStream checker = new ContentCheckingOutputStream(true, 0);
+        checker.write('a');
+        try {
+            checker.write(new byte[] { (byte)0x81, 'b' });
+            fail();
+        } catch (final ContentCheckingOutputStream.ScanComplete e) {
+        }
+        assertEquals("base64", checker.getBinaryTransferEncoding());
+
+        // and text content by the limit
+        checker = new ContentCheckingOutputStream(false, 4);
+        try {
+            checker.write(new byte[] { 'a', 'b', 'c', 'd', 'e' });
+            fail();
+        } catch (final ContentCheckingOutputStream.ScanComplete e) {
+        }
+        assertEquals("quoted-printable", checker.getTextTransferEncoding());
+
+        checker = new ContentCheckingOutputStream(false, 4);
+        checker.write(new byte[] { 'a', 'b', 'c', 'd' });
+        assertEquals("7bit", checker.getTextTransferEncoding());
+    }
+
+
+    public void testGetEncodingFromHandler() throws Exception {
+        final CommandMap defaultMap = CommandMap.getDefaultCommandMap();
+        final MailcapCommandMap myMap = new MailcapCommandMap();
+        myMap.addMailcap("text/x-wrapping;;    x-java-content-handler=" + WrappingTextHandler.class.getName());
+        CommandMap.setDefaultCommandMap(myMap);
+        System.setProperty("mail.mime.encoding.scanlimit", "10");
+        try {
+            // the scan stops once the limit is reached, even if the handler wraps the signal
+            final int[] written = new int[1];
+            assertEquals("quoted-printable", MimeUtility.getEncoding(new DataHandler(written, "text/x-wrapping")));
+            assertEquals(11, written[0]);
+        } finally {
+            System.clearProperty("mail.mime.encoding.scanlimit");
+            CommandMap.setDefaultCommandMap(defaultMap);
+        }
+    }
+
+
+    public static class WrappingTextHandler implements DataContentHandler {
+        public DataFlavor[] getTransferDataFlavors() {
+            return new DataFlavor[0];
+        }
+
+        public Object getTransferData(final DataFlavor df, final DataSource ds) throws UnsupportedFlavorException, IOException {
+            return null;
+        }
+
+        public Object getContent(final DataSource ds) throws IOException {
+            return null;
+        }
+
+        public void writeTo(final Object obj, final String mimeType, final OutputStream os) throws IOException {
+            final int[] written = (int[])obj;
+            try {
+                for (int i = 0; i < 100000; i++) {
+                    written[0]++;
+                    os.write('a');
+                }
+            } catch (final IOException e) {
+                final IOException wrapped = new IOException("Unable to write content");
+                wrapped.initCause(e);
+                throw wrapped;
+            }
+        }
+    }
+
+
     public void testQuote() throws Exception {
         assertEquals("abc", MimeUtility.quote("abc", "&*%"));
         assertEquals("\"abc&\"", MimeUtility.quote("abc&", "&*%"));
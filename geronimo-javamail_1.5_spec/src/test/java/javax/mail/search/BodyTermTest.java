@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package javax.mail.search;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Rev$ $Date$
+ */
+public class BodyTermTest extends TestCase {
+    private Session session;
+
+    @Override
+    protected void setUp() throws Exception {
+        session = Session.getInstance(new Properties());
+    }
+
+    public void testEncodedText() throws Exception {
+        final MimeMessage base64 = parse("Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n"
+                // "Gr\u00fc\u00dfe aus K\u00f6ln" in utf-8
+                + "R3LDvMOfZSBhdXMgS8O2bG4=\r\n");
+        assertTrue(new BodyTerm("K\u00f6ln").match(base64));
+        assertTrue(new BodyTerm("gr\u00fc\u00dfe").match(base64));
+        assertFalse(new BodyTerm("Koln").match(base64));
+
+        final MimeMessage qp = parse("Content-Type: text/plain; charset=iso-8859-1\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n\r\n"
+                + "caf=E9 au l=\r\nait\r\n");
+        assertTrue(new BodyTerm("caf\u00e9 au lait").match(qp));
+        assertTrue(new BodyTerm("CAF\u00c9").match(qp));
+        assertFalse(new BodyTerm("l=").match(qp));
+    }
+
+    public void testMultipart() throws Exception {
+        final MimeMessage message = parse("Content-Type: multipart/mixed; boundary=\"xyz\"\r\n\r\n"
+                + "--xyz\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"
+                + "needle in binary\r\n"
+                + "--xyz\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + "first part\r\n"
+                + "--xyz\r\n"
+                + "Content-Type: text/html\r\n\r\n"
+                + "<p>second part</p>\r\n"
+                + "--xyz--\r\n");
+        assertTrue(new BodyTerm("Second Part").match(message));
+        assertTrue(new BodyTerm("first").match(message));
+        // non-text parts are not searched
+        assertFalse(new BodyTerm("needle").match(message));
+    }
+
+    public void testPartialMatches() throws Exception {
+        // overlapping prefixes need the matcher to fall back correctly
+        final MimeMessage message = parse("Content-Type: text/plain\r\n\r\n"
+                + "aabaabaaab\r\n");
+        assertTrue(new BodyTerm("aaab").match(message));
+        assertTrue(new BodyTerm("").match(message));
+        assertFalse(new BodyTerm("aaaa").match(message));
+    }
+
+    public void testApplicationContent() throws Exception {
+        final MimeMessage message = new MimeMessage(session);
+        final MimeMultipart mp = new MimeMultipart();
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setText("Hello World", "utf-8");
+        mp.addBodyPart(part);
+        message.setContent(mp);
+        message.saveChanges();
+        assertTrue(new BodyTerm("hello world").match(message));
+        assertFalse(new BodyTerm("goodbye").match(message));
+    }
+
+    private MimeMessage parse(final String data) throws Exception {
+        return new MimeMessage(session, new ByteArrayInputStream(("Subject: test\r\n" + data).getBytes("ISO-8859-1")));
+    }
+}
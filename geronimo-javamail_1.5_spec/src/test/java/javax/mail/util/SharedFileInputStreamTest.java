@@ -19,8 +19,11 @@
 
 package javax.mail.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
 
 import junit.framework.TestCase;
 
@@ -108,6 +111,129 @@ public class SharedFileInputStreamTest extends TestCase {
     }
 
 
+    public void testConcurrentSubstreams() throws Exception {
+        final SharedFileInputStream in = new SharedFileInputStream(testInput, 4);
+        final Thread[] threads = new Thread[8];
+        final Throwable[] failures = new Throwable[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int pass = 0; pass < 200; pass++) {
+                            // each thread reads its own slice of "0123456789abcdef..."
+                            final SharedFileInputStream sub = (SharedFileInputStream)in.newStream(index, index + 20);
+                            final byte[] bytes = new byte[20];
+                            int count = 0;
+                            while (count < 20) {
+                                count += sub.read(bytes, count, 20 - count);
+                            }
+                            assertEquals(-1, sub.read());
+                            assertEquals(new String(bytes, "ISO8859-1"), "0123456789abcdefghijklmnopqrstuvwxyz".substring(index, index + 20));
+                            sub.close();
+                        }
+                    } catch (final Throwable e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            if (failures[i] != null) {
+                throw new AssertionError(failures[i]);
+            }
+        }
+        in.close();
+    }
+
+
+    public void testBufferSizeProperty() throws Exception {
+        System.setProperty("mail.mime.sharedfile.buffersize", "64");
+        try {
+            final SharedFileInputStream in = new SharedFileInputStream(testInput);
+            assertEquals(64, in.bufsize);
+            in.close();
+        } finally {
+            System.getProperties().remove("mail.mime.sharedfile.buffersize");
+        }
+        final SharedFileInputStream in = new SharedFileInputStream(testInput);
+        assertEquals(2048, in.bufsize);
+        in.close();
+    }
+
+
+    public void testTransferTo() throws Exception {
+        final SharedFileInputStream in = new SharedFileInputStream(testInput, 16);
+        final SharedFileInputStream sub = (SharedFileInputStream)in.newStream(10, 50);
+        // leave some data in the read buffer
+        assertEquals('a', sub.read());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(39, sub.transferTo(Channels.newChannel(out)));
+        assertEquals("bcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMN", out.toString("ISO8859-1"));
+        assertEquals(40, sub.getPosition());
+        assertEquals(-1, sub.read());
+        sub.close();
+        in.close();
+    }
+
+
+    public void testInterruptedReader() throws Exception {
+        final SharedFileInputStream in = new SharedFileInputStream(testInput, 16);
+        final SharedFileInputStream first = (SharedFileInputStream)in.newStream(0, 30);
+        final SharedFileInputStream second = (SharedFileInputStream)in.newStream(30, 60);
+
+        // an interrupted reader still reads, and keeps its interrupt
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals('0', first.read());
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        // and the other streams sharing the file keep working
+        assertEquals('u', second.read());
+        assertEquals('1', first.read());
+        first.close();
+        second.close();
+        in.close();
+    }
+
+    public void testInterruptedReaderDeletedFile() throws Exception {
+        final File file = File.createTempFile("shared", ".dat");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("0123456789abcdefghijklmnopqrstuvwxyz".getBytes("ISO8859-1"));
+        } finally {
+            out.close();
+        }
+        final SharedFileInputStream in = new SharedFileInputStream(file, 4);
+        // a spilled part is deleted once it has been opened
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        final SharedFileInputStream first = (SharedFileInputStream)in.newStream(0, 10);
+        final SharedFileInputStream second = (SharedFileInputStream)in.newStream(10, 36);
+
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals('0', first.read());
+        } finally {
+            Thread.interrupted();
+        }
+        final byte[] buffer = new byte[26];
+        assertEquals(26, second.read(buffer));
+        assertEquals("abcdefghijklmnopqrstuvwxyz", new String(buffer, "ISO8859-1"));
+        assertEquals('1', first.read());
+        first.close();
+        second.close();
+        in.close();
+    }
+
     public void testMark() throws Exception {
         doMarkTest(new SharedFileInputStream(testInput, 10));
 
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Rev$ $Date$
+ */
+public class Base64Test extends TestCase {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private final Random random = new Random(42);
+
+    public void testArrayEncoding() throws Exception {
+        for (int length = 0; length < 20; length++) {
+            final byte[] data = randomData(length);
+            final String expected = reference(data);
+            assertEquals(expected, new String(Base64.encode(data), "US-ASCII"));
+            assertTrue(Arrays.equals(data, Base64.decode(expected)));
+            assertTrue(Arrays.equals(data, Base64.decode(expected.getBytes("US-ASCII"))));
+        }
+    }
+
+    public void testStreamEncoding() throws Exception {
+        final byte[] data = randomData(100000);
+        final String expected = lines(reference(data), 76);
+
+        // write the data in odd sized pieces, mixing single byte and bulk writes
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Base64EncoderStream encoder = new Base64EncoderStream(out);
+        int offset = 0;
+        int size = 1;
+        while (offset < data.length) {
+            final int count = Math.min(size, data.length - offset);
+            if (count == 1) {
+                encoder.write(data[offset]);
+            } else {
+                encoder.write(data, offset, count);
+            }
+            offset += count;
+            size = size * 7 % 1001 + 1;
+        }
+        encoder.flush();
+        assertEquals(expected, out.toString("US-ASCII"));
+
+        // and the same in a single write
+        out.reset();
+        final Base64EncoderStream single = new Base64EncoderStream(out);
+        single.write(data);
+        single.close();
+        assertEquals(expected, out.toString("US-ASCII"));
+    }
+
+    public void testLineLengths() throws Exception {
+        // every line, including the last, must stay within the limit
+        for (int length = 50; length < 120; length++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final Base64EncoderStream encoder = new Base64EncoderStream(out);
+            encoder.write(randomData(length));
+            encoder.flush();
+            final String[] lines = out.toString("US-ASCII").split("\r\n");
+            for (int i = 0; i < lines.length; i++) {
+                assertTrue(lines[i].length() <= 76);
+            }
+        }
+    }
+
+    public void testStreamDecoding() throws Exception {
+        final byte[] data = randomData(100000);
+        final byte[] encoded = lines(reference(data), 76).getBytes("US-ASCII");
+
+        final Base64DecoderStream in = new Base64DecoderStream(new TrickleInputStream(encoded));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int ch = in.read();
+        if (ch != -1) {
+            out.write(ch);
+        }
+        final byte[] buffer = new byte[777];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+
+        try {
+            final InputStream truncated = new Base64DecoderStream(new ByteArrayInputStream("QUJD\r\nRA".getBytes("US-ASCII")));
+            while (truncated.read() != -1) {
+            }
+            fail("Truncated data not detected");
+        } catch (final IOException e) {
+        }
+    }
+
+    public void testByteBuffers() throws Exception {
+        final byte[] data = randomData(10000);
+        final String expected = reference(data);
+        final byte[] lined = lines(expected, 76).getBytes("US-ASCII");
+
+        assertEquals(expected, encode(ByteBuffer.wrap(data), ByteBuffer.allocate(1000)));
+        assertEquals(expected, encode(direct(data), ByteBuffer.allocateDirect(1001)));
+        assertTrue(Arrays.equals(data, decode(ByteBuffer.wrap(lined), ByteBuffer.allocate(1000))));
+        assertTrue(Arrays.equals(data, decode(direct(lined), ByteBuffer.allocateDirect(999))));
+
+        final Base64Encoder encoder = new Base64Encoder();
+        final ByteBuffer out = ByteBuffer.allocate(10);
+        try {
+            encoder.decode(ByteBuffer.wrap("QUJDRA".getBytes("US-ASCII")), out, true);
+            fail("Truncated data not detected");
+        } catch (final IOException e) {
+        }
+    }
+
+    private String encode(final ByteBuffer in, final ByteBuffer out) throws Exception {
+        final Base64Encoder encoder = new Base64Encoder();
+        final StringBuilder result = new StringBuilder();
+        // feed the input in pieces to exercise the partial unit handling
+        final int limit = in.limit();
+        int end = 0;
+        while (true) {
+            end = Math.min(limit, end + 1000);
+            in.limit(end);
+            encoder.encode(in, out, end == limit);
+            out.flip();
+            while (out.hasRemaining()) {
+                result.append((char)out.get());
+            }
+            out.clear();
+            if (end == limit && !in.hasRemaining()) {
+                return result.toString();
+            }
+        }
+    }
+
+    private byte[] decode(final ByteBuffer in, final ByteBuffer out) throws Exception {
+        final Base64Encoder encoder = new Base64Encoder();
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final int limit = in.limit();
+        int end = 0;
+        while (true) {
+            end = Math.min(limit, end + 333);
+            in.limit(end);
+            encoder.decode(in, out, end == limit);
+            out.flip();
+            while (out.hasRemaining()) {
+                result.write(out.get());
+            }
+            out.clear();
+            if (end == limit && !in.hasRemaining()) {
+                return result.toByteArray();
+            }
+        }
+    }
+
+    private static ByteBuffer direct(final byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    private byte[] randomData(final int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * A straightforward encoder to check the results against.
+     */
+    private static String reference(final byte[] data) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            final int count = Math.min(3, data.length - i);
+            int bits = 0;
+            for (int j = 0; j < 3; j++) {
+                bits = bits << 8 | (j < count ? data[i + j] & 0xff : 0);
+            }
+            for (int j = 0; j < 4; j++) {
+                result.append(j <= count ? ALPHABET.charAt((bits >> (18 - j * 6)) & 0x3f) : '=');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String lines(final String encoded, final int length) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += length) {
+            if (i > 0) {
+                result.append("\r\n");
+            }
+            result.append(encoded, i, Math.min(encoded.length(), i + length));
+        }
+        return result.toString();
+    }
+
+    /**
+     * An input stream that hands back data in small, uneven reads.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private int size = 1;
+
+        TrickleInputStream(final byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            size = size * 5 % 97 + 1;
+            return super.read(b, off, Math.min(len, size));
+        }
+    }
+}
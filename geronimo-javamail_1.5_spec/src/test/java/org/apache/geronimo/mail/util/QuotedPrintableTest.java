@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.geronimo.mail.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Rev$ $Date$
+ */
+public class QuotedPrintableTest extends TestCase {
+
+    private static final String WORD_SPECIALS = "=_?\"#$%&'(),.:;<>@[\\]^`{|}~";
+
+    public void testStreamEncoding() throws Exception {
+        assertEquals("a b=20\r\nc", encode("a b \r\nc"));
+        assertEquals("a\r\nb\r\nc\r\n", encode("a\nb\rc\r\n"));
+        assertEquals("tab=09here=3D", encode("tab\there="));
+        assertEquals("caf=E9", encode("caf\u00e9"));
+
+        final String line = repeat('x', 74);
+        assertEquals(line + "x=\r\n" + repeat('x', 25), encode(line + repeat('x', 26)));
+        assertEquals(line + "=\r\n=E9x", encode(line + "\u00e9x"));
+    }
+
+    public void testWordEncoding() throws Exception {
+        final StringBuffer out = new StringBuffer();
+        new QuotedPrintableEncoder().encodeWordData("a b=?\u00e9_(c)".getBytes("ISO-8859-1"), out, WORD_SPECIALS);
+        assertEquals("a_b=3D=3F=E9=5F=28c=29", out.toString());
+    }
+
+    public void testStreamDecoding() throws Exception {
+        assertEquals("a b \r\nc", decode("a b=20\r\nc"));
+        // blanks before a line end are not part of the data
+        assertEquals("a\r\nb", decode("a   \r\nb"));
+        assertEquals("a", decode("a  "));
+        assertEquals("a    b", decode("a  =\r\n  b"));
+        assertEquals(repeat('x', 100), decode(repeat('x', 75) + "=\r\n" + repeat('x', 25)));
+
+        try {
+            decode("abc=4");
+            fail("Truncated data not detected");
+        } catch (final IOException e) {
+        }
+        try {
+            decode("abc=\rX");
+            fail("Invalid soft line break not detected");
+        } catch (final IOException e) {
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        final Random random = new Random(7);
+        final byte[] alphabet = " \r\n=ab\t\u00e9.".getBytes("ISO-8859-1");
+        final byte[] data = new byte[50000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(4) == 0 ? (byte)random.nextInt(256) : alphabet[random.nextInt(alphabet.length)];
+        }
+        // the encoder can only normalize line ends and decide on a trailing blank once it sees
+        // what follows, so finish with a plain character.
+        data[data.length - 1] = 'z';
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final QuotedPrintableEncoderStream encoder = new QuotedPrintableEncoderStream(out);
+        int offset = 0;
+        while (offset < data.length) {
+            final int count = Math.min(data.length - offset, random.nextInt(100) + 1);
+            encoder.write(data, offset, count);
+            offset += count;
+        }
+        encoder.flush();
+
+        final String encoded = out.toString("ISO-8859-1");
+        final String[] lines = encoded.split("\r\n");
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].length() <= 76);
+        }
+
+        final String expected = new String(data, "ISO-8859-1").replaceAll("\r\n|\r|\n", "\r\n");
+        assertEquals(expected, decode(encoded));
+    }
+
+    private static String encode(final String data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final QuotedPrintableEncoderStream encoder = new QuotedPrintableEncoderStream(out);
+        encoder.write(data.getBytes("ISO-8859-1"));
+        encoder.flush();
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String decode(final String data) throws IOException {
+        final InputStream in = new QuotedPrintableDecoderStream(new ByteArrayInputStream(data.getBytes("ISO-8859-1")));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // mix single byte and block reads
+        int ch = in.read();
+        if (ch != -1) {
+            out.write(ch);
+        }
+        final byte[] buffer = new byte[13];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("ISO-8859-1");
+    }
+
+    private static String repeat(final char ch, final int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+}